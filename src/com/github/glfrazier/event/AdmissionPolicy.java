@@ -0,0 +1,42 @@
+package com.github.glfrazier.event;
+
+/**
+ * What an {@link EventingSystem} with a bounded queue does with an event that
+ * is scheduled when the queue is at capacity, or that is scheduled by a
+ * {@link Producer} that has no credit left. See
+ * {@link EventingSystem#setCapacity(int, AdmissionPolicy)}.
+ * 
+ * @author Greg Frazier
+ *
+ */
+public enum AdmissionPolicy {
+
+	/**
+	 * The scheduling thread waits, up to the block timeout, for room. If none
+	 * becomes available, the event is rejected. A thread that is running the
+	 * eventing system never waits (it would be waiting for itself); its events are
+	 * admitted beyond the capacity.
+	 */
+	BLOCK,
+
+	/**
+	 * The event is rejected: the scheduling method throws a
+	 * {@link java.util.concurrent.RejectedExecutionException}.
+	 */
+	REJECT,
+
+	/**
+	 * The pending event that is next in line for delivery (in realtime mode, the
+	 * one that is most overdue) is discarded to make room.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * The pending event with the lowest priority (see {@link PrioritizedEvent}) is
+	 * discarded to make room, preferring the one to be delivered last. If no
+	 * pending event has a lower priority than the new one, the new one is
+	 * discarded instead.
+	 */
+	DROP_LOWEST_PRIORITY
+
+}
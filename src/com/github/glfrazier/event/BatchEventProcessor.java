@@ -0,0 +1,36 @@
+package com.github.glfrazier.event;
+
+import java.util.List;
+
+/**
+ * An {@link EventProcessor} that takes its events in batches. When the
+ * dispatcher comes to an event for a batch processor, it also takes the other
+ * events queued for the same processor at the same time, up to the maximum batch
+ * size (see {@link EventingSystem#setMaxBatchSize(int)}), and delivers them all
+ * in one call to {@link #processBatch(List, EventingSystem, long)}. Events for
+ * other processors at that time keep their order among themselves, but may be
+ * delivered after the batch.
+ * <p>
+ * Every event for a batch processor is delivered through
+ * {@link #processBatch(List, EventingSystem, long)}, if need be in a batch of
+ * one; {@link #process(Event, EventingSystem, long)} is never invoked by the
+ * eventing system.
+ *
+ * @author Greg Frazier
+ *
+ */
+public interface BatchEventProcessor extends EventProcessor {
+
+	/**
+	 * Process a batch of events, all with the same delivery time, in the order in
+	 * which they would otherwise have been delivered.
+	 *
+	 * @param events         the events; the list is reused by the eventing system,
+	 *                       so it must not be kept (or modified) after the call
+	 *                       returns
+	 * @param eventingSystem the eventing system delivering the events
+	 * @param time           the delivery time of the events
+	 */
+	public void processBatch(List<Event> events, EventingSystem eventingSystem, long time);
+
+}
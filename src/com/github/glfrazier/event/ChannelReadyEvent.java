@@ -0,0 +1,66 @@
+package com.github.glfrazier.event;
+
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+
+/**
+ * The event delivered to the processor of a channel registered with
+ * {@link EventingSystem#registerChannel(SelectableChannel, int, EventProcessor)}
+ * when the channel is ready for one or more of the operations of interest. The
+ * processor does the I/O itself, without blocking; readiness is
+ * level-triggered, so a channel that is left readable is reported again.
+ *
+ * @author Greg Frazier
+ *
+ */
+public class ChannelReadyEvent implements Event {
+
+	private final SelectionKey key;
+	private final int readyOps;
+
+	ChannelReadyEvent(SelectionKey key, int readyOps) {
+		this.key = key;
+		this.readyOps = readyOps;
+	}
+
+	/**
+	 * @return the key of the channel's registration; use it to change the
+	 *         operations of interest, or cancel it to stop the deliveries
+	 */
+	public SelectionKey getKey() {
+		return key;
+	}
+
+	public SelectableChannel getChannel() {
+		return key.channel();
+	}
+
+	/**
+	 * @return the operations for which the channel was ready when it was selected
+	 */
+	public int getReadyOps() {
+		return readyOps;
+	}
+
+	public boolean isReadable() {
+		return (readyOps & SelectionKey.OP_READ) != 0;
+	}
+
+	public boolean isWritable() {
+		return (readyOps & SelectionKey.OP_WRITE) != 0;
+	}
+
+	public boolean isAcceptable() {
+		return (readyOps & SelectionKey.OP_ACCEPT) != 0;
+	}
+
+	public boolean isConnectable() {
+		return (readyOps & SelectionKey.OP_CONNECT) != 0;
+	}
+
+	@Override
+	public String toString() {
+		return "ready(" + readyOps + ") " + key.channel();
+	}
+
+}
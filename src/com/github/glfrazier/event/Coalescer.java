@@ -0,0 +1,46 @@
+package com.github.glfrazier.event;
+
+/**
+ * Decides what is delivered when an event is scheduled with a coalescing key
+ * while another event with the same target and key is still pending. See
+ * {@link EventingSystem#coalesceEvent(EventProcessor, Event, Object, Coalescer)}.
+ * 
+ * @author Greg Frazier
+ *
+ */
+public interface Coalescer {
+
+	/** Keep the event that is already pending; drop the new one. */
+	public static final Coalescer KEEP_EARLIEST = new Coalescer() {
+		public Event merge(Event pending, Event incoming) {
+			return pending;
+		}
+
+		public String toString() {
+			return "keep earliest";
+		}
+	};
+
+	/** Replace the pending event with the new one. */
+	public static final Coalescer KEEP_LATEST = new Coalescer() {
+		public Event merge(Event pending, Event incoming) {
+			return incoming;
+		}
+
+		public String toString() {
+			return "keep latest";
+		}
+	};
+
+	/**
+	 * Combine two events into one. Invoked with the queue lock held, so it should
+	 * be quick and must not schedule events. Whichever of the two is a
+	 * {@link PooledEvent} and is not returned is released.
+	 * 
+	 * @param pending  the event that is waiting to be delivered
+	 * @param incoming the event being scheduled
+	 * @return the single event to deliver in their place
+	 */
+	public Event merge(Event pending, Event incoming);
+
+}
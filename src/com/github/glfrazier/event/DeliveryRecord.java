@@ -0,0 +1,132 @@
+package com.github.glfrazier.event;
+
+/**
+ * The in-progress delivery of one thread that is running an
+ * {@link EventingSystem}. While delivery tracking is on (see
+ * {@link EventingSystem#setDeliveryTracking(boolean)}), the run loop publishes
+ * the target, the event and the start time of every call to
+ * {@link EventProcessor#process(Event, EventingSystem, long)} here, and records
+ * the duration of the call in a histogram when it returns. Other threads (e.g.,
+ * a {@link com.github.glfrazier.event.util.WatchDog}) read the record without
+ * synchronizing with the run loop.
+ *
+ * @author Greg Frazier
+ *
+ */
+public class DeliveryRecord {
+
+	/**
+	 * Bucket <code>i</code> of the histogram counts the calls that took at least
+	 * 2<sup>i-1</sup> and less than 2<sup>i</sup> nanoseconds (bucket 0 counts the
+	 * calls that took no measurable time).
+	 */
+	public static final int HISTOGRAM_BUCKETS = 64;
+
+	private final Thread thread;
+	private volatile EventProcessor target;
+	private volatile Event event;
+	/** The System.nanoTime() at which the current delivery started; 0 if idle. */
+	private volatile long startNanos;
+	private volatile long deliveries;
+	private final long[] histogram = new long[HISTOGRAM_BUCKETS];
+
+	DeliveryRecord(Thread thread) {
+		this.thread = thread;
+	}
+
+	void begin(EventProcessor target, Event event, long now) {
+		this.target = target;
+		this.event = event;
+		// written last: a reader that sees this start time sees this target and event
+		this.startNanos = now == 0 ? 1 : now;
+	}
+
+	void end(long elapsedNanos) {
+		// written first: a reader that saw the old start time and then reads it again
+		// detects that the target and event may have changed
+		startNanos = 0;
+		target = null;
+		event = null;
+		histogram[64 - Long.numberOfLeadingZeros(elapsedNanos)]++;
+		deliveries++;
+	}
+
+	/**
+	 * @return the thread whose deliveries this record describes
+	 */
+	public Thread getThread() {
+		return thread;
+	}
+
+	/**
+	 * @return the number of deliveries that this thread has completed while
+	 *         delivery tracking was on
+	 */
+	public long getDeliveries() {
+		return deliveries;
+	}
+
+	/**
+	 * Take a consistent snapshot of the delivery in progress.
+	 *
+	 * @return the delivery in progress, or <code>null</code> if the thread is not
+	 *         currently in a process() call
+	 */
+	public InProgress getInProgress() {
+		while (true) {
+			long start = startNanos;
+			if (start == 0) {
+				return null;
+			}
+			EventProcessor t = target;
+			Event e = event;
+			if (startNanos == start) {
+				return new InProgress(start, t, e);
+			}
+		}
+	}
+
+	/**
+	 * Add this record's histogram of process() durations to <code>sum</code>.
+	 *
+	 * @param sum an array of {@link #HISTOGRAM_BUCKETS} counts
+	 */
+	public void addHistogramTo(long[] sum) {
+		for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+			sum[i] += histogram[i];
+		}
+	}
+
+	/**
+	 * An immutable snapshot of one delivery in progress.
+	 */
+	public static class InProgress {
+
+		private final long startNanos;
+		private final EventProcessor target;
+		private final Event event;
+
+		InProgress(long startNanos, EventProcessor target, Event event) {
+			this.startNanos = startNanos;
+			this.target = target;
+			this.event = event;
+		}
+
+		/**
+		 * @return the {@link System#nanoTime()} at which the delivery started
+		 */
+		public long getStartNanos() {
+			return startNanos;
+		}
+
+		public EventProcessor getTarget() {
+			return target;
+		}
+
+		public Event getEvent() {
+			return event;
+		}
+
+	}
+
+}
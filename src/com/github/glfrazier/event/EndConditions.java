@@ -0,0 +1,254 @@
+package com.github.glfrazier.event;
+
+import com.github.glfrazier.event.EventingSystem.EndCondition;
+
+/**
+ * A declarative set of conditions under which an {@link EventingSystem}'s run
+ * loop ends, installed with
+ * {@link EventingSystem#setEndConditions(EndConditions)}. The conditions are
+ * kept in flat arrays, and the run loop pays for them only when one is due:
+ * before each delivery it compares the number of events delivered and the
+ * delivery time against the next count and time at which a check is due, and
+ * evaluates nothing else unless one of those has been reached.
+ *
+ * <pre>
+ * es.setEndConditions(new EndConditions()
+ * 		.afterEvents(10000000)
+ * 		.atTime(3600000)
+ * 		.onDeliveryOf(SimulationComplete.class)
+ * 		.checkEvery(converged, 100000)
+ * 		.checkOnSignal(allAgentsDone));
+ * </pre>
+ *
+ * When a condition is met before a delivery, the event that was about to be
+ * delivered is returned to the queue, so a subsequent call to
+ * {@link EventingSystem#run()} resumes where the previous call ended.
+ *
+ * @author Greg Frazier
+ *
+ */
+public class EndConditions {
+
+	private static final long NEVER = Long.MAX_VALUE;
+
+	private long eventLimit = NEVER;
+	private long timeLimit = NEVER;
+	private Class<?>[] eventClasses = null;
+
+	private EndCondition[] everyN = new EndCondition[0];
+	private long[] everyNPeriod = new long[0];
+	private long[] everyNNext = new long[0];
+
+	private EndCondition[] atInterval = new EndCondition[0];
+	private long[] intervalPeriod = new long[0];
+	private long[] intervalNext = new long[0];
+
+	private EndCondition[] onSignal = new EndCondition[0];
+
+	/** The number of delivered events at which a check is next due. */
+	long nextCountCheck = NEVER;
+	/** The delivery time at which a check is next due. */
+	long nextTimeCheck = NEVER;
+
+	/**
+	 * End the run once <code>n</code> events have been delivered.
+	 *
+	 * @param n the number of events to deliver
+	 * @return this
+	 */
+	public synchronized EndConditions afterEvents(long n) {
+		if (n < 0) {
+			throw new IllegalArgumentException("n must not be negative");
+		}
+		eventLimit = Math.min(eventLimit, n);
+		nextCountCheck = Math.min(nextCountCheck, eventLimit);
+		return this;
+	}
+
+	/**
+	 * End the run before any event scheduled later than <code>time</code> is
+	 * delivered.
+	 *
+	 * @param time the last delivery time, in the system's finest time unit
+	 * @return this
+	 */
+	public synchronized EndConditions atTime(long time) {
+		if (time == NEVER) {
+			return this;
+		}
+		timeLimit = Math.min(timeLimit, time);
+		nextTimeCheck = Math.min(nextTimeCheck, timeLimit + 1);
+		return this;
+	}
+
+	/**
+	 * End the run right after an event of class <code>eventClass</code> is
+	 * delivered. As with the {@link com.github.glfrazier.event.util.PubSubDepot},
+	 * inheritance is not honored: the event's class must be exactly
+	 * <code>eventClass</code>.
+	 *
+	 * @param eventClass the class of the final event
+	 * @return this
+	 */
+	public synchronized EndConditions onDeliveryOf(Class<? extends Event> eventClass) {
+		if (eventClass == null) {
+			throw new NullPointerException("eventClass is null");
+		}
+		int n = eventClasses == null ? 0 : eventClasses.length;
+		Class<?>[] classes = new Class<?>[n + 1];
+		if (n > 0) {
+			System.arraycopy(eventClasses, 0, classes, 0, n);
+		}
+		classes[n] = eventClass;
+		eventClasses = classes;
+		return this;
+	}
+
+	/**
+	 * Evaluate <code>condition</code> each time another <code>events</code> events
+	 * have been delivered.
+	 *
+	 * @param condition the user predicate
+	 * @param events    the number of deliveries between evaluations
+	 * @return this
+	 */
+	public EndConditions checkEvery(EndCondition condition, long events) {
+		return checkEvery(condition, events, events);
+	}
+
+	/**
+	 * Evaluate <code>condition</code> first before the delivery that follows
+	 * <code>first</code> deliveries, and each time another <code>events</code>
+	 * events have been delivered after that.
+	 */
+	synchronized EndConditions checkEvery(EndCondition condition, long events, long first) {
+		if (events <= 0) {
+			throw new IllegalArgumentException("events must be positive");
+		}
+		everyN = append(everyN, condition);
+		everyNPeriod = append(everyNPeriod, events);
+		everyNNext = append(everyNNext, first);
+		nextCountCheck = Math.min(nextCountCheck, first);
+		return this;
+	}
+
+	/**
+	 * Evaluate <code>condition</code> each time the delivery time crosses a
+	 * multiple of <code>interval</code>. The condition is evaluated before the
+	 * first event at or beyond the threshold is delivered, so the system's current
+	 * time is still that of the last event delivered.
+	 *
+	 * @param condition the user predicate
+	 * @param interval  the time between evaluations, in the system's finest time
+	 *                  unit
+	 * @return this
+	 */
+	public synchronized EndConditions checkAtInterval(EndCondition condition, long interval) {
+		if (interval <= 0) {
+			throw new IllegalArgumentException("interval must be positive");
+		}
+		atInterval = append(atInterval, condition);
+		intervalPeriod = append(intervalPeriod, interval);
+		// the first delivery establishes the first threshold
+		intervalNext = append(intervalNext, Long.MIN_VALUE);
+		nextTimeCheck = Long.MIN_VALUE;
+		return this;
+	}
+
+	/**
+	 * Evaluate <code>condition</code> only when
+	 * {@link EventingSystem#signalEndConditions()} is invoked.
+	 *
+	 * @param condition the user predicate
+	 * @return this
+	 */
+	public synchronized EndConditions checkOnSignal(EndCondition condition) {
+		onSignal = append(onSignal, condition);
+		return this;
+	}
+
+	/**
+	 * Invoked by the run loop when <code>delivered &gt;= nextCountCheck</code> or
+	 * <code>time &gt;= nextTimeCheck</code>.
+	 *
+	 * @param delivered the number of events delivered so far
+	 * @param time      the delivery time of the next event
+	 * @return <code>true</code> if the run should end before that event is
+	 *         delivered
+	 */
+	synchronized boolean evaluate(long delivered, long time) {
+		if (delivered >= eventLimit || time > timeLimit) {
+			return true;
+		}
+		boolean complete = false;
+		long nextCount = eventLimit;
+		for (int i = 0; i < everyN.length; i++) {
+			if (delivered >= everyNNext[i]) {
+				complete |= everyN[i].taskIsComplete();
+				everyNNext[i] = (delivered / everyNPeriod[i] + 1) * everyNPeriod[i];
+			}
+			nextCount = Math.min(nextCount, everyNNext[i]);
+		}
+		long nextTime = timeLimit == NEVER ? NEVER : timeLimit + 1;
+		for (int i = 0; i < atInterval.length; i++) {
+			if (time >= intervalNext[i]) {
+				if (intervalNext[i] != Long.MIN_VALUE) {
+					complete |= atInterval[i].taskIsComplete();
+				}
+				intervalNext[i] = Math.floorDiv(time, intervalPeriod[i]) * intervalPeriod[i] + intervalPeriod[i];
+			}
+			nextTime = Math.min(nextTime, intervalNext[i]);
+		}
+		nextCountCheck = nextCount;
+		nextTimeCheck = nextTime;
+		return complete;
+	}
+
+	/**
+	 * Invoked by the run loop after each delivery, if there are any event classes.
+	 */
+	boolean endsOn(Event e) {
+		Class<?> c = e.getClass();
+		for (Class<?> ec : eventClasses) {
+			if (ec == c) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	boolean hasEventClasses() {
+		return eventClasses != null;
+	}
+
+	/**
+	 * @return <code>true</code> if any of the conditions registered with
+	 *         {@link #checkOnSignal(EndCondition)} is met
+	 */
+	synchronized boolean evaluateSignal() {
+		for (EndCondition c : onSignal) {
+			if (c.taskIsComplete()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static EndCondition[] append(EndCondition[] a, EndCondition c) {
+		if (c == null) {
+			throw new NullPointerException("condition is null");
+		}
+		EndCondition[] b = new EndCondition[a.length + 1];
+		System.arraycopy(a, 0, b, 0, a.length);
+		b[a.length] = c;
+		return b;
+	}
+
+	private static long[] append(long[] a, long v) {
+		long[] b = new long[a.length + 1];
+		System.arraycopy(a, 0, b, 0, a.length);
+		b[a.length] = v;
+		return b;
+	}
+
+}
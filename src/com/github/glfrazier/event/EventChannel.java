@@ -0,0 +1,244 @@
+package com.github.glfrazier.event;
+
+/**
+ * A single-producer, single-consumer channel that carries timestamped events
+ * from one {@link EventingSystem} (the sender) to another (the receiver). The
+ * sender's dispatch thread writes into a fixed-size ring without taking any
+ * lock; the receiver drains the ring from its own run loop and inserts the
+ * events into its queue. Only the thread running the sender may call the
+ * <code>send</code> methods.
+ * <p>
+ * Every send also advances the <em>channel time</em>: the sender's clock at the
+ * moment of the send. Since a sender never schedules into the past, the
+ * receiver is guaranteed that no event with a timestamp earlier than the
+ * channel time will arrive on this channel. Synchronization algorithms can use
+ * {@link #getChannelTime()} (or {@link EventingSystem#getSafeTime()}) to decide
+ * how far the receiver may advance. A sender with nothing to send may still
+ * advance the channel time with {@link #advanceChannelTime(long)} (a "null
+ * message").
+ * <p>
+ * If the ring is full, the sender takes the receiver's queue lock, drains the
+ * ring into the receiver's queue and queues the event behind them, so that
+ * events from one sender are still queued in the order they were sent. A full
+ * queue is handled as for an event scheduled directly, i.e., the sender may
+ * wait for room or be rejected. Size the ring so that this is rare; see
+ * {@link #getOverflowCount()}.
+ *
+ * @author Greg Frazier
+ *
+ */
+public class EventChannel {
+
+	private final EventingSystem sender;
+	private final EventingSystem receiver;
+
+	private final int mask;
+	private final EventProcessor[] targets;
+	private final Event[] events;
+	private final long[] times;
+
+	/** The next slot to be read. Written only under the receiver's queue lock. */
+	private volatile long head;
+	/** The next slot to be written. Written only by the sender. */
+	private volatile long tail;
+	/** The sender's (possibly stale) copy of <code>head</code>. */
+	private long cachedHead;
+
+	private volatile long channelTime = Long.MIN_VALUE;
+	private volatile long overflowCount;
+
+	/**
+	 * Channels are created with {@link EventingSystem#openChannelTo(EventingSystem, int)}.
+	 */
+	EventChannel(EventingSystem sender, EventingSystem receiver, int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		this.sender = sender;
+		this.receiver = receiver;
+		this.mask = size - 1;
+		this.targets = new EventProcessor[size];
+		this.events = new Event[size];
+		this.times = new long[size];
+	}
+
+	/**
+	 * Send an event to be delivered, in the receiver, at the sender's current
+	 * time.
+	 *
+	 * @param target the EventProcessor (hosted by the receiver) to deliver the
+	 *               event to
+	 * @param e      the Event to deliver
+	 */
+	public void send(EventProcessor target, Event e) {
+		long now = sender.getCurrentTime();
+		send(target, e, now, now);
+	}
+
+	/**
+	 * Send an event to be delivered, in the receiver, <code>timeRelative</code>
+	 * time units after the sender's current time.
+	 *
+	 * @param target       the EventProcessor (hosted by the receiver) to deliver
+	 *                     the event to
+	 * @param e            the Event to deliver
+	 * @param timeRelative the distance in the future to deliver the event, in the
+	 *                     receiver's finest time unit
+	 */
+	public void sendRelative(EventProcessor target, Event e, long timeRelative) {
+		if (timeRelative < 0) {
+			throw new IllegalArgumentException("Events must be sent for now or in the future (timeRelative >= 0)");
+		}
+		long now = sender.getCurrentTime();
+		send(target, e, now + timeRelative, now);
+	}
+
+	/**
+	 * Send an event to be delivered, in the receiver, at time <code>time</code>.
+	 *
+	 * @param target the EventProcessor (hosted by the receiver) to deliver the
+	 *               event to
+	 * @param e      the Event to deliver
+	 * @param time   the delivery time; must not be earlier than the sender's
+	 *               current time
+	 * @throws IllegalArgumentException if <code>time</code> is earlier than the
+	 *                                  sender's current time
+	 */
+	public void send(EventProcessor target, Event e, long time) {
+		long now = sender.getCurrentTime();
+		if (time < now) {
+			throw new IllegalArgumentException(
+					"Event sent for " + time + ", but the sender's current time is " + now);
+		}
+		send(target, e, time, now);
+	}
+
+	/**
+	 * Send an event that may already be overdue, as a realtime system allows.
+	 * Used by {@link ShardedEventingSystem} to forward events scheduled on one
+	 * shard for a target on another. The channel time is not advanced beyond
+	 * <code>time</code>.
+	 */
+	void post(EventProcessor target, Event e, long time) {
+		send(target, e, time, Math.min(time, sender.getCurrentTime()));
+	}
+
+	private void send(EventProcessor target, Event e, long time, long now) {
+		if (target == null) {
+			throw new NullPointerException("target is null");
+		}
+		if (e == null) {
+			throw new NullPointerException("event is null");
+		}
+		if (now > channelTime) {
+			channelTime = now;
+		}
+		long t = tail;
+		if (t - cachedHead > mask) {
+			cachedHead = head;
+			if (t - cachedHead > mask) {
+				overflowCount++;
+				receiver.enqueueOverflow(this, target, e, time);
+				return;
+			}
+		}
+		if (e instanceof PooledEvent) {
+			// the ring's reference, dropped when the receiver has queued the event
+			((PooledEvent) e).retain();
+		}
+		int i = (int) t & mask;
+		targets[i] = target;
+		events[i] = e;
+		times[i] = time;
+		tail = t + 1;
+		receiver.channelWritten();
+	}
+
+	/**
+	 * Promise the receiver that no event with a timestamp earlier than
+	 * <code>time</code> will be sent on this channel. The channel time never moves
+	 * backwards; a <code>time</code> earlier than the current channel time is
+	 * ignored.
+	 *
+	 * @param time the new lower bound on the timestamps of future sends
+	 */
+	public void advanceChannelTime(long time) {
+		if (time > channelTime) {
+			channelTime = time;
+			receiver.channelWritten();
+		}
+	}
+
+	/**
+	 * Move every event in the ring into the receiver's queue. Invoked, while the
+	 * receiver's queue lock is held, by the receiver's run loop, or by the sender
+	 * when the ring is full; the lock keeps the two from draining at once.
+	 *
+	 * @return the number of events moved
+	 */
+	int drain() {
+		long h = head;
+		long t = tail;
+		if (h == t) {
+			return 0;
+		}
+		for (long n = h; n < t; n++) {
+			int i = (int) n & mask;
+			Event e = events[i];
+			receiver.enqueueFromChannel(targets[i], e, times[i]);
+			if (e instanceof PooledEvent) {
+				((PooledEvent) e).release();
+			}
+			targets[i] = null;
+			events[i] = null;
+		}
+		head = t;
+		return (int) (t - h);
+	}
+
+	public EventingSystem getSender() {
+		return sender;
+	}
+
+	public EventingSystem getReceiver() {
+		return receiver;
+	}
+
+	/**
+	 * @return the lower bound on the timestamps of events that may still arrive
+	 *         on this channel, or <code>Long.MIN_VALUE</code> if the sender has
+	 *         not yet sent anything
+	 */
+	public long getChannelTime() {
+		return channelTime;
+	}
+
+	/**
+	 * @return the number of events currently in the ring
+	 */
+	public int size() {
+		return (int) (tail - head);
+	}
+
+	public int getCapacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * @return the number of events that found the ring full and were handed to the
+	 *         receiver through its locked scheduling path
+	 */
+	public long getOverflowCount() {
+		return overflowCount;
+	}
+
+	@Override
+	public String toString() {
+		return "EventChannel " + sender + " -> " + receiver + " (channel time " + channelTime + ")";
+	}
+
+}
@@ -0,0 +1,156 @@
+package com.github.glfrazier.event;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * A pool of recycled {@link PooledEvent}s of one type. Events come from
+ * {@link #allocate()} and return to the pool when their last reference is
+ * released, usually by the eventing system after their delivery (see
+ * {@link PooledEvent}). The pool is thread-safe.
+ * <p>
+ * In debug mode, the pool records where each event is allocated and recycled:
+ * {@link #getLeaks()} reports the allocation sites of the events that were
+ * never returned, and the exception thrown when a recycled event is released
+ * again has the site of its recycling as its cause. Releases and retains of
+ * recycled events are counted, and throw, in either mode.
+ *
+ * @param <E> the type of the events
+ *
+ * @author Greg Frazier
+ *
+ */
+public class EventPool<E extends PooledEvent> {
+
+	public static final int DEFAULT_MAX_FREE = 4096;
+
+	private final Supplier<E> factory;
+	private final int maxFree;
+	private final ArrayDeque<E> freeList = new ArrayDeque<>();
+	private boolean debug;
+	private final Map<PooledEvent, Throwable> outstanding = new IdentityHashMap<>();
+
+	private long allocations = 0;
+	private long creations = 0;
+	private long recycled = 0;
+	final AtomicLong misuses = new AtomicLong();
+
+	/**
+	 * @param factory creates a new event when the pool is empty
+	 */
+	public EventPool(Supplier<E> factory) {
+		this(factory, DEFAULT_MAX_FREE);
+	}
+
+	/**
+	 * @param factory creates a new event when the pool is empty
+	 * @param maxFree the most recycled events to keep; any more are left to the
+	 *                garbage collector
+	 */
+	public EventPool(Supplier<E> factory, int maxFree) {
+		if (factory == null) {
+			throw new NullPointerException("factory");
+		}
+		if (maxFree < 0) {
+			throw new IllegalArgumentException("maxFree must not be negative");
+		}
+		this.factory = factory;
+		this.maxFree = maxFree;
+	}
+
+	/**
+	 * @return a recycled event, or a new one if none is free; it has no references
+	 */
+	public synchronized E allocate() {
+		E e = freeList.poll();
+		if (e == null) {
+			e = factory.get();
+			creations++;
+		}
+		e.allocated(this);
+		allocations++;
+		if (debug) {
+			outstanding.put(e, new Throwable("allocated here"));
+		}
+		return e;
+	}
+
+	/**
+	 * Invoked by {@link PooledEvent} when its last reference is released.
+	 */
+	@SuppressWarnings("unchecked")
+	synchronized void recycle(PooledEvent e) {
+		e.reset();
+		recycled++;
+		if (debug) {
+			outstanding.remove(e);
+			e.releasedAt = new Throwable("recycled here");
+		} else {
+			e.releasedAt = null;
+		}
+		if (freeList.size() < maxFree) {
+			freeList.push((E) e);
+		}
+	}
+
+	/**
+	 * Turn debug mode on or off. Leaks are tracked only for events allocated while
+	 * debug mode is on.
+	 */
+	public synchronized void setDebug(boolean on) {
+		debug = on;
+		if (!on) {
+			outstanding.clear();
+		}
+	}
+
+	public synchronized boolean isDebug() {
+		return debug;
+	}
+
+	/**
+	 * @return the allocation sites of the events allocated in debug mode that have
+	 *         not been recycled
+	 */
+	public synchronized List<Throwable> getLeaks() {
+		return new ArrayList<>(outstanding.values());
+	}
+
+	/**
+	 * @return the number of events allocated and not yet recycled
+	 */
+	public synchronized long getOutstanding() {
+		return allocations - recycled;
+	}
+
+	public synchronized long getAllocations() {
+		return allocations;
+	}
+
+	/**
+	 * @return the number of allocations that had to create a new event
+	 */
+	public synchronized long getCreations() {
+		return creations;
+	}
+
+	/**
+	 * @return the number of releases and retains of events that had already been
+	 *         recycled
+	 */
+	public long getMisuses() {
+		return misuses.get();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "EventPool (" + allocations + " allocations, " + creations + " created, " + freeList.size()
+				+ " free)";
+	}
+
+}
@@ -1,11 +1,32 @@
 package com.github.glfrazier.event;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.Queue;
 import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
+import com.github.glfrazier.event.monitor.Profiler;
+import com.github.glfrazier.event.stats.Statistics;
 import com.github.glfrazier.event.util.PubSubDepot;
+import com.github.glfrazier.event.util.RandomStreams;
 import com.github.glfrazier.objectpool.AbstractPooledObject;
 import com.github.glfrazier.objectpool.ObjectPool;
 
@@ -14,173 +35,1548 @@ public class EventingSystem implements Runnable {
 	public static final boolean REALTIME = true;
 	public static final boolean NOT_REALTIME = false;
 
+	/**
+	 * The delivery time of a queued event that is to be delivered immediately. A
+	 * primitive sentinel, rather than a null <code>Long</code>, so that queuing an
+	 * event does not box its time.
+	 */
+	private static final long IMMEDIATE = Long.MIN_VALUE;
+
 	private TimeUnit finestTimeUnit = TimeUnit.MILLISECONDS;
 	private final boolean realtime;
 	@SuppressWarnings("unused")
 	private Double realTimeMultiplier = null;
 	
+	/**
+	 * The bulk lane, which holds all events except the control-plane events and
+	 * those in the now lane. Also the lock that guards the lanes and the run
+	 * loop's shared state.
+	 */
 	private PriorityQueue<QueuedEvent> queue;
+	/**
+	 * The now lane: bulk events of normal priority to be delivered immediately. In
+	 * the heap they would all sort alike, behind any immediate event of higher
+	 * priority and ahead of everything else, so they are kept in a FIFO instead,
+	 * where adding and taking them is O(1) and they are delivered in the order in
+	 * which they were scheduled.
+	 */
+	private final ArrayDeque<QueuedEvent> nowLane = new ArrayDeque<QueuedEvent>();
+	/** The control lane: events with priority {@link PrioritizedEvent#CONTROL} or higher. */
+	private final PriorityQueue<QueuedEvent> controlLane = new PriorityQueue<QueuedEvent>();
+	/** Every lane. */
+	private final List<Queue<QueuedEvent>> lanes = new ArrayList<>(3);
+	/** The number of entries ever inserted; sequences entries of equal rank. */
+	private long insertions = 0;
+
+	public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+	private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+	/**
+	 * In realtime mode, the number of consecutive control events that may be
+	 * delivered ahead of overdue bulk events; 0 if the control lane has strict
+	 * priority.
+	 */
+	private int controlLaneWeight = 0;
+	private int controlStreak = 0;
 	private long currentTime;
 	private long endTime;
 	private long startTime;
 	private boolean verbose;
 	private boolean endWhenEmpty = false;
 
-	@SuppressWarnings("unused")
-	private int threadCount;
+	@SuppressWarnings("unused")
+	private int threadCount;
+
+	private long totalEventsDelivered = 0;
+	private int maxQueueLength = 0;
+
+	/** The maximum number of queued events, or 0 if the queue is unbounded. */
+	private int capacity = 0;
+	private AdmissionPolicy admissionPolicy = AdmissionPolicy.BLOCK;
+	/** How long a BLOCKed producer waits for room, in ms; 0 to wait indefinitely. */
+	private long blockTimeout = 0;
+	/** The number of threads waiting for room in the queue. */
+	private int blockedProducers = 0;
+	private long droppedEvents = 0;
+	private long rejectedEvents = 0;
+
+	private boolean timingEnabled;
+	private long totalProcessingNanos = 0;
+	private long timedDeliveries = 0;
+	private long totalDispatchLag = 0;
+	private long dispatchLagCount = 0;
+
+	private volatile Profiler profiler;
+	private int profileCountdown;
+
+	private boolean trackDeliveries;
+	/**
+	 * One record for each thread currently in {@link #run()}. Replaced (never
+	 * modified) when a thread enters or leaves.
+	 */
+	private volatile DeliveryRecord[] deliveryRecords = new DeliveryRecord[0];
+	/** The histograms of the threads that have left {@link #run()}. */
+	private final long[] retiredHistogram = new long[DeliveryRecord.HISTOGRAM_BUCKETS];
+
+	private Set<EndCondition> endConditionsForEmptyQueue = null;
+	private EndConditions endConditions = null;
+	/** Set when a signalled end condition is met; consumed by the run loop. */
+	private volatile boolean stopRequested;
+
+	private QueuedEventPool qePool = new QueuedEventPool();
+	private String name;
+	private volatile boolean terminated;
+
+	private boolean zeroRelativeEventsAllowed;
+
+	/**
+	 * The pending keyed events, by (target, key). Created on first use; guarded by
+	 * the queue lock.
+	 */
+	private Map<CoalesceKey, QueuedEvent> coalescing = null;
+	private final CoalesceKey coalesceProbe = new CoalesceKey(null, null);
+	private long coalescedEvents = 0;
+
+	/**
+	 * Channels on which other EventingSystems send events to this one. Replaced
+	 * (never modified) when a channel is added.
+	 */
+	private volatile EventChannel[] inboundChannels = new EventChannel[0];
+	/**
+	 * Set while the run thread is (about to be) waiting on the queue, so that
+	 * channel senders know they must wake it.
+	 */
+	private volatile boolean dispatcherWaiting;
+
+	public static final int DEFAULT_SELECT_INTERVAL = 64;
+	/** Values of a run thread's pending selection other than a wait in millis. */
+	private static final long NO_SELECT = -1;
+	private static final long SELECT_NOW = -2;
+	/** Opened when the first channel is registered. */
+	private volatile Selector selector;
+	/** The run thread that has claimed the selector; guarded by the queue lock. */
+	private Thread selecting;
+	private int selectInterval = DEFAULT_SELECT_INTERVAL;
+
+	/** Set if this system is a shard of a {@link ShardedEventingSystem}. */
+	private ShardedEventingSystem shardedBy;
+	private int shardIndex;
+	/** Set by the sharded system when it wants this shard to stop at a safepoint. */
+	volatile boolean pauseRequested;
+	/**
+	 * The process() time, in nanoseconds, and the number of deliveries, of each
+	 * target since the map was last reset; <code>null</code> unless load tracking
+	 * is on. Only touched by the run thread, or at a safepoint.
+	 */
+	private volatile Map<EventProcessor, long[]> targetLoad;
+	private long migratedIn = 0;
+	private long migratedOut = 0;
+	
+	/**
+	 * In support of a pub-sub model
+	 */
+	private PubSubDepot pubsubDepot;
+	private volatile Statistics statistics;
+
+	public static final long DEFAULT_SEED = 0;
+	private long seed = DEFAULT_SEED;
+	private volatile RandomStreams randomStreams;
+
+	/**
+	 * Construct an EventingSystem with default attributes:
+	 * <ul>
+	 * <li><code>finestTimeUnit == {@link}TimeUnit.MILLISECONDS</code></li>
+	 * <li><code>realTime = false</code></li>
+	 * <li><code>realTimeMultiplier =</code> n/a</li>
+	 * </ul>
+	 * 
+	 * @see #setFinestTimeUnit(TimeUnit)
+	 */
+	public EventingSystem(boolean realtime) {
+		this.realtime = realtime;
+		queue = new PriorityQueue<QueuedEvent>();
+		lanes.add(nowLane);
+		lanes.add(queue);
+		lanes.add(controlLane);
+	}
+
+	public EventingSystem(String name, boolean realtime) {
+		this(realtime);
+		this.name = name;
+	}
+	
+	public EventingSystem(String name, boolean realtime, boolean allowZeroRelativeEvents) {
+		this(realtime);
+		this.name = name;
+		this.zeroRelativeEventsAllowed = allowZeroRelativeEvents;
+	}
+	
+	public void allowZeroRelativeEvents() {
+		zeroRelativeEventsAllowed = true;
+	}
+
+	/**
+	 * Schedule an event to be delivered <code>timeRelative</code> time units in the
+	 * future.
+	 * 
+	 * @param target       the EventProcess to deliver the event to
+	 * @param e            the Event to deliver
+	 * @param timeRelative the distance in the future to deliver the event, in the
+	 *                     system's {@link finestTimeUnit}.
+	 * @throws IllegalArgumentException if <code>timeRelative</code> is negative or
+	 *                                  zero
+	 * @see #getFinestTimeUnit()
+	 */
+	public void scheduleEventRelative(EventProcessor target, Event e, long timeRelative) {
+		if (timeRelative < 0) {
+			throw new IllegalArgumentException("Events must be scheduled for now or in the future (timeRelative >= 0)");
+		}
+		if (timeRelative == 0 && !zeroRelativeEventsAllowed) {
+			throw new IllegalArgumentException("Relative-scheduled events with timeRelative=0 are not allowed. See allowZeroRelativeEvents().");
+		}
+		long now = getCurrentTime();
+		scheduleEventAbsolute(target, e, now + timeRelative);
+	}
+
+	/**
+	 * Schedule an event to be delivered at time <code>time</code>. If the system is
+	 * running in real time, this may be a clock time. If not-real-time, this may be
+	 * in the EventingSystem's time frame (e.g., where the system started at time
+	 * 0).
+	 * 
+	 * @param target the EventProcess to deliver the event to
+	 * @param e      the Event to deliver
+	 * @param time   the time to deliver the event, in the system's
+	 *               {@link finestTimeUnit}.
+	 * @see #getFinestTimeUnit()
+	 */
+	public void scheduleEventAbsolute(EventProcessor target, Event e, long time) {
+		if (target == null) {
+			throw new NullPointerException("target is null");
+		}
+		if (e == null) {
+			throw new NullPointerException("event is null");
+		}
+		ShardedEventingSystem s = shardedBy;
+		if (s != null) {
+			EventingSystem owner = s.shardFor(target);
+			if (owner != this) {
+				s.forward(this, owner, target, e, time);
+				return;
+			}
+		}
+		QueuedEvent qe = qePool.allocate(target, e, time);
+		appendQueuedEvent(qe);
+	}
+
+	/**
+	 * Schedule an event to be delivered <code>timeRelative timeUnits</code> in the
+	 * future.
+	 * 
+	 * @param target       the EventProcess to deliver the event to
+	 * @param e            the Event to deliver
+	 * @param timeRelative the distance in the future to deliver the event, in the
+	 *                     system's {@link finestTimeUnit}.
+	 * @param timeUnit     the time unit of <code>timeRelative</code>. Should be
+	 *                     equal or less granular than the {@link #finestTimeUnit}.
+	 * @throws IllegalArgumentException if <code>timeRelative</code> is negative or
+	 *                                  zero
+	 * @see #getFinestTimeUnit()
+	 */
+	public void scheduleEventRelative(EventProcessor target, Event e, long timeRelative, TimeUnit timeUnit) {
+		if (timeRelative < 0) {
+			throw new IllegalArgumentException("Events must be scheduled for now or in the future (timeRelative >= 0)");
+		}
+		long now = getCurrentTime();
+		scheduleEventAbsolute(target, e, now + finestTimeUnit.convert(timeRelative, timeUnit));
+	}
+
+	public void scheduleEventAbsolute(EventProcessor target, Event e, long time, TimeUnit timeUnit) {
+		long t = finestTimeUnit.convert(time, timeUnit);
+		if (t < getCurrentTime()) {
+			throw new IllegalArgumentException("Event scheduled for " + finestTimeUnit.convert(time, timeUnit)
+					+ ", current time = " + getCurrentTime());
+		}
+		scheduleEventAbsolute(target, e, t);
+	}
+
+	/**
+	 * Schedule an event to be delivered now.
+	 * 
+	 * @param target the receipient of the event
+	 * @param e      the event to deliver
+	 */
+	public void scheduleEvent(EventProcessor target, Event e) {
+		ShardedEventingSystem s = shardedBy;
+		if (s != null) {
+			EventingSystem owner = s.shardFor(target);
+			if (owner != this) {
+				s.forward(this, owner, target, e, null);
+				return;
+			}
+		}
+		QueuedEvent qe = qePool.allocate(target, e);
+		appendQueuedEvent(qe);
+	}
+
+	/**
+	 * Schedule an event on behalf of a {@link Producer}.
+	 * 
+	 * @param time the delivery time, or <code>null</code> for now
+	 */
+	void scheduleFrom(Producer producer, EventProcessor target, Event e, Long time) {
+		if (target == null) {
+			throw new NullPointerException("target is null");
+		}
+		if (e == null) {
+			throw new NullPointerException("event is null");
+		}
+		ShardedEventingSystem s = shardedBy;
+		if (s != null) {
+			EventingSystem owner = s.shardFor(target);
+			if (owner != this) {
+				// queued on the target's shard, where the producer's credit is returned
+				owner.scheduleFrom(producer, target, e, time);
+				return;
+			}
+		}
+		QueuedEvent qe = time == null ? qePool.allocate(target, e) : qePool.allocate(target, e, time);
+		qe.producer = producer;
+		appendQueuedEvent(qe);
+	}
+
+	/**
+	 * Deliver <code>e</code> to <code>target</code> every <code>period</code> time
+	 * units, starting <code>initialDelay</code> time units from now. If the run
+	 * loop falls behind, the missed deliveries are made back to back (see
+	 * {@link PeriodicSchedule.CatchUp#BURST}).
+	 * <p>
+	 * The schedule keeps a single queue entry, which is re-keyed and re-inserted
+	 * after each delivery, so a periodic event causes no pool allocations or
+	 * releases. The target must not reschedule the event itself.
+	 * 
+	 * @param target       the EventProcessor to deliver the event to
+	 * @param e            the Event to deliver
+	 * @param initialDelay the time until the first delivery, in the system's
+	 *                     {@link finestTimeUnit}
+	 * @param period       the time between the scheduled times of successive
+	 *                     deliveries
+	 * @return a handle with which the schedule can be cancelled
+	 */
+	public PeriodicSchedule scheduleAtFixedRate(EventProcessor target, Event e, long initialDelay, long period) {
+		return scheduleAtFixedRate(target, e, initialDelay, period, PeriodicSchedule.CatchUp.BURST);
+	}
+
+	/**
+	 * As {@link #scheduleAtFixedRate(EventProcessor, Event, long, long)}, with the
+	 * specified catch-up policy.
+	 * 
+	 * @param catchUp what to do when the run loop falls behind by more than a
+	 *                period
+	 */
+	public PeriodicSchedule scheduleAtFixedRate(EventProcessor target, Event e, long initialDelay, long period,
+			PeriodicSchedule.CatchUp catchUp) {
+		return schedulePeriodic(new PeriodicSchedule(target, e, period, true, catchUp), initialDelay);
+	}
+
+	public PeriodicSchedule scheduleAtFixedRate(EventProcessor target, Event e, long initialDelay, long period,
+			TimeUnit timeUnit) {
+		return scheduleAtFixedRate(target, e, finestTimeUnit.convert(initialDelay, timeUnit),
+				finestTimeUnit.convert(period, timeUnit));
+	}
+
+	/**
+	 * Deliver <code>e</code> to <code>target</code> starting
+	 * <code>initialDelay</code> time units from now, and thereafter
+	 * <code>delay</code> time units after each delivery completes. In simulation
+	 * (non-realtime) mode a delivery takes no time, and so this is equivalent to
+	 * {@link #scheduleAtFixedRate(EventProcessor, Event, long, long)}.
+	 * 
+	 * @param target       the EventProcessor to deliver the event to
+	 * @param e            the Event to deliver
+	 * @param initialDelay the time until the first delivery, in the system's
+	 *                     {@link finestTimeUnit}
+	 * @param delay        the time from the completion of one delivery to the next
+	 * @return a handle with which the schedule can be cancelled
+	 * @see #scheduleAtFixedRate(EventProcessor, Event, long, long)
+	 */
+	public PeriodicSchedule scheduleWithFixedDelay(EventProcessor target, Event e, long initialDelay, long delay) {
+		return schedulePeriodic(new PeriodicSchedule(target, e, delay, false, PeriodicSchedule.CatchUp.SKIP),
+				initialDelay);
+	}
+
+	public PeriodicSchedule scheduleWithFixedDelay(EventProcessor target, Event e, long initialDelay, long delay,
+			TimeUnit timeUnit) {
+		return scheduleWithFixedDelay(target, e, finestTimeUnit.convert(initialDelay, timeUnit),
+				finestTimeUnit.convert(delay, timeUnit));
+	}
+
+	private PeriodicSchedule schedulePeriodic(PeriodicSchedule ps, long initialDelay) {
+		if (ps.getTarget() == null) {
+			throw new NullPointerException("target is null");
+		}
+		if (ps.getEvent() == null) {
+			throw new NullPointerException("event is null");
+		}
+		if (ps.getCatchUp() == null) {
+			throw new NullPointerException("catchUp is null");
+		}
+		if (initialDelay < 0) {
+			throw new IllegalArgumentException("initialDelay must not be negative");
+		}
+		if (ps.getPeriod() <= 0) {
+			throw new IllegalArgumentException("The period must be positive");
+		}
+		ShardedEventingSystem s = shardedBy;
+		if (s != null) {
+			EventingSystem owner = s.shardFor(ps.getTarget());
+			if (owner != this) {
+				return owner.schedulePeriodic(ps, initialDelay);
+			}
+		}
+		QueuedEvent qe = qePool.allocate(ps.getTarget(), ps.getEvent(), getCurrentTime() + initialDelay);
+		qe.periodic = ps;
+		appendQueuedEvent(qe);
+		return ps;
+	}
+
+	/**
+	 * Schedule an event to be delivered now, coalescing it with any pending event
+	 * for the same target that was scheduled with an equal <code>key</code>. If
+	 * there is such an event, no new queue entry is made: the pending entry
+	 * delivers the event chosen (or made) by <code>coalescer</code>, at the
+	 * earlier of the two delivery times. Use this for "state changed" events, of
+	 * which the target only needs to see one per burst.
+	 * 
+	 * @param target    the EventProcessor to deliver the event to
+	 * @param e         the Event to deliver
+	 * @param key       identifies the events (for this target) that may be merged;
+	 *                  compared with {@link Object#equals(Object)}
+	 * @param coalescer decides which event is delivered; e.g.,
+	 *                  {@link Coalescer#KEEP_EARLIEST} or
+	 *                  {@link Coalescer#KEEP_LATEST}
+	 */
+	public void coalesceEvent(EventProcessor target, Event e, Object key, Coalescer coalescer) {
+		coalesce(target, e, null, key, coalescer);
+	}
+
+	/**
+	 * Schedule an event to be delivered <code>timeRelative</code> time units in the
+	 * future, coalescing it with any pending event for the same target and key.
+	 * 
+	 * @see #coalesceEvent(EventProcessor, Event, Object, Coalescer)
+	 */
+	public void coalesceEventRelative(EventProcessor target, Event e, long timeRelative, Object key,
+			Coalescer coalescer) {
+		if (timeRelative < 0) {
+			throw new IllegalArgumentException("Events must be scheduled for now or in the future (timeRelative >= 0)");
+		}
+		coalesce(target, e, getCurrentTime() + timeRelative, key, coalescer);
+	}
+
+	/**
+	 * Schedule an event to be delivered at time <code>time</code>, coalescing it
+	 * with any pending event for the same target and key.
+	 * 
+	 * @see #coalesceEvent(EventProcessor, Event, Object, Coalescer)
+	 */
+	public void coalesceEventAbsolute(EventProcessor target, Event e, long time, Object key, Coalescer coalescer) {
+		coalesce(target, e, time, key, coalescer);
+	}
+
+	private void coalesce(EventProcessor target, Event e, Long time, Object key, Coalescer coalescer) {
+		if (target == null) {
+			throw new NullPointerException("target is null");
+		}
+		if (e == null) {
+			throw new NullPointerException("event is null");
+		}
+		if (key == null) {
+			throw new NullPointerException("key is null");
+		}
+		for (;;) {
+			ShardedEventingSystem s = shardedBy;
+			if (s != null) {
+				EventingSystem owner = s.shardFor(target);
+				if (owner != this) {
+					owner.coalesce(target, e, time, key, coalescer);
+					return;
+				}
+			}
+			synchronized (queue) {
+				if (currentOwner(target) != this) {
+					// the target migrated while this thread waited for the lock
+					continue;
+				}
+				if (coalescing == null) {
+					coalescing = new HashMap<>();
+				}
+				QueuedEvent pending = pendingCoalesced(target, key);
+				if (pending != null && !isEarlier(time, pending.deliveryTime)) {
+					coalescedEvents++;
+					Event merged = coalescer.merge(pending.event, e);
+					setEvent(pending, merged);
+					disposeUnqueued(e, merged);
+					return;
+				}
+				QueuedEvent qe = time == null ? qePool.allocate(target, e) : qePool.allocate(target, e, time);
+				if (!admit(qe, true)) {
+					return;
+				}
+				// admission may have waited for room, releasing the lock
+				if (currentOwner(target) != this) {
+					free(qe);
+					continue;
+				}
+				pending = pendingCoalesced(target, key);
+				CoalesceKey k;
+				if (pending != null) {
+					coalescedEvents++;
+					Event merged = coalescer.merge(pending.event, e);
+					if (!isEarlier(time, pending.deliveryTime)) {
+						setEvent(pending, merged);
+						free(qe);
+						return;
+					}
+					// the pending entry cannot move up in the heap; replace it
+					pending.dead = true;
+					setEvent(qe, merged);
+					k = pending.coalesceKey;
+					pending.coalesceKey = null;
+				} else {
+					k = new CoalesceKey(target, key);
+				}
+				qe.coalesceKey = k;
+				coalescing.put(k, qe);
+				insert(qe);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return the pending entry for (target, key), or <code>null</code>. The
+	 *         caller must hold the queue lock.
+	 */
+	private QueuedEvent pendingCoalesced(EventProcessor target, Object key) {
+		coalesceProbe.target = target;
+		coalesceProbe.key = key;
+		QueuedEvent pending = coalescing.get(coalesceProbe);
+		coalesceProbe.target = null;
+		coalesceProbe.key = null;
+		return pending;
+	}
+
+	/**
+	 * Replace the event of a queued entry, moving the entry's reference from the
+	 * old event to the new one.
+	 */
+	private static void setEvent(QueuedEvent qe, Event e) {
+		Event old = qe.event;
+		if (old == e) {
+			return;
+		}
+		if (e instanceof PooledEvent) {
+			((PooledEvent) e).retain();
+		}
+		qe.event = e;
+		if (old instanceof PooledEvent) {
+			((PooledEvent) old).release();
+		}
+	}
+
+	/**
+	 * Recycle a scheduled event that a {@link Coalescer} merged into a pending one,
+	 * if it was never queued and the merge did not keep it.
+	 */
+	private static void disposeUnqueued(Event e, Event merged) {
+		if (e != merged && e instanceof PooledEvent && ((PooledEvent) e).getReferenceCount() == 0) {
+			((PooledEvent) e).release();
+		}
+	}
+
+	/**
+	 * Return a queue entry to its pool, dropping its reference to its event.
+	 */
+	private void free(QueuedEvent qe) {
+		Event e = qe.event;
+		qe.event = null;
+		if (e instanceof PooledEvent) {
+			((PooledEvent) e).release();
+		}
+		qePool.free(qe);
+	}
+
+	/**
+	 * @return <code>true</code> if delivery time <code>a</code> (<code>null</code>
+	 *         meaning "now") precedes the queued delivery time <code>b</code>
+	 */
+	private static boolean isEarlier(Long a, long b) {
+		if (a == null) {
+			return b != IMMEDIATE;
+		}
+		return b != IMMEDIATE && a < b;
+	}
+
+	/**
+	 * @return the number of scheduled events that were merged into a pending event
+	 *         instead of being queued
+	 */
+	public long getCoalescedEvents() {
+		synchronized (queue) {
+			return coalescedEvents;
+		}
+	}
+
+	/**
+	 * Take the next entry from the queue. The caller must hold the queue lock.
+	 */
+	private QueuedEvent pollQueue() {
+		QueuedEvent qe = nextLane(true).poll();
+		if (qe != null) {
+			removed(qe);
+		}
+		return qe;
+	}
+
+	/**
+	 * Choose the lane from which the next entry is taken. In simulation mode, and
+	 * in realtime mode when no control event is due, this is the lane with the
+	 * earlier head (ties go to the control lane). In realtime mode, a due control
+	 * event is taken ahead of overdue bulk events, subject to the control lane
+	 * weight.
+	 * 
+	 * @param taking <code>true</code> if the caller takes the head of the lane,
+	 *               which counts toward the control lane weight;
+	 *               <code>false</code> if it only peeks
+	 */
+	private Queue<QueuedEvent> nextLane(boolean taking) {
+		Queue<QueuedEvent> bulkLane = bulkLane();
+		QueuedEvent control = controlLane.peek();
+		if (control == null) {
+			return bulkLane;
+		}
+		QueuedEvent bulk = bulkLane.peek();
+		if (bulk == null) {
+			if (taking) {
+				controlStreak = 0;
+			}
+			return controlLane;
+		}
+		boolean controlFirst = control.compareTo(bulk) <= 0;
+		if (realtime && !controlFirst
+				&& (control.deliveryTime == IMMEDIATE || control.deliveryTime <= System.currentTimeMillis())) {
+			controlFirst = controlLaneWeight == 0 || controlStreak < controlLaneWeight;
+		}
+		if (taking) {
+			controlStreak = controlFirst ? controlStreak + 1 : 0;
+		}
+		return controlFirst ? controlLane : bulkLane;
+	}
+
+	/**
+	 * @return whichever of the now lane and the bulk lane has the earlier head
+	 */
+	private Queue<QueuedEvent> bulkLane() {
+		QueuedEvent now = nowLane.peek();
+		if (now == null) {
+			return queue;
+		}
+		QueuedEvent timed = queue.peek();
+		return timed != null && timed.compareTo(now) < 0 ? queue : nowLane;
+	}
+
+	private Queue<QueuedEvent> laneOf(QueuedEvent qe) {
+		if (qe.priority >= PrioritizedEvent.CONTROL) {
+			return controlLane;
+		}
+		return qe.deliveryTime == IMMEDIATE && qe.priority == PrioritizedEvent.NORMAL ? nowLane : queue;
+	}
+
+	/**
+	 * @return the number of queued entries in all lanes. The caller must hold the
+	 *         queue lock.
+	 */
+	private int queued() {
+		return nowLane.size() + queue.size() + controlLane.size();
+	}
+
+	/**
+	 * Bookkeeping for an entry that has left the queue. The caller must hold the
+	 * queue lock.
+	 */
+	private void removed(QueuedEvent qe) {
+		if (qe.coalesceKey != null) {
+			// once taken, the entry can no longer absorb new events
+			coalescing.remove(qe.coalesceKey);
+		}
+		if (qe.producer != null) {
+			qe.producer.outstanding.decrementAndGet();
+		}
+		if (blockedProducers > 0) {
+			queue.notifyAll();
+		}
+	}
+
+	/**
+	 * Put back an entry that was taken with {@link #pollQueue()} but not
+	 * delivered. The caller must hold the queue lock.
+	 */
+	private void requeue(QueuedEvent qe) {
+		Queue<QueuedEvent> lane = laneOf(qe);
+		if (lane == nowLane) {
+			// it was the head
+			nowLane.addFirst(qe);
+		} else {
+			lane.add(qe);
+		}
+		if (qe.coalesceKey != null) {
+			coalescing.put(qe.coalesceKey, qe);
+		}
+		if (qe.producer != null) {
+			qe.producer.outstanding.incrementAndGet();
+		}
+	}
+
+	private void appendQueuedEvent(QueuedEvent qe) {
+		if (verbose) {
+			System.err.println(getCurrentTime() + ":\t" + this + " appending {" + qe + "}");
+			System.err.flush();
+		}
+		EventingSystem owner;
+		synchronized (queue) {
+			// the target may have migrated since the caller routed the event here
+			owner = currentOwner(qe.target);
+			if (owner == this) {
+				if (!admit(qe, true)) {
+					return;
+				}
+				// admission may have waited for room, releasing the lock
+				owner = currentOwner(qe.target);
+				if (owner == this) {
+					insert(qe);
+					return;
+				}
+			}
+		}
+		owner.appendQueuedEvent(qe);
+	}
+
+	/**
+	 * @return the shard that owns <code>target</code>: this system, unless a
+	 *         sharded system has migrated the target elsewhere. Called with the
+	 *         queue lock held, which {@link #migrate} holds while it moves a
+	 *         target.
+	 */
+	private EventingSystem currentOwner(EventProcessor target) {
+		ShardedEventingSystem s = shardedBy;
+		return s != null && s.hasMigrations() ? s.shardFor(target) : this;
+	}
+
+	/**
+	 * Add an admitted entry to the queue. The caller must hold the queue lock.
+	 */
+	private void insert(QueuedEvent qe) {
+		Profiler p = profiler;
+		if (p != null) {
+			qe.profileToken = p.pendingAdded(qe.target, qe.event, qe.getDeliveryTime());
+		}
+		qe.sequence = insertions++;
+		Queue<QueuedEvent> lane = laneOf(qe);
+		lane.add(qe);
+		int l = queued();
+		if (l > maxQueueLength) {
+			maxQueueLength = l;
+		}
+		if (lane.peek() == qe) {
+			wakeDispatcher();
+		}
+	}
+
+	/**
+	 * Wake the run threads that are waiting for events, including one that is
+	 * waiting in the selector. The caller must hold the queue lock.
+	 */
+	private void wakeDispatcher() {
+		queue.notifyAll();
+		if (selecting != null) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Apply the admission policy to a new entry, if the queue is full or the
+	 * entry's producer is out of credit. The caller must hold the queue lock.
+	 * 
+	 * @param qe     the new entry
+	 * @param caller <code>true</code> if the thread that scheduled the event is
+	 *               the one calling; <code>false</code> if the event is being
+	 *               drained from a channel, in which case the sender can neither
+	 *               wait nor be told, and a rejected event is dropped instead
+	 * @return <code>true</code> if the entry may be inserted; <code>false</code>
+	 *         if it was dropped (and released)
+	 * @throws RejectedExecutionException if the event is rejected
+	 */
+	private boolean admit(QueuedEvent qe, boolean caller) {
+		Producer producer = qe.producer;
+		if (capacity > 0 || producer != null) {
+			if (qe.priority < PrioritizedEvent.CONTROL && !hasRoom(producer)) {
+				switch (admissionPolicy) {
+				case BLOCK:
+					if (caller && !isRunThread()) {
+						waitForRoom(producer);
+						if (!hasRoom(producer)) {
+							return reject(qe, caller, "timed out waiting for room");
+						}
+					}
+					// else admit it beyond the capacity: the run thread cannot wait for itself
+					break;
+				case REJECT:
+					return reject(qe, caller, "the queue is full");
+				case DROP_OLDEST:
+				case DROP_LOWEST_PRIORITY:
+					if (producer != null && !producer.hasCredit()) {
+						return reject(qe, caller, producer + " is out of credit");
+					}
+					QueuedEvent victim = admissionPolicy == AdmissionPolicy.DROP_OLDEST ? oldestEntry()
+							: lowestPriorityEntry(qe.priority);
+					if (victim == null) {
+						droppedEvents++;
+						free(qe);
+						return false;
+					}
+					discard(victim);
+					break;
+				}
+			}
+			if (producer != null) {
+				producer.outstanding.incrementAndGet();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * How often a producer blocked on a shard looks for credit returned on other
+	 * shards.
+	 */
+	private static final long CREDIT_POLL_MILLIS = 10;
+
+	private boolean hasRoom(Producer producer) {
+		return (capacity == 0 || queued() < capacity) && (producer == null || producer.hasCredit());
+	}
+
+	private void waitForRoom(Producer producer) {
+		long deadline = System.currentTimeMillis() + blockTimeout;
+		blockedProducers++;
+		try {
+			while (!hasRoom(producer) && !terminated) {
+				long wait = 0;
+				if (blockTimeout > 0) {
+					wait = deadline - System.currentTimeMillis();
+					if (wait <= 0) {
+						break;
+					}
+				}
+				if (producer != null && shardedBy != null && (wait == 0 || wait > CREDIT_POLL_MILLIS)) {
+					// a credit returned on another shard does not notify this one
+					wait = CREDIT_POLL_MILLIS;
+				}
+				queue.wait(wait);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			blockedProducers--;
+		}
+	}
+
+	private boolean reject(QueuedEvent qe, boolean caller, String reason) {
+		Event e = qe.event;
+		if (caller && e instanceof PooledEvent) {
+			// the caller still owns the event, and may schedule it again
+			((PooledEvent) e).disown();
+			qe.event = null;
+		}
+		free(qe);
+		if (!caller) {
+			droppedEvents++;
+			return false;
+		}
+		rejectedEvents++;
+		throw new RejectedExecutionException(this + " rejected the event <" + e + ">: " + reason);
+	}
+
+	/**
+	 * @return <code>true</code> if the calling thread is running this system
+	 */
+	private boolean isRunThread() {
+		Thread t = Thread.currentThread();
+		for (DeliveryRecord r : deliveryRecords) {
+			if (r.getThread() == t) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the bulk entry that is next in line for delivery, passing over
+	 *         periodic entries (neither periodic schedules nor control events are
+	 *         ever dropped)
+	 */
+	private QueuedEvent oldestEntry() {
+		QueuedEvent head = bulkLane().peek();
+		if (head == null || head.periodic == null) {
+			return head;
+		}
+		// periodic entries are never immediate, so are all in the bulk lane
+		QueuedEvent oldest = nowLane.peek();
+		for (QueuedEvent q : queue) {
+			if (q.periodic == null && (oldest == null || q.compareTo(oldest) < 0)) {
+				oldest = q;
+			}
+		}
+		return oldest;
+	}
+
+	/**
+	 * Scan the bulk lane for the entry with the lowest priority, preferring the
+	 * one to be delivered last. This is O(n), but is only done when the queue is
+	 * full.
+	 * 
+	 * @return the entry, or <code>null</code> if no entry has a priority lower than
+	 *         <code>priority</code>
+	 */
+	private QueuedEvent lowestPriorityEntry(int priority) {
+		QueuedEvent lowest = null;
+		int lowestPriority = priority;
+		for (int i = 0; i < 2; i++) {
+			for (QueuedEvent q : i == 0 ? nowLane : queue) {
+				if (q.dead) {
+					// a superseded entry costs nothing to drop
+					return q;
+				}
+				if (q.periodic != null) {
+					continue;
+				}
+				if (q.priority < lowestPriority
+						|| (lowest != null && q.priority == lowestPriority && q.compareTo(lowest) > 0)) {
+					lowest = q;
+					lowestPriority = q.priority;
+				}
+			}
+		}
+		return lowest;
+	}
+
+	/**
+	 * Remove a queued entry to make room. The caller must hold the queue lock.
+	 */
+	private void discard(QueuedEvent victim) {
+		Queue<QueuedEvent> lane = laneOf(victim);
+		if (lane.peek() == victim) {
+			lane.poll();
+		} else {
+			lane.remove(victim);
+		}
+		removed(victim);
+		if (victim.profileToken != null) {
+			Profiler p = profiler;
+			if (p != null) {
+				p.pendingRemoved(victim.profileToken);
+			}
+		}
+		if (verbose) {
+			System.err.println(getCurrentTime() + ":\t" + this + " dropping {" + victim + "}");
+			System.err.flush();
+		}
+		if (!victim.dead) {
+			droppedEvents++;
+		}
+		free(victim);
+	}
+
+	/**
+	 * Bound the number of queued events. When an event is scheduled while the
+	 * queue holds <code>capacity</code> events, <code>policy</code> decides its
+	 * fate. Superseded coalesced entries count until they reach the head of the
+	 * queue; periodic schedules and control events count but are never dropped,
+	 * and control events are always admitted.
+	 * 
+	 * @param capacity the maximum number of queued events, or 0 for an unbounded
+	 *                 queue (the default)
+	 * @param policy   what to do with an event that does not fit
+	 * @see #setBlockTimeout(long, TimeUnit)
+	 * @see #createProducer(String, int)
+	 */
+	public void setCapacity(int capacity, AdmissionPolicy policy) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("capacity must not be negative");
+		}
+		if (policy == null) {
+			throw new NullPointerException("policy is null");
+		}
+		synchronized (queue) {
+			this.capacity = capacity;
+			this.admissionPolicy = policy;
+			queue.notifyAll();
+		}
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Set the largest number of events delivered in one call to a
+	 * {@link BatchEventProcessor}. This is also the most entries for other
+	 * processors that are passed over in gathering a batch.
+	 * 
+	 * @param max the maximum batch size; 1 delivers events to batch processors one
+	 *            at a time
+	 */
+	public void setMaxBatchSize(int max) {
+		if (max <= 0) {
+			throw new IllegalArgumentException("max must be positive");
+		}
+		synchronized (queue) {
+			maxBatchSize = max;
+		}
+	}
+
+	public int getMaxBatchSize() {
+		synchronized (queue) {
+			return maxBatchSize;
+		}
+	}
+
+	/**
+	 * Set how the control lane (events with priority
+	 * {@link PrioritizedEvent#CONTROL} or higher) is served in realtime mode when
+	 * the system is behind. With weight 0 (the default), a due control event is
+	 * always delivered before any overdue bulk event. With a positive weight, at
+	 * most <code>weight</code> control events are delivered in a row ahead of an
+	 * earlier bulk event, so that a flood of control events cannot starve the bulk
+	 * lane. In simulation mode, events are always delivered in time order, and
+	 * control events only win ties.
+	 * 
+	 * @param weight the weight of the control lane, or 0 for strict priority
+	 */
+	public void setControlLaneWeight(int weight) {
+		if (weight < 0) {
+			throw new IllegalArgumentException("weight must not be negative");
+		}
+		synchronized (queue) {
+			controlLaneWeight = weight;
+		}
+	}
+
+	public int getControlLaneWeight() {
+		return controlLaneWeight;
+	}
+
+	public AdmissionPolicy getAdmissionPolicy() {
+		return admissionPolicy;
+	}
+
+	/**
+	 * Set how long a producer waits for room under {@link AdmissionPolicy#BLOCK}
+	 * before its event is rejected.
+	 * 
+	 * @param timeout the maximum wait, or 0 to wait indefinitely (the default)
+	 * @param unit    the unit of <code>timeout</code>
+	 */
+	public void setBlockTimeout(long timeout, TimeUnit unit) {
+		if (timeout < 0) {
+			throw new IllegalArgumentException("timeout must not be negative");
+		}
+		blockTimeout = timeout == 0 ? 0 : Math.max(1, unit.toMillis(timeout));
+	}
+
+	/**
+	 * Create a producer that may have at most <code>credits</code> events pending
+	 * in this system at once.
+	 * 
+	 * @param name     the name of the producer, for diagnostics
+	 * @param credits  the producer's share of the queue
+	 * @return the producer, through which its events are scheduled
+	 * @see Producer
+	 */
+	public Producer createProducer(String name, int credits) {
+		return new Producer(this, name, credits);
+	}
+
+	/**
+	 * @return the number of events discarded by the admission policy, including
+	 *         rejected events that were drained from a channel
+	 */
+	public long getDroppedEvents() {
+		synchronized (queue) {
+			return droppedEvents;
+		}
+	}
 
-	private long totalEventsDelivered = 0;
-	private int maxQueueLength = 0;
+	/**
+	 * @return the number of events whose scheduling threw a
+	 *         {@link RejectedExecutionException}
+	 */
+	public long getRejectedEvents() {
+		synchronized (queue) {
+			return rejectedEvents;
+		}
+	}
 
-	private Set<EndCondition> endConditionsForEmptyQueue = null;
-	private Set<EndCondition> endConditionsForEventDelivery = null;
+	/**
+	 * Open a lock-free channel on which this EventingSystem (the sender) can send
+	 * timestamped events to <code>receiver</code>. The receiver drains the channel
+	 * in its own run loop, so sending does not contend for the receiver's queue
+	 * lock. Only the thread running this EventingSystem may send on the channel.
+	 * 
+	 * @param receiver the EventingSystem that hosts the targets of the events
+	 * @param capacity the number of events the channel can hold before senders
+	 *                 fall back to the locked scheduling path; rounded up to a
+	 *                 power of two
+	 * @return the channel
+	 * @see EventChannel
+	 */
+	public EventChannel openChannelTo(EventingSystem receiver, int capacity) {
+		if (receiver == this) {
+			throw new IllegalArgumentException("An EventingSystem cannot open a channel to itself");
+		}
+		EventChannel channel = new EventChannel(this, receiver, capacity);
+		receiver.addInboundChannel(channel);
+		return channel;
+	}
 
-	private QueuedEventPool qePool = new QueuedEventPool();
-	private String name;
-	private boolean terminated;
+	private void addInboundChannel(EventChannel channel) {
+		synchronized (queue) {
+			EventChannel[] old = inboundChannels;
+			EventChannel[] channels = new EventChannel[old.length + 1];
+			System.arraycopy(old, 0, channels, 0, old.length);
+			channels[old.length] = channel;
+			inboundChannels = channels;
+		}
+	}
 
-	private boolean zeroRelativeEventsAllowed;
-	
 	/**
-	 * In support of a pub-sub model
+	 * @return the channels on which other EventingSystems send events to this one
 	 */
-	private PubSubDepot pubsubDepot;
+	public EventChannel[] getInboundChannels() {
+		return inboundChannels.clone();
+	}
 
 	/**
-	 * Construct an EventingSystem with default attributes:
-	 * <ul>
-	 * <li><code>finestTimeUnit == {@link}TimeUnit.MILLISECONDS</code></li>
-	 * <li><code>realTime = false</code></li>
-	 * <li><code>realTimeMultiplier =</code> n/a</li>
-	 * </ul>
+	 * The earliest time at which an event may still arrive on an inbound channel:
+	 * the minimum of the channel times of all inbound channels. Events in this
+	 * system's queue that are earlier than the safe time can be delivered without
+	 * risk of a channel later delivering an earlier event.
+	 * <p>
+	 * A ring may still hold events older than its channel time, so the channels
+	 * are drained after their times are read: every event sent before that moment
+	 * is then in the queue, and any sent later is no earlier than the safe time.
 	 * 
-	 * @see #setFinestTimeUnit(TimeUnit)
+	 * @return the safe time, or <code>Long.MAX_VALUE</code> if there are no inbound
+	 *         channels
+	 * @see EventChannel#getChannelTime()
 	 */
-	public EventingSystem(boolean realtime) {
-		this.realtime = realtime;
-		queue = new PriorityQueue<QueuedEvent>();
+	public long getSafeTime() {
+		long safe = Long.MAX_VALUE;
+		EventChannel[] channels = inboundChannels;
+		for (EventChannel channel : channels) {
+			long t = channel.getChannelTime();
+			if (t < safe) {
+				safe = t;
+			}
+		}
+		if (channels.length > 0) {
+			synchronized (queue) {
+				drainChannels();
+			}
+		}
+		return safe;
 	}
 
-	public EventingSystem(String name, boolean realtime) {
-		this(realtime);
-		this.name = name;
+	/**
+	 * Invoked by a channel's sender after it has published an event (or advanced
+	 * the channel time). Only takes the queue lock if the run thread is waiting.
+	 */
+	void channelWritten() {
+		if (dispatcherWaiting) {
+			synchronized (queue) {
+				wakeDispatcher();
+			}
+		}
 	}
-	
-	public EventingSystem(String name, boolean realtime, boolean allowZeroRelativeEvents) {
-		this(realtime);
-		this.name = name;
-		this.zeroRelativeEventsAllowed = allowZeroRelativeEvents;
+
+	/**
+	 * Invoked by {@link EventChannel#drain()}, with the queue lock held.
+	 */
+	void enqueueFromChannel(EventProcessor target, Event e, long time) {
+		QueuedEvent qe = qePool.allocate(target, e, time);
+		if (verbose) {
+			System.err.println(getCurrentTime() + ":\t" + this + " received from a channel {" + qe + "}");
+			System.err.flush();
+		}
+		if (admit(qe, false)) {
+			insert(qe);
+		}
 	}
-	
-	public void allowZeroRelativeEvents() {
-		zeroRelativeEventsAllowed = true;
+
+	/**
+	 * Invoked by a channel's sender when the ring is full. The ring is drained
+	 * first, so that the event does not overtake the events sent before it. The
+	 * event is queued here, as if drained, rather than routed again: routing could
+	 * take a second queue lock while this one is held.
+	 */
+	void enqueueOverflow(EventChannel channel, EventProcessor target, Event e, long time) {
+		synchronized (queue) {
+			channel.drain();
+			QueuedEvent qe = qePool.allocate(target, e, time);
+			if (admit(qe, true)) {
+				insert(qe);
+			}
+		}
 	}
 
 	/**
-	 * Schedule an event to be delivered <code>timeRelative</code> time units in the
-	 * future.
+	 * Move the contents of the inbound channels into the queue. The caller must
+	 * hold the queue lock.
 	 * 
-	 * @param target       the EventProcess to deliver the event to
-	 * @param e            the Event to deliver
-	 * @param timeRelative the distance in the future to deliver the event, in the
-	 *                     system's {@link finestTimeUnit}.
-	 * @throws IllegalArgumentException if <code>timeRelative</code> is negative or
-	 *                                  zero
-	 * @see #getFinestTimeUnit()
+	 * @return the number of events moved
 	 */
-	public void scheduleEventRelative(EventProcessor target, Event e, long timeRelative) {
-		if (timeRelative < 0) {
-			throw new IllegalArgumentException("Events must be scheduled for now or in the future (timeRelative >= 0)");
+	private int drainChannels() {
+		int n = 0;
+		for (EventChannel channel : inboundChannels) {
+			n += channel.drain();
 		}
-		if (timeRelative == 0 && !zeroRelativeEventsAllowed) {
-			throw new IllegalArgumentException("Relative-scheduled events with timeRelative=0 are not allowed. See allowZeroRelativeEvents().");
+		return n;
+	}
+
+	/**
+	 * Wait on the queue, which the caller must have locked, unless there are
+	 * events waiting in the inbound channels. On return, the channels have been
+	 * drained into the queue.
+	 * 
+	 * @param waitMillis the maximum time to wait, or 0 to wait indefinitely
+	 */
+	private void waitForEvents(long waitMillis) throws InterruptedException {
+		dispatcherWaiting = true;
+		try {
+			if (drainChannels() == 0) {
+				queue.wait(waitMillis);
+			}
+		} finally {
+			dispatcherWaiting = false;
 		}
-		long now = getCurrentTime();
-		scheduleEventAbsolute(target, e, now + timeRelative);
+		drainChannels();
 	}
 
 	/**
-	 * Schedule an event to be delivered at time <code>time</code>. If the system is
-	 * running in real time, this may be a clock time. If not-real-time, this may be
-	 * in the EventingSystem's time frame (e.g., where the system started at time
-	 * 0).
+	 * Deliver the readiness of a channel to <code>target</code>, as a
+	 * {@link ChannelReadyEvent}, on the thread running this EventingSystem. Once a
+	 * channel is registered, a run thread with nothing to deliver waits in a
+	 * {@link Selector} instead of on the queue, until the next timed event is due
+	 * or a channel is ready, whichever comes first; and while events are being
+	 * delivered, it polls the selector every {@link #setSelectInterval(int)}
+	 * deliveries. So one thread serves both the timers and the I/O, with no reader
+	 * threads and no hand-off of the data through the queue.
+	 * <p>
+	 * The processor must do its I/O without blocking. The channel is put into
+	 * non-blocking mode, and the key's attachment is the processor, which must not
+	 * be replaced. On Java 11 and later, a channel may be registered (and a key's
+	 * interest set changed) from any thread; before that, only from a processor
+	 * running on the run thread.
 	 * 
-	 * @param target the EventProcess to deliver the event to
-	 * @param e      the Event to deliver
-	 * @param time   the time to deliver the event, in the system's
-	 *               {@link finestTimeUnit}.
-	 * @see #getFinestTimeUnit()
+	 * @param channel the channel
+	 * @param ops     the operations of interest, e.g.
+	 *                {@link SelectionKey#OP_READ}
+	 * @param target  the processor to which readiness is delivered
+	 * @return the key of the registration; cancel it, or close the channel, to stop
+	 *         the deliveries
+	 * @throws IOException if the selector cannot be opened or the channel cannot be
+	 *                     registered
 	 */
-	public void scheduleEventAbsolute(EventProcessor target, Event e, long time) {
+	public SelectionKey registerChannel(SelectableChannel channel, int ops, EventProcessor target)
+			throws IOException {
+		if (channel == null) {
+			throw new NullPointerException("channel");
+		}
 		if (target == null) {
-			throw new NullPointerException("target is null");
+			throw new NullPointerException("target");
 		}
-		if (e == null) {
-			throw new NullPointerException("event is null");
+		if (!realtime) {
+			throw new IllegalStateException("Channels can only be registered in realtime mode");
 		}
-		QueuedEvent qe = qePool.allocate(target, e, time);
-		appendQueuedEvent(qe);
+		Selector sel;
+		synchronized (queue) {
+			if (terminated) {
+				throw new IllegalStateException(this + " has been terminated");
+			}
+			sel = selector;
+			if (sel == null) {
+				sel = Selector.open();
+				selector = sel;
+			}
+		}
+		channel.configureBlocking(false);
+		return channel.register(sel, ops, target);
 	}
 
 	/**
-	 * Schedule an event to be delivered <code>timeRelative timeUnits</code> in the
-	 * future.
+	 * Set how many events a run thread delivers between polls of the registered
+	 * channels while events are waiting. Smaller values favor the latency of I/O;
+	 * larger ones the throughput of events, since each poll is a system call.
+	 */
+	public void setSelectInterval(int interval) {
+		if (interval <= 0) {
+			throw new IllegalArgumentException("interval must be positive");
+		}
+		this.selectInterval = interval;
+	}
+
+	public int getSelectInterval() {
+		return selectInterval;
+	}
+
+	/**
+	 * Claim the selector for the calling run thread, which must then call
+	 * {@link #select(long, DeliveryRecord)} once it has released the queue lock.
+	 * The caller must hold the queue lock.
 	 * 
-	 * @param target       the EventProcess to deliver the event to
-	 * @param e            the Event to deliver
-	 * @param timeRelative the distance in the future to deliver the event, in the
-	 *                     system's {@link finestTimeUnit}.
-	 * @param timeUnit     the time unit of <code>timeRelative</code>. Should be
-	 *                     equal or less granular than the {@link #finestTimeUnit}.
-	 * @throws IllegalArgumentException if <code>timeRelative</code> is negative or
-	 *                                  zero
-	 * @see #getFinestTimeUnit()
+	 * @param waitMillis the longest to wait in the selector, 0 to wait
+	 *                   indefinitely, or {@link #SELECT_NOW} not to wait
+	 * @return the wait to pass to select(), which is {@link #SELECT_NOW} if events
+	 *         arrived on an inbound channel; or {@link #NO_SELECT} if there is no
+	 *         selector or another run thread has claimed it
 	 */
-	public void scheduleEventRelative(EventProcessor target, Event e, long timeRelative, TimeUnit timeUnit) {
-		if (timeRelative < 0) {
-			throw new IllegalArgumentException("Events must be scheduled for now or in the future (timeRelative >= 0)");
+	private long claimSelector(long waitMillis) {
+		if (selector == null || selecting != null) {
+			return NO_SELECT;
 		}
-		long now = getCurrentTime();
-		scheduleEventAbsolute(target, e, now + finestTimeUnit.convert(timeRelative, timeUnit));
+		selecting = Thread.currentThread();
+		// from here on, a sender wakes the selector; so look once more
+		dispatcherWaiting = true;
+		if (drainChannels() > 0) {
+			return SELECT_NOW;
+		}
+		return waitMillis;
 	}
 
-	public void scheduleEventAbsolute(EventProcessor target, Event e, long time, TimeUnit timeUnit) {
-		long t = finestTimeUnit.convert(time, timeUnit);
-		if (t < getCurrentTime()) {
-			throw new IllegalArgumentException("Event scheduled for " + finestTimeUnit.convert(time, timeUnit)
-					+ ", current time = " + getCurrentTime());
+	/**
+	 * Wait in the selector, which the calling run thread has claimed, and deliver
+	 * the readiness of the selected channels. The queue lock must not be held.
+	 */
+	private void select(long waitMillis, DeliveryRecord record) {
+		Selector sel = selector;
+		Set<SelectionKey> selected;
+		try {
+			if (waitMillis == SELECT_NOW) {
+				sel.selectNow();
+			} else {
+				sel.select(waitMillis);
+			}
+			selected = sel.selectedKeys();
+		} catch (ClosedSelectorException e) {
+			// terminated
+			return;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			synchronized (queue) {
+				selecting = null;
+				dispatcherWaiting = false;
+			}
+		}
+		Iterator<SelectionKey> keys = selected.iterator();
+		while (keys.hasNext() && !terminated && !stopRequested) {
+			SelectionKey key = keys.next();
+			keys.remove();
+			if (!key.isValid()) {
+				// cancelled by an earlier delivery
+				continue;
+			}
+			Event e = new ChannelReadyEvent(key, key.readyOps());
+			totalEventsDelivered++;
+			currentTime = getCurrentTime();
+			if (verbose) {
+				System.err.println(currentTime + ":\t" + this + " delivering <" + e + "> to " + key.attachment());
+				System.err.flush();
+			}
+			deliver((EventProcessor) key.attachment(), e, null, record);
 		}
-		scheduleEventAbsolute(target, e, t);
 	}
 
 	/**
-	 * Schedule an event to be delivered now.
+	 * Invoked by the {@link ShardedEventingSystem} that creates this system.
+	 */
+	void joinShards(ShardedEventingSystem sharded, int index) {
+		this.shardedBy = sharded;
+		this.shardIndex = index;
+	}
+
+	int getShardIndex() {
+		return shardIndex;
+	}
+
+	/**
+	 * Turn per-target load tracking on or off.
+	 */
+	void setLoadTracking(boolean on) {
+		targetLoad = on ? new IdentityHashMap<EventProcessor, long[]>() : null;
+	}
+
+	/**
+	 * @return the per-target load collected since the last call, or
+	 *         <code>null</code>; invoked at a safepoint
+	 */
+	Map<EventProcessor, long[]> takeLoad() {
+		Map<EventProcessor, long[]> load = targetLoad;
+		if (load != null) {
+			targetLoad = new IdentityHashMap<EventProcessor, long[]>();
+		}
+		return load;
+	}
+
+	/**
+	 * Wake the run thread so that it reaches the safepoint at the top of its loop.
+	 */
+	void requestPause() {
+		pauseRequested = true;
+		synchronized (queue) {
+			wakeDispatcher();
+		}
+	}
+
+	/**
+	 * Move the pending events of <code>target</code>, including those still in the
+	 * inbound channels, to shard <code>to</code>. Invoked at a safepoint. The
+	 * queue locks of both shards are taken, in shard order, and held while
+	 * <code>place</code> publishes the target's new placement and the events move.
+	 * A thread that schedules for the target therefore either queues its event
+	 * here before the move, or sees the new placement and queues it on
+	 * <code>to</code> after the moved events.
 	 * 
-	 * @param target the receipient of the event
-	 * @param e      the event to deliver
+	 * @return the number of events moved
 	 */
-	public void scheduleEvent(EventProcessor target, Event e) {
-		QueuedEvent qe = qePool.allocate(target, e);
-		appendQueuedEvent(qe);
+	int migrate(EventProcessor target, EventingSystem to, Runnable place) {
+		EventingSystem first = shardIndex < to.shardIndex ? this : to;
+		EventingSystem second = first == this ? to : this;
+		synchronized (first.queue) {
+			synchronized (second.queue) {
+				place.run();
+				drainChannels();
+				List<QueuedEvent> moved = new ArrayList<>();
+				for (Queue<QueuedEvent> lane : lanes) {
+					take(lane, target, moved);
+				}
+				// adopt() numbers the entries afresh, so they must arrive in delivery order
+				Collections.sort(moved);
+				int n = 0;
+				for (QueuedEvent qe : moved) {
+					if (!qe.dead) {
+						to.adopt(qe);
+						n++;
+					}
+					free(qe);
+				}
+				migratedOut++;
+				to.migratedIn++;
+				return n;
+			}
+		}
 	}
 
-	private void appendQueuedEvent(QueuedEvent qe) {
-		if (verbose) {
-			System.err.println(getCurrentTime() + ":\t" + this + " appending {" + qe + "}");
-			System.err.flush();
+	private void take(Queue<QueuedEvent> lane, EventProcessor target, List<QueuedEvent> moved) {
+		for (Iterator<QueuedEvent> it = lane.iterator(); it.hasNext();) {
+			QueuedEvent qe = it.next();
+			if (qe.target != target) {
+				continue;
+			}
+			it.remove();
+			removed(qe);
+			if (qe.profileToken != null) {
+				Profiler p = profiler;
+				if (p != null) {
+					p.pendingRemoved(qe.profileToken);
+				}
+			}
+			moved.add(qe);
 		}
+	}
+
+	/**
+	 * Queue a copy of an entry taken from another shard's queue, bypassing the
+	 * admission policy (the event was admitted by the other shard).
+	 */
+	private void adopt(QueuedEvent from) {
 		synchronized (queue) {
-			queue.add(qe);
-			int l = queue.size();
-			if (l > maxQueueLength) {
-				maxQueueLength = l;
+			QueuedEvent qe = qePool.allocate(from.target, from.event, from.deliveryTime);
+			qe.periodic = from.periodic;
+			qe.producer = from.producer;
+			if (qe.producer != null) {
+				qe.producer.outstanding.incrementAndGet();
 			}
-			if (queue.peek() == qe) {
-				queue.notifyAll();
+			if (from.coalesceKey != null) {
+				if (coalescing == null) {
+					coalescing = new HashMap<>();
+				}
+				qe.coalesceKey = from.coalesceKey;
+				coalescing.put(qe.coalesceKey, qe);
 			}
+			insert(qe);
+		}
+	}
+
+	/**
+	 * @return the number of queue entries allocated from a thread's cache, rather
+	 *         than from the shared pool
+	 */
+	public long getPoolHits() {
+		return qePool.getStatistics()[0];
+	}
+
+	/**
+	 * @return the number of queue entries that a thread allocated from the shared
+	 *         pool, its cache and the depot of freed entries being empty
+	 */
+	public long getPoolMisses() {
+		return qePool.getStatistics()[1];
+	}
+
+	/**
+	 * @return the number of magazines of queue entries that threads have passed
+	 *         through the depot
+	 */
+	public long getPoolExchanges() {
+		return qePool.getStatistics()[2];
+	}
+
+	/**
+	 * @return the number of processors that have been migrated to this shard
+	 */
+	public long getMigratedIn() {
+		synchronized (queue) {
+			return migratedIn;
+		}
+	}
+
+	/**
+	 * @return the number of processors that have been migrated away from this
+	 *         shard
+	 */
+	public long getMigratedOut() {
+		synchronized (queue) {
+			return migratedOut;
 		}
 	}
 
+	/**
+	 * @return the sharded system of which this is a shard, or <code>null</code>
+	 */
+	public ShardedEventingSystem getShardedEventingSystem() {
+		return shardedBy;
+	}
+
 	/**
 	 * Obtain the current time of the system. If the system is operating in real
 	 * time, then this is either the clock time or, if the EventSystem is operating
@@ -282,25 +1678,74 @@ public class EventingSystem implements Runnable {
 			System.err.println(this + " entered run().");
 			System.err.flush();
 		}
+		DeliveryRecord record = new DeliveryRecord(Thread.currentThread());
 		synchronized (this) {
 			threadCount++;
+			DeliveryRecord[] old = deliveryRecords;
+			DeliveryRecord[] records = new DeliveryRecord[old.length + 1];
+			System.arraycopy(old, 0, records, 0, old.length);
+			records[old.length] = record;
+			deliveryRecords = records;
+		}
+		try {
+			runLoop(record);
+		} finally {
+			synchronized (this) {
+				threadCount--;
+				DeliveryRecord[] old = deliveryRecords;
+				DeliveryRecord[] records = new DeliveryRecord[old.length - 1];
+				int j = 0;
+				for (DeliveryRecord r : old) {
+					if (r != record) {
+						records[j++] = r;
+					}
+				}
+				deliveryRecords = records;
+				record.addHistogramTo(retiredHistogram);
+			}
 		}
+	}
+
+	private void runLoop(DeliveryRecord record) {
 		boolean running = true;
 		startTime = getCurrentTime();
 		QueuedEvent qe = null;
-		while (running && !terminated) {
+		Batch batch = null;
+		long selectFor = NO_SELECT;
+		int sinceSelect = 0;
+		while (running && !terminated && !stopRequested) {
 			if (qe != null) {
-				qe.release();
+				// drops the queue's reference to a pooled event, after process()
+				free(qe);
+				qe = null;
+			}
+			if (pauseRequested) {
+				shardedBy.safepoint(this);
+			}
+			if (selectFor != NO_SELECT) {
+				// claimed while the queue was locked
+				select(selectFor, record);
+				selectFor = NO_SELECT;
+				sinceSelect = 0;
+				continue;
 			}
 			synchronized (queue) {
-				qe = queue.poll();
-				while (qe == null && running && !terminated) {
+				if (sinceSelect >= selectInterval) {
+					sinceSelect = 0;
+					selectFor = claimSelector(SELECT_NOW);
+					if (selectFor != NO_SELECT) {
+						continue;
+					}
+				}
+				drainChannels();
+				qe = pollQueue();
+				while (qe == null && running && !terminated && !stopRequested && !pauseRequested) {
 					if (endWhenEmpty) {
 						running = false;
 						continue;
 					}
 					// else, wait for a new event to arrive
-					while (queue.isEmpty()) {
+					while (queued() == 0) {
 						if (endConditionsForEmptyQueue != null) {
 							for (EndCondition ec : endConditionsForEmptyQueue) {
 								if (ec.taskIsComplete()) {
@@ -312,6 +1757,9 @@ public class EventingSystem implements Runnable {
 								break;
 							}
 						}
+						if (stopRequested || terminated || pauseRequested) {
+							break;
+						}
 						if (verbose) {
 							System.err.println(this + " waiting for the queue to become not-empty.");
 							System.err.flush();
@@ -321,7 +1769,11 @@ public class EventingSystem implements Runnable {
 							if (endConditionsForEmptyQueue != null) {
 								waitMillis = 100; // check condition every 10th of a second
 							}
-							queue.wait(waitMillis, 0);
+							selectFor = claimSelector(waitMillis);
+							if (selectFor != NO_SELECT) {
+								break;
+							}
+							waitForEvents(waitMillis);
 						} catch (InterruptedException e) {
 							running = false;
 							break;
@@ -331,14 +1783,25 @@ public class EventingSystem implements Runnable {
 							System.err.flush();
 						}
 					}
-					qe = queue.poll();
+					if (selectFor != NO_SELECT) {
+						break;
+					}
+					qe = pollQueue();
+				}
+				if (selectFor != NO_SELECT) {
+					// wait in the selector, outside the lock
+					continue;
+				}
+				if (qe == null && running && pauseRequested && !terminated && !stopRequested) {
+					// go to the safepoint
+					continue;
 				}
 				if (qe == null || running == false) {
 					running = false;
 					continue;
 				}
 
-				if (realtime && qe.deliveryTime != null) {
+				if (realtime && qe.deliveryTime != IMMEDIATE) {
 					if (verbose) {
 						System.out.println(this + " has an event to be delivered at " + qe.deliveryTime);
 					}
@@ -348,10 +1811,14 @@ public class EventingSystem implements Runnable {
 						if (verbose) {
 							System.out.println("now=" + now + ", wait for " + delta + " ms");
 						}
-						queue.add(qe);
+						requeue(qe);
 						qe = null;
+						selectFor = claimSelector(delta);
+						if (selectFor != NO_SELECT) {
+							continue;
+						}
 						try {
-							queue.wait(delta);
+							waitForEvents(delta);
 						} catch (InterruptedException e) {
 							running = false;
 							terminated = true;
@@ -362,47 +1829,232 @@ public class EventingSystem implements Runnable {
 				}
 
 			}
-			if (endConditionsForEventDelivery != null) {
-				for (EndCondition ec : endConditionsForEventDelivery) {
-					if (ec.taskIsComplete()) {
-						running = false;
-						break;
-					}
+			long now = qe.deliveryTime;
+			long time = now != IMMEDIATE ? now : currentTime;
+			EndConditions ec = endConditions;
+			if ((endTime > 0 && time > endTime) || (ec != null
+					&& (totalEventsDelivered >= ec.nextCountCheck || time >= ec.nextTimeCheck)
+					&& ec.evaluate(totalEventsDelivered, time))) {
+				// return the event to the queue, so that a subsequent run() resumes here
+				synchronized (queue) {
+					requeue(qe);
+				}
+				qe = null;
+				running = false;
+				continue;
+			}
+			if (qe.profileToken != null) {
+				Profiler p = profiler;
+				if (p != null) {
+					p.pendingRemoved(qe.profileToken);
 				}
-				if (!running) {
+				qe.profileToken = null;
+			}
+			PeriodicSchedule ps = qe.periodic;
+			if (qe.dead || (ps != null && ps.isCancelled())) {
+				continue;
+			}
+			if (shardedBy != null && shardedBy.hasMigrations()) {
+				EventingSystem owner = shardedBy.shardFor(qe.target);
+				if (owner != this) {
+					// a safety net: the scheduling paths check the owner under the queue lock
+					owner.adopt(qe);
+					free(qe);
 					continue;
 				}
 			}
 			totalEventsDelivered++;
-			Long now = qe.getDeliveryTime();
-			if (now != null) {
-				currentTime = now;
-			}
-			if (endTime > 0 && currentTime > endTime) {
-				return;
-			}
+			sinceSelect++;
+			currentTime = time;
 			if (verbose) {
 				System.err.println(
 						getCurrentTime() + ":\t" + this + " delivering <" + qe.getEvent() + "> to " + qe.getTarget());
 				System.err.flush();
 			}
-			qe.getTarget().process(qe.getEvent(), this, currentTime);
+			if (timingEnabled && realtime && now != IMMEDIATE) {
+				totalDispatchLag += getCurrentTime() - now;
+				dispatchLagCount++;
+			}
+			if (qe.target instanceof BatchEventProcessor) {
+				if (batch == null) {
+					batch = new Batch();
+				}
+				// periodic entries are delivered alone, so that they can be re-keyed
+				if (deliverBatch(qe, ps == null, batch, record, ec)) {
+					running = false;
+				}
+			} else {
+				deliver(qe.getTarget(), qe.getEvent(), null, record);
+				if (ec != null && ec.hasEventClasses() && ec.endsOn(qe.getEvent())) {
+					running = false;
+				}
+			}
+			if (ps != null && !ps.isCancelled()) {
+				// re-key the resident entry rather than releasing it
+				qe.deliveryTime = ps.next(time, getCurrentTime());
+				synchronized (queue) {
+					// a periodic schedule is admitted once, when it is created
+					insert(qe);
+				}
+				qe = null;
+			}
 		}
+		stopRequested = false;
 		if (verbose) {
 			System.err.println(
 					currentTime + ":\t" + this + " terminating the run loop. qe = " + qe + ", running = " + running);
 			System.err.flush();
 		}
-		synchronized (this) {
-			threadCount--;
+	}
+
+	/**
+	 * Deliver <code>first</code>, and, if <code>gather</code> is set, the other
+	 * entries for the same target with the same delivery time, in one call to
+	 * {@link BatchEventProcessor#processBatch(List, EventingSystem, long)}. The
+	 * entries for other targets that are passed over are put back, in order; no
+	 * more than the maximum batch size of them is passed over.
+	 * 
+	 * @return <code>true</code> if an event in the batch is one on which the end
+	 *         conditions end the run
+	 */
+	private boolean deliverBatch(QueuedEvent first, boolean gather, Batch batch, DeliveryRecord record,
+			EndConditions ec) {
+		List<QueuedEvent> entries = batch.entries;
+		List<Event> events = batch.events;
+		entries.add(first);
+		events.add(first.event);
+		if (gather) {
+			synchronized (queue) {
+				List<QueuedEvent> skipped = batch.skipped;
+				while (entries.size() < maxBatchSize && skipped.size() < maxBatchSize) {
+					Queue<QueuedEvent> lane = nextLane(false);
+					QueuedEvent qe = lane.peek();
+					if (qe == null || qe.deliveryTime != first.deliveryTime) {
+						break;
+					}
+					lane.poll();
+					removed(qe);
+					if (qe.target != first.target || qe.periodic != null) {
+						skipped.add(qe);
+						continue;
+					}
+					if (qe.profileToken != null) {
+						Profiler p = profiler;
+						if (p != null) {
+							p.pendingRemoved(qe.profileToken);
+						}
+						qe.profileToken = null;
+					}
+					if (qe.dead) {
+						free(qe);
+						continue;
+					}
+					entries.add(qe);
+					events.add(qe.event);
+				}
+				// in reverse, so that the now lane gets them back in order
+				for (int i = skipped.size() - 1; i >= 0; i--) {
+					requeue(skipped.get(i));
+				}
+				skipped.clear();
+			}
+		}
+		totalEventsDelivered += events.size() - 1;
+		if (verbose && events.size() > 1) {
+			System.err.println(getCurrentTime() + ":\t" + this + " delivering a batch of " + events.size()
+					+ " events to " + first.target);
+			System.err.flush();
+		}
+		boolean end = false;
+		try {
+			deliver(first.target, first.event, events, record);
+			if (ec != null && ec.hasEventClasses()) {
+				for (Event e : events) {
+					end |= ec.endsOn(e);
+				}
+			}
+		} finally {
+			// the first entry is freed by the run loop
+			for (int i = 1; i < entries.size(); i++) {
+				free(entries.get(i));
+			}
+			entries.clear();
+			events.clear();
+		}
+		return end;
+	}
+
+	/**
+	 * Invoke the target's process() method, timing the call if timing is enabled,
+	 * if this delivery is sampled by the profiler, or if deliveries are tracked.
+	 * 
+	 * @param batch if not <code>null</code>, the events to deliver to a
+	 *              {@link BatchEventProcessor}, of which <code>event</code> is the
+	 *              first
+	 */
+	private void deliver(EventProcessor target, Event event, List<Event> batch, DeliveryRecord record) {
+		Profiler p = profiler;
+		boolean sampled = p != null && --profileCountdown <= 0;
+		Map<EventProcessor, long[]> load = targetLoad;
+		if (timingEnabled || sampled || trackDeliveries || load != null) {
+			long start = System.nanoTime();
+			long elapsed;
+			if (trackDeliveries) {
+				record.begin(target, event, start);
+				try {
+					dispatch(target, event, batch);
+				} finally {
+					elapsed = System.nanoTime() - start;
+					record.end(elapsed);
+				}
+			} else {
+				dispatch(target, event, batch);
+				elapsed = System.nanoTime() - start;
+			}
+			if (timingEnabled) {
+				totalProcessingNanos += elapsed;
+				timedDeliveries += batch == null ? 1 : batch.size();
+			}
+			if (sampled) {
+				profileCountdown = p.getSampleInterval();
+				p.sampleDelivery(target, event, elapsed);
+			}
+			if (load != null) {
+				long[] l = load.get(target);
+				if (l == null) {
+					l = new long[2];
+					load.put(target, l);
+				}
+				l[0] += elapsed;
+				l[1] += batch == null ? 1 : batch.size();
+			}
+		} else {
+			dispatch(target, event, batch);
+		}
+	}
+
+	/**
+	 * A run thread's scratch lists for gathering batches.
+	 */
+	private static class Batch {
+		private final List<QueuedEvent> entries = new ArrayList<>();
+		private final List<Event> events = new ArrayList<>();
+		private final List<QueuedEvent> skipped = new ArrayList<>();
+	}
+
+	private void dispatch(EventProcessor target, Event event, List<Event> batch) {
+		if (batch == null) {
+			target.process(event, this, currentTime);
+		} else {
+			((BatchEventProcessor) target).processBatch(batch, this, currentTime);
 		}
 	}
 
 	/**
 	 * A struct used to hold the elements of a queued event. It is a
 	 * {@link Comparable} class; the events are sorted in the queue based on their
-	 * delivery times. A <code>null</code> delivery means deliver
-	 * immediately&mdash;such objects move to the front of the queue.
+	 * delivery times. A delivery time of {@link EventingSystem#IMMEDIATE} means
+	 * deliver immediately&mdash;such objects move to the front of the queue.
 	 * 
 	 * <code>QueuedEvent</code> extends {@link AbstractPooledObject} and is pooled.
 	 * 
@@ -417,32 +2069,71 @@ public class EventingSystem implements Runnable {
 
 		private EventProcessor target;
 		private Event event;
-		private Long deliveryTime;
+		/** The delivery time, or {@link EventingSystem#IMMEDIATE}. */
+		private long deliveryTime;
+		/** Set if the {@link Profiler} is tracking this event while it is queued. */
+		private Object profileToken;
+		/** Set if this is the resident entry of a periodic schedule. */
+		private PeriodicSchedule periodic;
+		/** Set if this entry was scheduled with a coalescing key. */
+		private CoalesceKey coalesceKey;
+		/** Set if this entry was superseded and must not be delivered. */
+		private boolean dead;
+		/** Set if the event was scheduled through a {@link Producer}. */
+		private Producer producer;
+		/** The priority of the event, fixed while the entry is queued. */
+		private int priority;
+		/** The order in which the entry was inserted, among entries of equal rank. */
+		private long sequence;
 
 		public QueuedEvent(ObjectPool<QueuedEvent> pool) {
 			super(pool);
 		}
 
-		public void initialize(EventProcessor target, Event event, Long deliveryTime) {
+		public void initialize(EventProcessor target, Event event, long deliveryTime) {
 			super.initialize();
 			this.target = target;
 			this.event = event;
 			this.deliveryTime = deliveryTime;
+			this.profileToken = null;
+			this.periodic = null;
+			this.coalesceKey = null;
+			this.dead = false;
+			this.producer = null;
+			this.priority = event instanceof PrioritizedEvent ? ((PrioritizedEvent) event).getPriority()
+					: PrioritizedEvent.NORMAL;
+			if (event instanceof PooledEvent) {
+				((PooledEvent) event).retain();
+			}
 		}
 
 		public void initialize(EventProcessor target, Event event) {
 			super.initialize();
 			this.target = target;
 			this.event = event;
-			this.deliveryTime = null;
+			this.deliveryTime = IMMEDIATE;
+			this.profileToken = null;
+			this.periodic = null;
+			this.coalesceKey = null;
+			this.dead = false;
+			this.producer = null;
+			this.priority = event instanceof PrioritizedEvent ? ((PrioritizedEvent) event).getPriority()
+					: PrioritizedEvent.NORMAL;
+			if (event instanceof PooledEvent) {
+				((PooledEvent) event).retain();
+			}
 		}
 
 		public EventProcessor getTarget() {
 			return target;
 		}
 
+		/**
+		 * @return the delivery time, or <code>null</code> for an event to be
+		 *         delivered immediately
+		 */
 		public Long getDeliveryTime() {
-			return deliveryTime;
+			return deliveryTime == IMMEDIATE ? null : deliveryTime;
 		}
 
 		public Event getEvent() {
@@ -450,55 +2141,243 @@ public class EventingSystem implements Runnable {
 		}
 
 		/**
-		 * Sorts events by their delivery time.
+		 * Sorts events by their delivery time, among events with the same delivery
+		 * time by decreasing priority, and then in the order in which they were
+		 * queued.
 		 * 
 		 * @see java.lang.Comparable#compareTo(java.lang.Object)
 		 */
 		@Override
 		public int compareTo(QueuedEvent qe) {
-			if (deliveryTime == null) {
-				if (qe.deliveryTime == null) {
-					return 0;
-				}
-				return -1;
-			}
-			if (qe.deliveryTime == null) {
-				return 1;
+			// IMMEDIATE is the smallest long, so immediate events sort first
+			int c = Long.compare(deliveryTime, qe.deliveryTime);
+			if (c != 0) {
+				return c;
 			}
-			return deliveryTime.compareTo(qe.deliveryTime);
+			c = Integer.compare(qe.priority, priority);
+			return c != 0 ? c : Long.compare(sequence, qe.sequence);
 		}
 
 		@Override
 		public String toString() {
-			return "event <" + event + "> to be delivered @" + deliveryTime + " to " + target;
+			return "event <" + event + "> to be delivered @" + getDeliveryTime() + " to " + target;
+		}
+
+	}
+
+	/**
+	 * The (target, key) pair under which a coalescing event is pending. Targets are
+	 * compared by identity, keys by equality.
+	 */
+	private static class CoalesceKey {
+		private EventProcessor target;
+		private Object key;
+
+		CoalesceKey(EventProcessor target, Object key) {
+			this.target = target;
+			this.key = key;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(target) * 31 + key.hashCode();
 		}
 
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof CoalesceKey)) {
+				return false;
+			}
+			CoalesceKey k = (CoalesceKey) o;
+			return target == k.target && key.equals(k.key);
+		}
 	}
 
 	/**
-	 * The {@link ObjectPool} that holds the {@link QueuedEvents}.
+	 * The {@link ObjectPool} that holds the {@link QueuedEvents}. Entries are
+	 * scheduled on producer threads and freed on the run thread, so each thread
+	 * keeps a cache of entries in front of the shared pool: a <em>magazine</em>, an
+	 * array of up to {@link #MAGAZINE_SIZE} entries that it allocates from and
+	 * frees into without locking. A thread whose magazine fills hands it, whole, to
+	 * a shared depot, and a thread whose magazine empties takes a full one
+	 * from the depot; so the run thread's freed entries go back to the producers
+	 * in bulk, one lock acquisition per magazine. The shared pool is used only
+	 * when the depot is empty (a miss) or full. Freed entries go to the depot
+	 * for any thread to take, not back to the thread that allocated them.
+	 * <p>
+	 * A cache refers to its thread weakly. When a thread with a cache is found to
+	 * have died (checked whenever another thread registers a cache, and when the
+	 * statistics are read), its entries are returned to the shared pool and its
+	 * cache is dropped, so that short-lived producer threads do not accumulate.
 	 * 
 	 * @author Greg Frazier
 	 *
 	 */
 	private static class QueuedEventPool extends ObjectPool<QueuedEvent> {
 
+		private static final int MAGAZINE_SIZE = 64;
+		private static final int DEPOT_SIZE = 1024;
+
+		/** Full magazines, and empty ones; guarded by <code>depot</code>. */
+		private final ArrayDeque<QueuedEvent[]> depot = new ArrayDeque<>();
+		private final ArrayDeque<QueuedEvent[]> empties = new ArrayDeque<>();
+		/** The caches of the threads that may still use them; guarded by itself. */
+		private final List<Cache> caches = new ArrayList<>();
+		/** The statistics of the caches of dead threads; guarded by caches. */
+		private final long[] retired = new long[3];
+		private final ThreadLocal<Cache> cache = new ThreadLocal<Cache>() {
+			@Override
+			protected Cache initialValue() {
+				Cache c = new Cache(Thread.currentThread());
+				synchronized (caches) {
+					reclaim();
+					caches.add(c);
+				}
+				return c;
+			}
+		};
+
 		public QueuedEventPool() {
 			super(QueuedEvent.class);
 		}
 
-		public QueuedEvent allocate(EventProcessor target, Event event, Long deliveryTime) {
-			QueuedEvent r = super.getInstance();
+		public QueuedEvent allocate(EventProcessor target, Event event, long deliveryTime) {
+			QueuedEvent r = take();
 			r.initialize(target, event, deliveryTime);
 			return r;
 		}
 
 		public QueuedEvent allocate(EventProcessor target, Event event) {
-			QueuedEvent r = super.getInstance();
+			QueuedEvent r = take();
 			r.initialize(target, event);
 			return r;
 		}
 
+		private QueuedEvent take() {
+			Cache c = cache.get();
+			if (c.count == 0 && !c.reload()) {
+				c.misses++;
+				return super.getInstance();
+			}
+			c.hits++;
+			QueuedEvent qe = c.magazine[--c.count];
+			c.magazine[c.count] = null;
+			return qe;
+		}
+
+		public void free(QueuedEvent qe) {
+			Cache c = cache.get();
+			if (c.count == MAGAZINE_SIZE) {
+				c.unload();
+			}
+			c.magazine[c.count++] = qe;
+		}
+
+		/**
+		 * @return {hits, misses, depot exchanges}, summed over the threads' caches;
+		 *         read without synchronizing with the threads, so approximate
+		 */
+		long[] getStatistics() {
+			long[] stats = new long[3];
+			synchronized (caches) {
+				reclaim();
+				System.arraycopy(retired, 0, stats, 0, stats.length);
+				for (Cache c : caches) {
+					stats[0] += c.hits;
+					stats[1] += c.misses;
+					stats[2] += c.exchanges;
+				}
+			}
+			return stats;
+		}
+
+		/**
+		 * Drop the caches of threads that have died, returning their entries to the
+		 * shared pool. The caller must hold the lock on <code>caches</code>.
+		 */
+		private void reclaim() {
+			for (Iterator<Cache> it = caches.iterator(); it.hasNext();) {
+				Cache c = it.next();
+				Thread t = c.thread.get();
+				if (t != null && t.isAlive()) {
+					continue;
+				}
+				// the thread has ended, so nothing else touches its cache
+				it.remove();
+				for (int i = 0; i < c.count; i++) {
+					c.magazine[i].release();
+					c.magazine[i] = null;
+				}
+				c.count = 0;
+				retired[0] += c.hits;
+				retired[1] += c.misses;
+				retired[2] += c.exchanges;
+			}
+		}
+
+		/**
+		 * One thread's magazine. Touched only by its thread, except for the
+		 * statistics, and by {@link QueuedEventPool#reclaim()} once the thread has
+		 * died.
+		 */
+		private class Cache {
+			private final WeakReference<Thread> thread;
+			private QueuedEvent[] magazine = new QueuedEvent[MAGAZINE_SIZE];
+			private int count = 0;
+			private long hits;
+			private long misses;
+			private long exchanges;
+
+			private Cache(Thread thread) {
+				this.thread = new WeakReference<>(thread);
+			}
+
+			/**
+			 * Swap the empty magazine for a full one from the depot.
+			 */
+			private boolean reload() {
+				QueuedEvent[] full;
+				synchronized (depot) {
+					full = depot.poll();
+					if (full == null) {
+						return false;
+					}
+					empties.push(magazine);
+				}
+				exchanges++;
+				magazine = full;
+				count = MAGAZINE_SIZE;
+				return true;
+			}
+
+			/**
+			 * Swap the full magazine for an empty one, or, if the depot is full, return
+			 * its entries to the shared pool.
+			 */
+			private void unload() {
+				QueuedEvent[] empty = null;
+				synchronized (depot) {
+					if (depot.size() < DEPOT_SIZE) {
+						depot.push(magazine);
+						empty = empties.poll();
+						if (empty == null) {
+							empty = new QueuedEvent[MAGAZINE_SIZE];
+						}
+					}
+				}
+				if (empty == null) {
+					for (int i = 0; i < count; i++) {
+						magazine[i].release();
+						magazine[i] = null;
+					}
+				} else {
+					exchanges++;
+					magazine = empty;
+				}
+				count = 0;
+			}
+		}
+
 	}
 
 	/**
@@ -513,14 +2392,153 @@ public class EventingSystem implements Runnable {
 		endWhenEmpty = on;
 	}
 
+	/**
+	 * @return <code>true</code> if the run() method exits when the event queue is
+	 *         empty
+	 * @see #exitOnEmptyQueue(boolean)
+	 */
+	public boolean isExitOnEmptyQueue() {
+		return endWhenEmpty;
+	}
+
 	public long getTotalEventsDelivered() {
 		return totalEventsDelivered;
 	}
 
+	/**
+	 * Specify whether the run loop measures how long each event takes to process
+	 * and, in realtime mode, how late each timed event is delivered. Timing costs
+	 * two {@link System#nanoTime()} calls per delivery, and so is off by default.
+	 * 
+	 * @param on when <code>true</code>, timing is collected
+	 * @see #getTotalProcessingNanos()
+	 * @see #getTotalDispatchLag()
+	 */
+	public void setTimingEnabled(boolean on) {
+		timingEnabled = on;
+	}
+
+	public boolean isTimingEnabled() {
+		return timingEnabled;
+	}
+
+	/**
+	 * @return the total time, in nanoseconds, spent in
+	 *         {@link EventProcessor#process(Event, EventingSystem, long)} while
+	 *         timing was enabled
+	 * @see #setTimingEnabled(boolean)
+	 */
+	public long getTotalProcessingNanos() {
+		return totalProcessingNanos;
+	}
+
+	/**
+	 * @return the number of events delivered while timing was enabled, whose
+	 *         processing time is included in {@link #getTotalProcessingNanos()}
+	 */
+	public long getTimedDeliveries() {
+		return timedDeliveries;
+	}
+
+	/**
+	 * In realtime mode, the sum over all timed events delivered while timing was
+	 * enabled of the difference between the time each was delivered and the time
+	 * it was scheduled for, in {@link #finestTimeUnit} units.
+	 * 
+	 * @return the total dispatch lag
+	 * @see #getDispatchLagCount()
+	 * @see #setTimingEnabled(boolean)
+	 */
+	public long getTotalDispatchLag() {
+		return totalDispatchLag;
+	}
+
+	/**
+	 * @return the number of deliveries whose lag is included in
+	 *         {@link #getTotalDispatchLag()}
+	 */
+	public long getDispatchLagCount() {
+		return dispatchLagCount;
+	}
+
+	/**
+	 * Install (or, with <code>null</code>, remove) a sampling profiler. Events that
+	 * are already queued when the profiler is installed are not reflected in its
+	 * pending-queue histogram.
+	 * 
+	 * @param profiler the profiler
+	 * @see Profiler
+	 */
+	public void setProfiler(Profiler profiler) {
+		synchronized (queue) {
+			Profiler old = this.profiler;
+			if (old != null) {
+				old.clearPending();
+			}
+			this.profiler = profiler;
+		}
+	}
+
+	public Profiler getProfiler() {
+		return profiler;
+	}
+
+	/**
+	 * Specify whether each thread running this EventingSystem publishes the
+	 * delivery it is performing (see {@link DeliveryRecord}) and keeps a histogram
+	 * of how long process() calls take. Tracking lets an observer such as
+	 * {@link com.github.glfrazier.event.util.WatchDog} detect a stalled handler
+	 * without scheduling anything into the queue.
+	 * 
+	 * @param on when <code>true</code>, deliveries are tracked
+	 */
+	public void setDeliveryTracking(boolean on) {
+		trackDeliveries = on;
+	}
+
+	public boolean isDeliveryTracking() {
+		return trackDeliveries;
+	}
+
+	/**
+	 * @return a record for each thread that is currently running this
+	 *         EventingSystem
+	 */
+	public DeliveryRecord[] getDeliveryRecords() {
+		return deliveryRecords.clone();
+	}
+
+	/**
+	 * The histogram of process() durations over every thread that has run this
+	 * EventingSystem while delivery tracking was on.
+	 * 
+	 * @return the counts, bucketed as described in
+	 *         {@link DeliveryRecord#HISTOGRAM_BUCKETS}
+	 */
+	public long[] getProcessingTimeHistogram() {
+		long[] sum = new long[DeliveryRecord.HISTOGRAM_BUCKETS];
+		DeliveryRecord[] records;
+		synchronized (this) {
+			System.arraycopy(retiredHistogram, 0, sum, 0, sum.length);
+			records = deliveryRecords;
+		}
+		for (DeliveryRecord r : records) {
+			r.addHistogramTo(sum);
+		}
+		return sum;
+	}
+
 	public void setVerbose(boolean v) {
 		verbose = v;
 	}
 
+	/**
+	 * @return the name given to the constructor, or <code>null</code>
+	 */
+	public String getName() {
+		return name;
+	}
+
 	@Override
 	public String toString() {
 		if (name != null) {
@@ -548,15 +2566,49 @@ public class EventingSystem implements Runnable {
 
 	/**
 	 * Register an end condition that is checked prior to every event delivery. Note
-	 * the potential performance impact.
+	 * the potential performance impact; consider
+	 * {@link EndConditions#checkEvery(EndCondition, long)} or
+	 * {@link EndConditions#checkOnSignal(EndCondition)} instead.
 	 * 
 	 * @param ec The end condition to be checked.
 	 */
 	public void registerEndConditionOnEventDelivery(EndCondition ec) {
-		if (endConditionsForEventDelivery == null) {
-			endConditionsForEventDelivery = new HashSet<EndCondition>();
+		if (endConditions == null) {
+			endConditions = new EndConditions();
+		}
+		// checked before the very next delivery, as well as before each one after it
+		endConditions.checkEvery(ec, 1, totalEventsDelivered);
+	}
+
+	/**
+	 * Install the conditions under which the run loop ends, replacing any that
+	 * were registered with {@link #registerEndConditionOnEventDelivery(EndCondition)}.
+	 * 
+	 * @param ec the end conditions, or <code>null</code> to remove them
+	 * @see EndConditions
+	 */
+	public void setEndConditions(EndConditions ec) {
+		endConditions = ec;
+	}
+
+	public EndConditions getEndConditions() {
+		return endConditions;
+	}
+
+	/**
+	 * Evaluate the end conditions registered with
+	 * {@link EndConditions#checkOnSignal(EndCondition)}, on the calling thread. If
+	 * one of them is met, the run loop ends before its next delivery (or, if it is
+	 * waiting for an event, immediately).
+	 */
+	public void signalEndConditions() {
+		EndConditions ec = endConditions;
+		if (ec != null && ec.evaluateSignal()) {
+			stopRequested = true;
+			synchronized (queue) {
+				wakeDispatcher();
+			}
 		}
-		endConditionsForEventDelivery.add(ec);
 	}
 
 	/**
@@ -579,7 +2631,30 @@ public class EventingSystem implements Runnable {
 
 	public int getQueueLength() {
 		synchronized (queue) {
-			return queue.size();
+			return queued();
+		}
+	}
+
+	/**
+	 * The delivery time of the first pending event. An event scheduled for "now"
+	 * is reported at the current time. Superseded coalesced entries are not
+	 * skipped, so the result may be early, but is never late.
+	 * 
+	 * @return the time of the next delivery, or <code>Long.MAX_VALUE</code> if the
+	 *         queue is empty
+	 */
+	public long getNextEventTime() {
+		synchronized (queue) {
+			drainChannels();
+			QueuedEvent head = bulkLane().peek();
+			QueuedEvent control = controlLane.peek();
+			if (head == null || (control != null && control.compareTo(head) < 0)) {
+				head = control;
+			}
+			if (head == null) {
+				return Long.MAX_VALUE;
+			}
+			return head.deliveryTime == IMMEDIATE ? getCurrentTime() : head.deliveryTime;
 		}
 	}
 
@@ -592,14 +2667,36 @@ public class EventingSystem implements Runnable {
 	public void terminate() {
 		synchronized (queue) {
 			terminated = true;
-			queue.clear();
-			queue.notifyAll();
+			for (Queue<QueuedEvent> lane : lanes) {
+				for (QueuedEvent qe : lane) {
+					if (qe.producer != null) {
+						qe.producer.outstanding.decrementAndGet();
+					}
+					free(qe);
+				}
+				lane.clear();
+			}
+			if (coalescing != null) {
+				coalescing.clear();
+			}
+			Profiler p = profiler;
+			if (p != null) {
+				p.clearPending();
+			}
+			wakeDispatcher();
+			if (selector != null) {
+				try {
+					// deregisters the channels, which are left open
+					selector.close();
+				} catch (IOException e) {
+					// nothing more to be done
+				}
+			}
 		}
 	}
 
 	public boolean isTerminated() {
-		// TODO Auto-generated method stub
-		return false;
+		return terminated;
 	}
 
 	public boolean isRealtime() {
@@ -616,4 +2713,106 @@ public class EventingSystem implements Runnable {
 		}
 		return pubsubDepot;
 	}
+
+	/**
+	 * @return the registry of the statistics collected in this system, created on
+	 *         first use
+	 */
+	public Statistics getStatistics() {
+		if (statistics == null) {
+			synchronized (this) {
+				if (statistics == null) {
+					statistics = new Statistics(this);
+				}
+			}
+		}
+		return statistics;
+	}
+
+	/**
+	 * Set the master seed from which the random streams of this system are
+	 * derived (see {@link #getRandom(EventProcessor)}). The default is
+	 * {@link #DEFAULT_SEED}; systems run in parallel, as replications, should each
+	 * be given a seed of their own. The shards of a {@link ShardedEventingSystem}
+	 * share its seed and streams, so setting the seed of one sets that of all.
+	 * 
+	 * @throws IllegalStateException if streams have already been handed out from
+	 *                               another seed
+	 */
+	public synchronized void setSeed(long seed) {
+		if (shardedBy != null) {
+			shardedBy.setSeed(seed);
+			return;
+		}
+		if (randomStreams != null && randomStreams.getSeed() != seed) {
+			throw new IllegalStateException("Random streams have already been handed out from seed " + this.seed);
+		}
+		this.seed = seed;
+	}
+
+	public synchronized long getSeed() {
+		if (shardedBy != null) {
+			return shardedBy.getSeed();
+		}
+		return seed;
+	}
+
+	/**
+	 * The processor's own stream of random numbers, derived from this system's
+	 * seed. Drawing from it takes no lock, and the results of a run do not depend
+	 * on how many systems run at once. Obtain it once, and keep it; it is not
+	 * thread-safe.
+	 * 
+	 * @return the processor's stream, created on first request
+	 * @throws IllegalStateException in a shard of a
+	 *                               {@link ShardedEventingSystem}, if the stream
+	 *                               has not yet been requested with a key
+	 * @see RandomStreams
+	 */
+	public SplittableRandom getRandom(EventProcessor processor) {
+		return getRandomStreams().getRandom(processor);
+	}
+
+	/**
+	 * The processor's own stream of random numbers, derived from this system's
+	 * seed and the processor's key, and so independent of the order in which
+	 * processors first ask for their streams. In a shard of a
+	 * {@link ShardedEventingSystem}, a processor must ask for its stream this way
+	 * first.
+	 * 
+	 * @param key a key unique to the processor, the same in every run
+	 * @return the processor's stream, created on first request
+	 * @see RandomStreams#getRandom(EventProcessor, String)
+	 */
+	public SplittableRandom getRandom(EventProcessor processor, String key) {
+		return getRandomStreams().getRandom(processor, key);
+	}
+
+	/**
+	 * @return the named stream of random numbers, which depends only on this
+	 *         system's seed and the name
+	 * @see RandomStreams
+	 */
+	public SplittableRandom getRandom(String name) {
+		return getRandomStreams().getRandom(name);
+	}
+
+	/**
+	 * @return the streams of this system, created on first use; in a shard, those
+	 *         of the {@link ShardedEventingSystem}, so that a processor keeps its
+	 *         stream when it migrates
+	 */
+	public RandomStreams getRandomStreams() {
+		if (shardedBy != null) {
+			return shardedBy.getRandomStreams();
+		}
+		if (randomStreams == null) {
+			synchronized (this) {
+				if (randomStreams == null) {
+					randomStreams = new RandomStreams(seed);
+				}
+			}
+		}
+		return randomStreams;
+	}
 }
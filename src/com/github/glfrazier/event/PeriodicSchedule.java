@@ -0,0 +1,106 @@
+package com.github.glfrazier.event;
+
+/**
+ * The handle returned by
+ * {@link EventingSystem#scheduleAtFixedRate(EventProcessor, Event, long, long)}
+ * and
+ * {@link EventingSystem#scheduleWithFixedDelay(EventProcessor, Event, long, long)}.
+ * A periodic schedule occupies a single queue entry for its whole life: after
+ * each delivery the entry is given its next delivery time and put back in the
+ * queue, rather than being released to the pool and a new one allocated.
+ *
+ * @author Greg Frazier
+ *
+ */
+public class PeriodicSchedule {
+
+	/**
+	 * What a fixed-rate schedule does when the run loop falls behind by more than
+	 * one period, which can only happen in realtime mode.
+	 */
+	public static enum CatchUp {
+		/** Deliver every missed tick, back to back, until the schedule is current. */
+		BURST,
+		/**
+		 * Deliver one tick, then skip to the next tick in the future, keeping the
+		 * original phase.
+		 */
+		SKIP
+	}
+
+	private final EventProcessor target;
+	private final Event event;
+	private final long period;
+	private final boolean fixedRate;
+	private final CatchUp catchUp;
+	private volatile boolean cancelled;
+
+	PeriodicSchedule(EventProcessor target, Event event, long period, boolean fixedRate, CatchUp catchUp) {
+		this.target = target;
+		this.event = event;
+		this.period = period;
+		this.fixedRate = fixedRate;
+		this.catchUp = catchUp;
+	}
+
+	/**
+	 * Stop the schedule. The event will not be delivered again; the queue entry is
+	 * released when it next reaches the head of the queue.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	public EventProcessor getTarget() {
+		return target;
+	}
+
+	public Event getEvent() {
+		return event;
+	}
+
+	/**
+	 * @return the period (fixed rate) or delay (fixed delay), in the eventing
+	 *         system's finest time unit
+	 */
+	public long getPeriod() {
+		return period;
+	}
+
+	public boolean isFixedRate() {
+		return fixedRate;
+	}
+
+	public CatchUp getCatchUp() {
+		return catchUp;
+	}
+
+	/**
+	 * Compute the next delivery time.
+	 *
+	 * @param scheduled the time the delivery that just completed was scheduled for
+	 * @param now       the system's current time, after the delivery completed
+	 * @return the time of the next delivery
+	 */
+	long next(long scheduled, long now) {
+		if (!fixedRate) {
+			return now + period;
+		}
+		long next = scheduled + period;
+		if (next <= now && catchUp == CatchUp.SKIP) {
+			next += ((now - next) / period + 1) * period;
+		}
+		return next;
+	}
+
+	@Override
+	public String toString() {
+		return (fixedRate ? "fixed-rate" : "fixed-delay") + " schedule of <" + event + "> to " + target + " every "
+				+ period + (cancelled ? " (cancelled)" : "");
+	}
+
+}
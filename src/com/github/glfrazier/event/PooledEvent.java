@@ -0,0 +1,126 @@
+package com.github.glfrazier.event;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An {@link Event} that is recycled through an {@link EventPool} rather than
+ * allocated afresh each time. The eventing system counts the references it
+ * holds to a pooled event: each queue entry and each slot of an
+ * {@link EventChannel} that holds the event is a reference. When the event has
+ * been delivered and process() has returned, the eventing system drops its
+ * reference, and once no references remain the event goes back to its pool. So
+ * an event that is scheduled again from process() (forwarded, say) stays alive,
+ * and one that is merely consumed is recycled.
+ * <p>
+ * A handler that keeps the event after process() returns must
+ * {@link #retain()} it, and {@link #release()} it when it is done. An event
+ * that is allocated but never scheduled must also be released.
+ * <p>
+ * Subclasses reset their fields in {@link #reset()}, and must not be used after
+ * they have been recycled.
+ *
+ * <pre>
+ * EventPool&lt;Packet&gt; packets = new EventPool&lt;&gt;(Packet::new);
+ * Packet p = packets.allocate();
+ * p.size = 1500;
+ * eventingSystem.scheduleEventRelative(link, p, delay);
+ * </pre>
+ *
+ * @author Greg Frazier
+ *
+ */
+public abstract class PooledEvent implements Event {
+
+	private final AtomicInteger refs = new AtomicInteger();
+	/** Set while the event is in its pool's free list. */
+	private volatile boolean free;
+	EventPool<?> pool;
+	/** Where the event was last recycled; recorded in debug mode. */
+	Throwable releasedAt;
+
+	/**
+	 * Keep the event past the return of process(), or past its delivery. Each
+	 * retain must be matched by a {@link #release()}.
+	 *
+	 * @throws IllegalStateException if the event has been recycled
+	 */
+	public final void retain() {
+		if (free) {
+			throw recycled("retained");
+		}
+		refs.incrementAndGet();
+	}
+
+	/**
+	 * Drop a reference to the event, recycling it if none remain. Releasing an
+	 * event that is referenced by nothing (allocated, but never scheduled or
+	 * retained) recycles it.
+	 *
+	 * @throws IllegalStateException if the event has already been recycled
+	 */
+	public final void release() {
+		if (free) {
+			throw recycled("released");
+		}
+		int n = refs.get() == 0 ? 0 : refs.decrementAndGet();
+		if (n == 0) {
+			recycle();
+		}
+	}
+
+	/**
+	 * @return the number of references held to the event
+	 */
+	public final int getReferenceCount() {
+		return refs.get();
+	}
+
+	private synchronized void recycle() {
+		EventPool<?> p = pool;
+		if (p == null) {
+			// allocated with new rather than from a pool: left to the garbage collector
+			return;
+		}
+		if (free) {
+			throw recycled("released");
+		}
+		free = true;
+		p.recycle(this);
+	}
+
+	/**
+	 * Drop a reference without recycling the event, which reverts to the caller
+	 * that scheduled it. Used when scheduling is rejected.
+	 */
+	final void disown() {
+		refs.decrementAndGet();
+	}
+
+	/**
+	 * Invoked by the pool when the event is taken from its free list.
+	 */
+	final void allocated(EventPool<?> pool) {
+		this.pool = pool;
+		refs.set(0);
+		free = false;
+	}
+
+	/**
+	 * @return the exception for a use of a recycled event; in debug mode, its cause
+	 *         records where the event was recycled
+	 */
+	private IllegalStateException recycled(String what) {
+		EventPool<?> p = pool;
+		if (p != null) {
+			p.misuses.incrementAndGet();
+		}
+		return new IllegalStateException(this + " was " + what + " after it was recycled", releasedAt);
+	}
+
+	/**
+	 * Clear the event's fields before it goes back to the pool.
+	 */
+	protected void reset() {
+	}
+
+}
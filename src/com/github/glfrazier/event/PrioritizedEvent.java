@@ -0,0 +1,28 @@
+package com.github.glfrazier.event;
+
+/**
+ * An {@link Event} with a priority. Events that do not implement this interface
+ * have priority {@link #NORMAL}. Larger values are more important.
+ * <p>
+ * Among events scheduled for the same time, those with higher priority are
+ * delivered first. Events with priority {@link #CONTROL} or higher are
+ * control-plane events: an {@link EventingSystem} keeps them in a lane of their
+ * own, which in realtime mode is served ahead of overdue bulk events (see
+ * {@link EventingSystem#setControlLaneWeight(int)}), and they are exempt from
+ * the admission policy of a bounded queue.
+ * 
+ * @author Greg Frazier
+ *
+ */
+public interface PrioritizedEvent extends Event {
+
+	public static final int NORMAL = 0;
+
+	public static final int CONTROL = 1000;
+
+	/**
+	 * @return the priority of the event; must not change while the event is queued
+	 */
+	public int getPriority();
+
+}
@@ -0,0 +1,98 @@
+package com.github.glfrazier.event;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A source of events with a limited number of credits: at most
+ * <code>credits</code> of the events it schedules may be pending at once. When
+ * a producer is out of credit, its next event is handled according to the
+ * eventing system's {@link AdmissionPolicy} (the DROP policies reject it
+ * rather than discard another producer's event). A credit is returned when one
+ * of the producer's events leaves the queue. This keeps one noisy source from
+ * filling a bounded queue and starving the others.
+ * <p>
+ * Producers are created with {@link EventingSystem#createProducer(String, int)}
+ * or {@link ShardedEventingSystem#createProducer(String, int)}. In a sharded
+ * system, each event is queued on the shard that owns its target, and the
+ * credits are shared by all the shards.
+ * 
+ * @author Greg Frazier
+ *
+ */
+public class Producer {
+
+	private final EventingSystem eventingSystem;
+	private final String name;
+	private final int credits;
+
+	/**
+	 * Changed under the queue lock of the shard that holds the event, so the
+	 * shards of a sharded system may each admit one event beyond the credits.
+	 */
+	final AtomicInteger outstanding = new AtomicInteger();
+
+	Producer(EventingSystem eventingSystem, String name, int credits) {
+		if (credits <= 0) {
+			throw new IllegalArgumentException("credits must be positive");
+		}
+		this.eventingSystem = eventingSystem;
+		this.name = name;
+		this.credits = credits;
+	}
+
+	/**
+	 * Schedule an event to be delivered now.
+	 * 
+	 * @see EventingSystem#scheduleEvent(EventProcessor, Event)
+	 */
+	public void scheduleEvent(EventProcessor target, Event e) {
+		eventingSystem.scheduleFrom(this, target, e, null);
+	}
+
+	/**
+	 * Schedule an event to be delivered <code>timeRelative</code> time units in the
+	 * future.
+	 * 
+	 * @see EventingSystem#scheduleEventRelative(EventProcessor, Event, long)
+	 */
+	public void scheduleEventRelative(EventProcessor target, Event e, long timeRelative) {
+		if (timeRelative < 0) {
+			throw new IllegalArgumentException("Events must be scheduled for now or in the future (timeRelative >= 0)");
+		}
+		eventingSystem.scheduleFrom(this, target, e, eventingSystem.getCurrentTime() + timeRelative);
+	}
+
+	/**
+	 * Schedule an event to be delivered at time <code>time</code>.
+	 * 
+	 * @see EventingSystem#scheduleEventAbsolute(EventProcessor, Event, long)
+	 */
+	public void scheduleEventAbsolute(EventProcessor target, Event e, long time) {
+		eventingSystem.scheduleFrom(this, target, e, time);
+	}
+
+	boolean hasCredit() {
+		return outstanding.get() < credits;
+	}
+
+	public int getCredits() {
+		return credits;
+	}
+
+	/**
+	 * @return the number of this producer's events that are pending
+	 */
+	public int getOutstanding() {
+		return outstanding.get();
+	}
+
+	public EventingSystem getEventingSystem() {
+		return eventingSystem;
+	}
+
+	@Override
+	public String toString() {
+		return "Producer " + name + " (" + credits + " credits)";
+	}
+
+}
@@ -0,0 +1,286 @@
+package com.github.glfrazier.event;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Moves {@link EventProcessor}s from busy shards of a
+ * {@link ShardedEventingSystem} to idle ones. Load tracking is turned on in
+ * every shard, so that each shard measures the time each of its processors
+ * spends in process(). Every interval, the rebalancer stops the shards at a
+ * safepoint, collects the load, and, while the busiest shard carries more than
+ * <code>threshold</code> times the mean load, moves from it to the least busy
+ * shard the processor whose load best evens out the two. A processor's pending
+ * events go with it, and since it is delivered by exactly one shard both before
+ * and after the move, its events are still delivered in order.
+ * <p>
+ * Each migration is counted by the shards (see
+ * {@link EventingSystem#getMigratedIn()}, exported by the
+ * {@link com.github.glfrazier.event.monitor.MetricsExporter}) and recorded in
+ * the log returned by {@link #getMigrationLog()}.
+ *
+ * <pre>
+ * Rebalancer rebalancer = new Rebalancer(ses, 1000, 1.25);
+ * rebalancer.start();
+ * </pre>
+ *
+ * @author Greg Frazier
+ *
+ */
+public class Rebalancer extends Thread {
+
+	public static final int LOG_SIZE = 100;
+	public static final int MAX_MIGRATIONS_PER_PASS = 4;
+	public static final long SAFEPOINT_TIMEOUT = 1000;
+
+	private final ShardedEventingSystem ses;
+	private final long interval;
+	private final double threshold;
+
+	private long passes = 0;
+	private long migrations = 0;
+	private long abandonedPasses = 0;
+	private final Deque<Migration> log = new ArrayDeque<>();
+	private boolean verbose;
+
+	/**
+	 * Create a rebalancer, and turn on load tracking in the shards. Start it with
+	 * {@link #start()}, or invoke {@link #rebalance()} directly.
+	 *
+	 * @param ses       the sharded system to balance
+	 * @param interval  the time between passes, in milliseconds
+	 * @param threshold the ratio of the busiest shard's load to the mean load above
+	 *                  which processors are moved; greater than 1
+	 */
+	public Rebalancer(ShardedEventingSystem ses, long interval, double threshold) {
+		super("rebalancer");
+		if (interval <= 0) {
+			throw new IllegalArgumentException("interval must be positive");
+		}
+		if (!(threshold > 1)) {
+			throw new IllegalArgumentException("threshold must be greater than 1");
+		}
+		setDaemon(true);
+		this.ses = ses;
+		this.interval = interval;
+		this.threshold = threshold;
+		ses.setLoadTracking(true);
+	}
+
+	public void setVerbose(boolean v) {
+		verbose = v;
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(interval);
+				rebalance();
+			} catch (InterruptedException e) {
+				return;
+			}
+			for (EventingSystem shard : ses.getShards()) {
+				if (shard.isTerminated()) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Make one rebalancing pass over the load measured since the previous pass.
+	 *
+	 * @return the number of processors migrated, or -1 if the shards did not
+	 *         reach a safepoint in time
+	 */
+	public int rebalance() throws InterruptedException {
+		final int[] moved = new int[1];
+		boolean done = ses.atSafepoint(new Runnable() {
+			@Override
+			public void run() {
+				moved[0] = balance();
+			}
+		}, SAFEPOINT_TIMEOUT);
+		synchronized (this) {
+			passes++;
+			if (!done) {
+				abandonedPasses++;
+				return -1;
+			}
+			migrations += moved[0];
+		}
+		return moved[0];
+	}
+
+	/**
+	 * Runs at the safepoint.
+	 */
+	private int balance() {
+		int n = ses.getShardCount();
+		List<Map<EventProcessor, long[]>> loads = new ArrayList<>(n);
+		long[] shardLoad = new long[n];
+		long total = 0;
+		for (int i = 0; i < n; i++) {
+			Map<EventProcessor, long[]> load = ses.takeLoad(i);
+			if (load == null) {
+				return 0;
+			}
+			loads.add(load);
+			for (long[] l : load.values()) {
+				shardLoad[i] += l[0];
+			}
+			total += shardLoad[i];
+		}
+		if (total == 0 || n < 2) {
+			return 0;
+		}
+		double mean = total / (double) n;
+		int moved = 0;
+		while (moved < MAX_MIGRATIONS_PER_PASS) {
+			int hot = 0;
+			int cold = 0;
+			for (int i = 1; i < n; i++) {
+				if (shardLoad[i] > shardLoad[hot]) {
+					hot = i;
+				}
+				if (shardLoad[i] < shardLoad[cold]) {
+					cold = i;
+				}
+			}
+			if (shardLoad[hot] <= threshold * mean) {
+				break;
+			}
+			// the processor whose load is closest to, without exceeding, half the
+			// difference: moving it narrows the gap the most without reversing it
+			long target = (shardLoad[hot] - shardLoad[cold]) / 2;
+			EventProcessor best = null;
+			long bestLoad = 0;
+			for (Map.Entry<EventProcessor, long[]> entry : loads.get(hot).entrySet()) {
+				long l = entry.getValue()[0];
+				if (l <= target && l > bestLoad) {
+					best = entry.getKey();
+					bestLoad = l;
+				}
+			}
+			if (best == null) {
+				// a single processor accounts for the imbalance
+				break;
+			}
+			int events = ses.migrate(best, cold);
+			loads.get(cold).put(best, loads.get(hot).remove(best));
+			shardLoad[hot] -= bestLoad;
+			shardLoad[cold] += bestLoad;
+			Migration m = new Migration(System.currentTimeMillis(), best, hot, cold, bestLoad, events);
+			record(m);
+			moved++;
+		}
+		return moved;
+	}
+
+	private synchronized void record(Migration m) {
+		if (verbose) {
+			System.err.println(this + ": " + m);
+			System.err.flush();
+		}
+		if (log.size() == LOG_SIZE) {
+			log.removeFirst();
+		}
+		log.addLast(m);
+	}
+
+	/**
+	 * @return the most recent migrations (at most {@link #LOG_SIZE}), oldest first
+	 */
+	public synchronized List<Migration> getMigrationLog() {
+		return new ArrayList<>(log);
+	}
+
+	public synchronized long getMigrations() {
+		return migrations;
+	}
+
+	public synchronized long getPasses() {
+		return passes;
+	}
+
+	/**
+	 * @return the number of passes that were abandoned because the shards did not
+	 *         reach a safepoint in time
+	 */
+	public synchronized long getAbandonedPasses() {
+		return abandonedPasses;
+	}
+
+	@Override
+	public String toString() {
+		return "Rebalancer for " + ses;
+	}
+
+	/**
+	 * One migration decision.
+	 */
+	public static class Migration {
+
+		private final long time;
+		private final EventProcessor processor;
+		private final int from;
+		private final int to;
+		private final long loadNanos;
+		private final int events;
+
+		Migration(long time, EventProcessor processor, int from, int to, long loadNanos, int events) {
+			this.time = time;
+			this.processor = processor;
+			this.from = from;
+			this.to = to;
+			this.loadNanos = loadNanos;
+			this.events = events;
+		}
+
+		/**
+		 * @return the clock time of the migration, in milliseconds
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		public EventProcessor getProcessor() {
+			return processor;
+		}
+
+		public int getFrom() {
+			return from;
+		}
+
+		public int getTo() {
+			return to;
+		}
+
+		/**
+		 * @return the process() time of the processor over the pass that moved it,
+		 *         in nanoseconds
+		 */
+		public long getLoadNanos() {
+			return loadNanos;
+		}
+
+		/**
+		 * @return the number of pending events that moved with the processor
+		 */
+		public int getEvents() {
+			return events;
+		}
+
+		@Override
+		public String toString() {
+			return "moved " + processor + " from shard " + from + " to shard " + to + " (" + loadNanos / 1000000
+					+ " ms of load, " + events + " pending events)";
+		}
+
+	}
+
+}
@@ -0,0 +1,477 @@
+package com.github.glfrazier.event;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.github.glfrazier.event.util.RandomStreams;
+
+/**
+ * A realtime eventing system that spreads its {@link EventProcessor}s over
+ * several {@link EventingSystem}s (the <em>shards</em>), each run by a thread of
+ * its own. Every processor is placed on exactly one shard, by a hash of its
+ * identity, and all of its events are delivered by that shard's thread; so
+ * events for one target are still delivered one at a time, in time order, and
+ * a processor needs no more synchronization than it would in a single
+ * EventingSystem. Processors that do not share state can then be served in
+ * parallel, on as many cores as there are shards.
+ * <p>
+ * The scheduling API is that of EventingSystem. A processor may keep
+ * scheduling through the EventingSystem passed to its process() method: each
+ * shard routes events whose target lives on another shard to that shard. When
+ * the sending thread is a shard thread, the event travels over a lock-free
+ * {@link EventChannel} between the two shards; other threads use the target
+ * shard's (locked) scheduling methods.
+ * <p>
+ * A processor can be moved to another shard, with its pending events, at a
+ * <em>safepoint</em>: a moment at which every shard thread is paused between
+ * deliveries. See {@link Rebalancer}.
+ *
+ * <pre>
+ * ShardedEventingSystem ses = new ShardedEventingSystem("service", Runtime.getRuntime().availableProcessors());
+ * ses.start();
+ * ses.scheduleEvent(endpoint, request);
+ * </pre>
+ *
+ * @author Greg Frazier
+ *
+ */
+public class ShardedEventingSystem {
+
+	public static final int DEFAULT_CHANNEL_CAPACITY = 1024;
+
+	private final String name;
+	private final EventingSystem[] shards;
+	/** <code>channels[i][j]</code> carries events from shard i to shard j. */
+	private final EventChannel[][] channels;
+	private final Thread[] threads;
+
+	/**
+	 * The processors that have been migrated away from their hashed shard.
+	 * Replaced (never modified) on each migration.
+	 */
+	private volatile Map<EventProcessor, EventingSystem> placement = new IdentityHashMap<>();
+
+	private final Object safepointLock = new Object();
+	/** The number of shards waiting at the current safepoint. */
+	private int paused;
+	/** Incremented as each safepoint ends. */
+	private long safepointEpoch;
+
+	private long seed = EventingSystem.DEFAULT_SEED;
+	private volatile RandomStreams randomStreams;
+
+	/**
+	 * Create a sharded system with channels of the default capacity.
+	 *
+	 * @param name   the name of the system; shard <code>i</code> is named
+	 *               <code>name-i</code>
+	 * @param shards the number of shards (and threads)
+	 */
+	public ShardedEventingSystem(String name, int shards) {
+		this(name, shards, DEFAULT_CHANNEL_CAPACITY);
+	}
+
+	/**
+	 * @param name            the name of the system; shard <code>i</code> is named
+	 *                        <code>name-i</code>
+	 * @param shards          the number of shards (and threads)
+	 * @param channelCapacity the capacity of the channel between each pair of
+	 *                        shards
+	 */
+	public ShardedEventingSystem(String name, int shards, int channelCapacity) {
+		if (shards <= 0) {
+			throw new IllegalArgumentException("shards must be positive");
+		}
+		this.name = name;
+		this.shards = new EventingSystem[shards];
+		this.channels = new EventChannel[shards][shards];
+		this.threads = new Thread[shards];
+		for (int i = 0; i < shards; i++) {
+			this.shards[i] = new EventingSystem(name + "-" + i, EventingSystem.REALTIME, true);
+		}
+		for (int i = 0; i < shards; i++) {
+			for (int j = 0; j < shards; j++) {
+				if (i != j) {
+					channels[i][j] = this.shards[i].openChannelTo(this.shards[j], channelCapacity);
+				}
+			}
+			this.shards[i].joinShards(this, i);
+		}
+	}
+
+	/**
+	 * Start a thread for each shard.
+	 */
+	public synchronized void start() {
+		for (int i = 0; i < shards.length; i++) {
+			if (threads[i] != null) {
+				throw new IllegalStateException(this + " has already been started");
+			}
+			threads[i] = new Thread(shards[i], shards[i].getName());
+		}
+		for (Thread t : threads) {
+			t.start();
+		}
+	}
+
+	/**
+	 * Terminate every shard.
+	 */
+	public void terminate() {
+		for (EventingSystem shard : shards) {
+			shard.terminate();
+		}
+	}
+
+	/**
+	 * Wait for the shard threads to exit.
+	 */
+	public void join() throws InterruptedException {
+		Thread[] ts;
+		synchronized (this) {
+			ts = threads.clone();
+		}
+		for (Thread t : ts) {
+			if (t != null) {
+				t.join();
+			}
+		}
+	}
+
+	/**
+	 * @return the shard on which <code>target</code> lives
+	 */
+	public EventingSystem shardFor(EventProcessor target) {
+		if (target == null) {
+			throw new NullPointerException("target is null");
+		}
+		Map<EventProcessor, EventingSystem> p = placement;
+		if (!p.isEmpty()) {
+			EventingSystem shard = p.get(target);
+			if (shard != null) {
+				return shard;
+			}
+		}
+		int h = System.identityHashCode(target);
+		h ^= h >>> 16;
+		return shards[(h & 0x7fffffff) % shards.length];
+	}
+
+	boolean hasMigrations() {
+		return !placement.isEmpty();
+	}
+
+	/**
+	 * Stop every running shard between deliveries, run <code>action</code>, and
+	 * let the shards go. While the action runs, no shard thread is in a process()
+	 * call or holds its queue lock, so the action may {@link #migrate migrate}
+	 * processors.
+	 *
+	 * @param action        what to do at the safepoint
+	 * @param timeoutMillis how long to wait for the shards to pause
+	 * @return <code>true</code> if the action was run; <code>false</code> if some
+	 *         shard did not pause in time (e.g., because a process() call is
+	 *         blocked)
+	 */
+	public boolean atSafepoint(Runnable action, long timeoutMillis) throws InterruptedException {
+		synchronized (safepointLock) {
+			int expected = 0;
+			for (int i = 0; i < shards.length; i++) {
+				if (threads[i] != null && threads[i].isAlive() && !shards[i].isTerminated()) {
+					shards[i].requestPause();
+					expected++;
+				}
+			}
+			try {
+				long deadline = System.currentTimeMillis() + timeoutMillis;
+				while (paused < expected) {
+					long wait = deadline - System.currentTimeMillis();
+					if (wait <= 0) {
+						return false;
+					}
+					safepointLock.wait(wait);
+				}
+				action.run();
+				return true;
+			} finally {
+				for (EventingSystem shard : shards) {
+					shard.pauseRequested = false;
+				}
+				paused = 0;
+				safepointEpoch++;
+				safepointLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Invoked by a shard's run loop, between deliveries, when a pause has been
+	 * requested. Returns when the safepoint ends.
+	 */
+	void safepoint(EventingSystem shard) {
+		synchronized (safepointLock) {
+			if (!shard.pauseRequested) {
+				// the safepoint ended (or was abandoned) before this shard arrived
+				return;
+			}
+			paused++;
+			safepointLock.notifyAll();
+			long epoch = safepointEpoch;
+			while (epoch == safepointEpoch) {
+				try {
+					safepointLock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Move <code>target</code>, and its pending events, to shard
+	 * <code>shardIndex</code>. Must be invoked from the action of
+	 * {@link #atSafepoint(Runnable, long)}.
+	 *
+	 * @return the number of pending events moved
+	 */
+	public int migrate(EventProcessor target, int shardIndex) {
+		EventingSystem from = shardFor(target);
+		EventingSystem to = shards[shardIndex];
+		if (from == to) {
+			return 0;
+		}
+		final Map<EventProcessor, EventingSystem> p = new IdentityHashMap<>(placement);
+		p.put(target, to);
+		return from.migrate(target, to, new Runnable() {
+			@Override
+			public void run() {
+				placement = p;
+			}
+		});
+	}
+
+	/**
+	 * Turn on or off the measurement, in each shard, of the time each processor
+	 * spends in process(). A running shard notices the change within a few
+	 * deliveries.
+	 */
+	public void setLoadTracking(boolean on) {
+		for (EventingSystem shard : shards) {
+			shard.setLoadTracking(on);
+		}
+	}
+
+	/**
+	 * Collect, and reset, the load measured by shard <code>shardIndex</code>. Must
+	 * be invoked at a safepoint.
+	 *
+	 * @return for each processor on the shard that received events, its total
+	 *         process() time in nanoseconds and its number of deliveries; or
+	 *         <code>null</code> if load tracking is off
+	 */
+	public Map<EventProcessor, long[]> takeLoad(int shardIndex) {
+		return shards[shardIndex].takeLoad();
+	}
+
+	/**
+	 * @return the shard to schedule through: the one the calling thread runs, so
+	 *         that cross-shard events take the channels; otherwise the target's
+	 */
+	private EventingSystem entryFor(EventProcessor target) {
+		Thread t = Thread.currentThread();
+		for (int i = 0; i < threads.length; i++) {
+			if (threads[i] == t) {
+				return shards[i];
+			}
+		}
+		return shardFor(target);
+	}
+
+	/**
+	 * Hand an event scheduled on shard <code>from</code> to shard <code>to</code>,
+	 * which hosts its target. Invoked by the shards' scheduling methods.
+	 *
+	 * @param time the delivery time, or <code>null</code> for now
+	 */
+	void forward(EventingSystem from, EventingSystem to, EventProcessor target, Event e, Long time) {
+		if (e == null) {
+			throw new NullPointerException("event is null");
+		}
+		int i = from.getShardIndex();
+		if (Thread.currentThread() == threads[i]) {
+			channels[i][to.getShardIndex()].post(target, e, time == null ? from.getCurrentTime() : time);
+		} else if (time == null) {
+			to.scheduleEvent(target, e);
+		} else {
+			to.scheduleEventAbsolute(target, e, time);
+		}
+	}
+
+	/**
+	 * @see EventingSystem#scheduleEvent(EventProcessor, Event)
+	 */
+	public void scheduleEvent(EventProcessor target, Event e) {
+		entryFor(target).scheduleEvent(target, e);
+	}
+
+	/**
+	 * @see EventingSystem#scheduleEventRelative(EventProcessor, Event, long)
+	 */
+	public void scheduleEventRelative(EventProcessor target, Event e, long timeRelative) {
+		entryFor(target).scheduleEventRelative(target, e, timeRelative);
+	}
+
+	/**
+	 * @see EventingSystem#scheduleEventRelative(EventProcessor, Event, long,
+	 *      TimeUnit)
+	 */
+	public void scheduleEventRelative(EventProcessor target, Event e, long timeRelative, TimeUnit timeUnit) {
+		entryFor(target).scheduleEventRelative(target, e, timeRelative, timeUnit);
+	}
+
+	/**
+	 * @see EventingSystem#scheduleEventAbsolute(EventProcessor, Event, long)
+	 */
+	public void scheduleEventAbsolute(EventProcessor target, Event e, long time) {
+		entryFor(target).scheduleEventAbsolute(target, e, time);
+	}
+
+	/**
+	 * Create a producer whose events are each queued on the shard that owns their
+	 * target. The credits are shared by all the shards.
+	 * 
+	 * @see EventingSystem#createProducer(String, int)
+	 */
+	public Producer createProducer(String name, int credits) {
+		return shards[0].createProducer(name, credits);
+	}
+
+	/**
+	 * @see EventingSystem#scheduleAtFixedRate(EventProcessor, Event, long, long)
+	 */
+	public PeriodicSchedule scheduleAtFixedRate(EventProcessor target, Event e, long initialDelay, long period) {
+		return shardFor(target).scheduleAtFixedRate(target, e, initialDelay, period);
+	}
+
+	/**
+	 * @see EventingSystem#scheduleWithFixedDelay(EventProcessor, Event, long, long)
+	 */
+	public PeriodicSchedule scheduleWithFixedDelay(EventProcessor target, Event e, long initialDelay, long delay) {
+		return shardFor(target).scheduleWithFixedDelay(target, e, initialDelay, delay);
+	}
+
+	/**
+	 * @see EventingSystem#coalesceEvent(EventProcessor, Event, Object, Coalescer)
+	 */
+	public void coalesceEvent(EventProcessor target, Event e, Object key, Coalescer coalescer) {
+		shardFor(target).coalesceEvent(target, e, key, coalescer);
+	}
+
+	/**
+	 * Set the master seed from which the random streams of every shard are
+	 * derived. The shards share one set of keyed streams: a processor's stream is
+	 * first requested with its key (see
+	 * {@link EventingSystem#getRandom(EventProcessor, String)}), and is derived
+	 * from the seed and the key. So it does not depend on the number of shards,
+	 * on which shard thread asks first, on where the processor is placed, or on
+	 * its migrations.
+	 * 
+	 * @throws IllegalStateException if streams have already been handed out from
+	 *                               another seed
+	 * @see EventingSystem#setSeed(long)
+	 */
+	public synchronized void setSeed(long seed) {
+		if (randomStreams != null && randomStreams.getSeed() != seed) {
+			throw new IllegalStateException("Random streams have already been handed out from seed " + this.seed);
+		}
+		this.seed = seed;
+	}
+
+	public synchronized long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * @return the processor's stream, which must already have been requested with
+	 *         a key
+	 * @see EventingSystem#getRandom(EventProcessor)
+	 */
+	public SplittableRandom getRandom(EventProcessor processor) {
+		return getRandomStreams().getRandom(processor);
+	}
+
+	/**
+	 * @see EventingSystem#getRandom(EventProcessor, String)
+	 */
+	public SplittableRandom getRandom(EventProcessor processor, String key) {
+		return getRandomStreams().getRandom(processor, key);
+	}
+
+	/**
+	 * @see EventingSystem#getRandom(String)
+	 */
+	public SplittableRandom getRandom(String name) {
+		return getRandomStreams().getRandom(name);
+	}
+
+	/**
+	 * @return the streams shared by the shards, created on first use
+	 */
+	public RandomStreams getRandomStreams() {
+		if (randomStreams == null) {
+			synchronized (this) {
+				if (randomStreams == null) {
+					randomStreams = new RandomStreams(seed, true);
+				}
+			}
+		}
+		return randomStreams;
+	}
+
+	public long getCurrentTime() {
+		return shards[0].getCurrentTime();
+	}
+
+	public EventingSystem[] getShards() {
+		return shards.clone();
+	}
+
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	/**
+	 * @return the sum over the shards of the events delivered
+	 */
+	public long getTotalEventsDelivered() {
+		long n = 0;
+		for (EventingSystem shard : shards) {
+			n += shard.getTotalEventsDelivered();
+		}
+		return n;
+	}
+
+	/**
+	 * @return the sum over the shards of the queue lengths
+	 */
+	public int getQueueLength() {
+		int n = 0;
+		for (EventingSystem shard : shards) {
+			n += shard.getQueueLength();
+		}
+		return n;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public String toString() {
+		return "ShardedEventingSystem " + name + " (" + shards.length + " shards)";
+	}
+
+}
@@ -0,0 +1,123 @@
+package com.github.glfrazier.event.distributed;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+
+import com.github.glfrazier.event.Event;
+import com.github.glfrazier.event.EventProcessor;
+import com.github.glfrazier.event.EventingSystem;
+
+/**
+ * Measures the throughput of the cross-process event path. Two {@link Node}s,
+ * this JVM and a child JVM that it launches, bounce tokens back and forth over
+ * the loopback interface: every delivery forwards the token to the other node.
+ *
+ * <pre>
+ * java -cp ... com.github.glfrazier.event.distributed.DistributedBenchmark [tokens [endTime [port [serial]]]]
+ * </pre>
+ *
+ * With <code>serial</code>, the tokens are encoded with the
+ * {@link SerializingCodec} rather than with a codec written for them.
+ *
+ * @author Greg Frazier
+ *
+ */
+public class DistributedBenchmark implements EventProcessor {
+
+	private static final long LATENCY = 1;
+
+	@SuppressWarnings("serial")
+	public static class Token implements Event, Serializable {
+		int id;
+		int hops;
+
+		Token(int id, int hops) {
+			this.id = id;
+			this.hops = hops;
+		}
+
+		@Override
+		public String toString() {
+			return "token " + id + " (" + hops + " hops)";
+		}
+	}
+
+	/**
+	 * Writes the two fields of a {@link Token}.
+	 */
+	public static class TokenCodec implements EventCodec {
+
+		@Override
+		public void encode(Event e, DataOutput out) throws IOException {
+			Token t = (Token) e;
+			out.writeInt(t.id);
+			out.writeInt(t.hops);
+		}
+
+		@Override
+		public Event decode(DataInput in) throws IOException {
+			return new Token(in.readInt(), in.readInt());
+		}
+
+	}
+
+	private final EventProcessor peer;
+
+	private DistributedBenchmark(EventProcessor peer) {
+		this.peer = peer;
+	}
+
+	@Override
+	public void process(Event e, EventingSystem eventingSystem, long deliveryTime) {
+		Token t = (Token) e;
+		t.hops++;
+		eventingSystem.scheduleEvent(peer, t);
+	}
+
+	public static void main(String[] args) throws Exception {
+		boolean child = args.length > 0 && args[0].equals("child");
+		int a = child ? 1 : 0;
+		int tokens = args.length > a ? Integer.parseInt(args[a]) : 1000;
+		long endTime = args.length > a + 1 ? Long.parseLong(args[a + 1]) : 1000;
+		int port = args.length > a + 2 ? Integer.parseInt(args[a + 2]) : 47000;
+		boolean serial = args.length > a + 3 && args[a + 3].equals("serial");
+
+		Process process = null;
+		if (!child) {
+			String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+			process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+					DistributedBenchmark.class.getName(), "child", Integer.toString(tokens), Long.toString(endTime),
+					Integer.toString(port), serial ? "serial" : "binary").inheritIO().start();
+		}
+
+		int id = child ? 1 : 0;
+		InetSocketAddress[] addresses = { new InetSocketAddress("127.0.0.1", port),
+				new InetSocketAddress("127.0.0.1", port + 1) };
+		Node node = new Node(id, addresses, serial ? new SerializingCodec() : new TokenCodec());
+		DistributedBenchmark bouncer = new DistributedBenchmark(node.remote(1 - id, "bouncer", LATENCY));
+		node.register("bouncer", bouncer);
+		if (!child) {
+			for (int i = 0; i < tokens; i++) {
+				node.getEventingSystem().scheduleEventAbsolute(bouncer, new Token(i, 0), 0);
+			}
+		}
+		node.connect(30000);
+		long start = System.nanoTime();
+		node.run(LATENCY, endTime);
+		long elapsed = System.nanoTime() - start;
+		node.close();
+		if (!child) {
+			process.waitFor();
+			long crossings = node.getEventsSent() + node.getEventsReceived();
+			System.out.println(String.format(
+					"%d tokens, %d windows: %,d events crossed between the JVMs in %.3f s (%,.0f events/s, %s codec)",
+					tokens, node.getWindows(), crossings, elapsed / 1e9, crossings * 1e9 / elapsed,
+					serial ? "serializing" : "binary"));
+		}
+	}
+
+}
@@ -0,0 +1,32 @@
+package com.github.glfrazier.event.distributed;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import com.github.glfrazier.event.Event;
+
+/**
+ * Converts the events that cross between {@link Node}s to and from bytes. Every
+ * node of a run must use the same codec. The default,
+ * {@link SerializingCodec}, handles any {@link java.io.Serializable} event; a
+ * model with a few event types will usually move many more events per second
+ * with a codec that writes their fields directly.
+ * 
+ * @author Greg Frazier
+ *
+ */
+public interface EventCodec {
+
+	/**
+	 * Write <code>e</code> to <code>out</code>.
+	 */
+	public void encode(Event e, DataOutput out) throws IOException;
+
+	/**
+	 * Read an event written by {@link #encode(Event, DataOutput)}. The input holds
+	 * exactly the bytes that were written.
+	 */
+	public Event decode(DataInput in) throws IOException;
+
+}
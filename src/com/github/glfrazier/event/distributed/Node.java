@@ -0,0 +1,560 @@
+package com.github.glfrazier.event.distributed;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.glfrazier.event.EndConditions;
+import com.github.glfrazier.event.Event;
+import com.github.glfrazier.event.EventProcessor;
+import com.github.glfrazier.event.EventingSystem;
+
+/**
+ * One partition of a simulation that is spread over several JVMs. Each node
+ * runs its own (non-realtime) {@link EventingSystem}, hosts the
+ * {@link EventProcessor}s registered with it, and reaches the processors of the
+ * other nodes through {@link RemoteProcessor} proxies. The nodes are connected
+ * pairwise by TCP sockets (which may all be on the loopback interface).
+ * <p>
+ * Time is kept in step by a conservative window protocol, which takes the
+ * place of {@link com.github.glfrazier.event.util.Synchronizer} across
+ * processes. Every proxy has a latency of at least the <em>lookahead</em>
+ * <code>L</code>, so an event forwarded at time <code>t</code> is delivered
+ * remotely no earlier than <code>t + L</code>. Each node therefore may safely
+ * deliver all of its events earlier than <code>T + L</code>, where
+ * <code>T</code> is the earliest pending event anywhere. At the end of each
+ * window the nodes exchange the events they forwarded, followed by a barrier
+ * message carrying the time of their earliest pending (or forwarded) event;
+ * every node computes the same next <code>T</code> from the barriers, so empty
+ * stretches of time are skipped.
+ * <p>
+ * Messages are length-prefixed frames. The name of a remote processor is sent
+ * once per connection; thereafter events carry a small integer handle. Events
+ * are encoded by a pluggable {@link EventCodec}.
+ *
+ * <pre>
+ * Node node = new Node(id, 2, 47000); // two nodes on loopback ports 47000 and 47001
+ * node.register("server", server);
+ * RemoteProcessor client = node.remote(1 - id, "client", 5);
+ * node.connect(10000);
+ * node.run(5, 1000000);
+ * node.close();
+ * </pre>
+ *
+ * @author Greg Frazier
+ *
+ */
+public class Node {
+
+	private static final byte DEFINE = 1;
+	private static final byte EVENT = 2;
+	private static final byte BARRIER = 3;
+
+	private final int id;
+	private final InetSocketAddress[] addresses;
+	private final EventCodec codec;
+	private final EventingSystem eventingSystem;
+
+	private final Map<String, EventProcessor> processors = new HashMap<>();
+	private final List<RemoteProcessor> proxies = new ArrayList<>();
+	private Peer[] peers;
+	private Selector selector;
+
+	/** The earliest delivery time of the events forwarded in the current window. */
+	private long minSentTime = Long.MAX_VALUE;
+	private long eventsSent = 0;
+	private long eventsReceived = 0;
+	private long windows = 0;
+
+	/**
+	 * Create a node of a run whose nodes all listen on the loopback interface, on
+	 * consecutive ports, and exchange serialized events.
+	 *
+	 * @param id       this node's id, from 0 to <code>nodes - 1</code>
+	 * @param nodes    the number of nodes
+	 * @param basePort the port of node 0; node <code>i</code> listens on
+	 *                 <code>basePort + i</code>
+	 */
+	public Node(int id, int nodes, int basePort) {
+		this(id, loopback(nodes, basePort), new SerializingCodec());
+	}
+
+	/**
+	 * @param id        this node's id: the index of its address
+	 * @param addresses the address on which each node listens
+	 * @param codec     the codec for the events that cross between nodes
+	 */
+	public Node(int id, InetSocketAddress[] addresses, EventCodec codec) {
+		if (id < 0 || id >= addresses.length) {
+			throw new IllegalArgumentException("id must be in [0, " + addresses.length + ")");
+		}
+		if (codec == null) {
+			throw new NullPointerException("codec is null");
+		}
+		this.id = id;
+		this.addresses = addresses.clone();
+		this.codec = codec;
+		this.eventingSystem = new EventingSystem("node" + id, EventingSystem.NOT_REALTIME);
+		eventingSystem.exitOnEmptyQueue(true);
+	}
+
+	private static InetSocketAddress[] loopback(int nodes, int basePort) {
+		InetSocketAddress[] addresses = new InetSocketAddress[nodes];
+		for (int i = 0; i < nodes; i++) {
+			addresses[i] = new InetSocketAddress("127.0.0.1", basePort + i);
+		}
+		return addresses;
+	}
+
+	/**
+	 * @return the system that delivers this node's events; schedule the initial
+	 *         events here
+	 */
+	public EventingSystem getEventingSystem() {
+		return eventingSystem;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Make a local processor reachable from other nodes under <code>name</code>.
+	 */
+	public synchronized void register(String name, EventProcessor processor) {
+		if (processors.containsKey(name)) {
+			throw new IllegalArgumentException(name + " is already registered");
+		}
+		processors.put(name, processor);
+	}
+
+	/**
+	 * Obtain a proxy for the processor registered as <code>name</code> on node
+	 * <code>nodeId</code>.
+	 *
+	 * @param latency the delay between the proxy's delivery and the remote
+	 *                delivery; must be at least the lookahead
+	 */
+	public synchronized RemoteProcessor remote(int nodeId, String name, long latency) {
+		if (nodeId == id || nodeId < 0 || nodeId >= addresses.length) {
+			throw new IllegalArgumentException("There is no remote node " + nodeId);
+		}
+		if (latency <= 0) {
+			throw new IllegalArgumentException("latency must be positive");
+		}
+		RemoteProcessor proxy = new RemoteProcessor(this, nodeId, name, latency);
+		proxies.add(proxy);
+		return proxy;
+	}
+
+	/**
+	 * Connect to every other node. Each node connects to the nodes with lower ids
+	 * and accepts connections from those with higher ids, so the nodes may be
+	 * started in any order.
+	 *
+	 * @param timeoutMillis how long to keep trying to reach a node that is not yet
+	 *                      listening
+	 */
+	public void connect(long timeoutMillis) throws IOException {
+		peers = new Peer[addresses.length];
+		selector = Selector.open();
+		try (ServerSocketChannel server = ServerSocketChannel.open()) {
+			server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			server.bind(addresses[id]);
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			for (int j = 0; j < id; j++) {
+				SocketChannel channel = null;
+				while (channel == null) {
+					try {
+						channel = SocketChannel.open(addresses[j]);
+					} catch (IOException e) {
+						if (System.currentTimeMillis() > deadline) {
+							throw new IOException("Could not reach node " + j + " at " + addresses[j], e);
+						}
+						sleep(50);
+					}
+				}
+				ByteBuffer hello = ByteBuffer.allocate(4).putInt(0, id);
+				while (hello.hasRemaining()) {
+					channel.write(hello);
+				}
+				peers[j] = new Peer(j, channel);
+			}
+			for (int n = id + 1; n < addresses.length; n++) {
+				SocketChannel channel = server.accept();
+				ByteBuffer hello = ByteBuffer.allocate(4);
+				while (hello.hasRemaining()) {
+					if (channel.read(hello) < 0) {
+						throw new IOException("A node closed its connection during the handshake");
+					}
+				}
+				int j = hello.getInt(0);
+				if (j <= id || j >= addresses.length || peers[j] != null) {
+					throw new IOException("Unexpected handshake from node " + j);
+				}
+				peers[j] = new Peer(j, channel);
+			}
+		}
+		for (Peer peer : peers) {
+			if (peer != null) {
+				peer.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				peer.channel.configureBlocking(false);
+				peer.channel.register(selector, SelectionKey.OP_READ, peer);
+			}
+		}
+	}
+
+	private static void sleep(long millis) throws IOException {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted", e);
+		}
+	}
+
+	/**
+	 * Run the simulation, in windows of <code>lookahead</code> time units, until
+	 * no node has a pending event at or before <code>endTime</code>. Every node
+	 * must call this with the same arguments.
+	 *
+	 * @param lookahead the length of a window; no proxy on any node may have a
+	 *                  smaller latency
+	 * @param endTime   the time of the last delivery
+	 */
+	public void run(long lookahead, long endTime) throws IOException {
+		if (peers == null) {
+			throw new IllegalStateException("connect() has not been called");
+		}
+		synchronized (this) {
+			for (RemoteProcessor proxy : proxies) {
+				if (proxy.getLatency() < lookahead) {
+					throw new IllegalArgumentException(proxy + " has a latency less than the lookahead " + lookahead);
+				}
+			}
+		}
+		long next = exchange(eventingSystem.getNextEventTime());
+		while (next <= endTime) {
+			long windowEnd = Math.min(next + lookahead - 1, endTime);
+			// deliver every event up to and including windowEnd
+			eventingSystem.setEndConditions(new EndConditions().atTime(windowEnd));
+			eventingSystem.run();
+			windows++;
+			next = exchange(eventingSystem.getNextEventTime());
+		}
+		eventingSystem.setEndConditions(null);
+	}
+
+	/**
+	 * Invoked by a proxy, on the run thread, to forward an event.
+	 */
+	void send(RemoteProcessor proxy, Event e, long time) {
+		Peer peer = peers[proxy.getNodeId()];
+		try {
+			if (proxy.handle < 0) {
+				proxy.handle = peer.handles++;
+				int start = peer.beginFrame(DEFINE);
+				peer.data.writeInt(proxy.handle);
+				peer.data.writeUTF(proxy.getName());
+				peer.endFrame(start);
+			}
+			int start = peer.beginFrame(EVENT);
+			peer.data.writeInt(proxy.handle);
+			peer.data.writeLong(time);
+			codec.encode(e, peer.data);
+			peer.endFrame(start);
+		} catch (IOException x) {
+			throw new IllegalStateException("Cannot encode " + e, x);
+		}
+		if (time < minSentTime) {
+			minSentTime = time;
+		}
+		eventsSent++;
+	}
+
+	/**
+	 * Flush the forwarded events to every peer, send each a barrier, and receive
+	 * their events and barriers.
+	 *
+	 * @param localNext the time of this node's earliest pending event
+	 * @return the time of the earliest pending event on any node
+	 */
+	private long exchange(long localNext) throws IOException {
+		long next = Math.min(localNext, minSentTime);
+		minSentTime = Long.MAX_VALUE;
+		int waiting = 0;
+		for (Peer peer : peers) {
+			if (peer == null) {
+				continue;
+			}
+			int start = peer.beginFrame(BARRIER);
+			peer.data.writeLong(next);
+			peer.endFrame(start);
+			peer.barrier = false;
+			// frames that arrived during the previous exchange
+			peer.parse();
+			if (!peer.barrier) {
+				waiting++;
+			}
+			peer.updateInterest();
+		}
+		boolean flushing = true;
+		while (waiting > 0 || flushing) {
+			flushing = false;
+			for (Peer peer : peers) {
+				if (peer != null && !peer.flush()) {
+					flushing = true;
+				}
+			}
+			if (waiting == 0 && !flushing) {
+				break;
+			}
+			selector.select();
+			for (SelectionKey key : selector.selectedKeys()) {
+				Peer peer = (Peer) key.attachment();
+				if (key.isValid() && key.isReadable() && !peer.barrier) {
+					peer.read();
+					peer.parse();
+					if (peer.barrier) {
+						waiting--;
+						peer.updateInterest();
+					}
+				}
+			}
+			selector.selectedKeys().clear();
+		}
+		for (Peer peer : peers) {
+			if (peer != null && peer.peerNext < next) {
+				next = peer.peerNext;
+			}
+		}
+		return next;
+	}
+
+	private void received(Peer peer, DataInputStream in) throws IOException {
+		int handle = in.readInt();
+		long time = in.readLong();
+		Event e = codec.decode(in);
+		EventProcessor target = peer.targets.get(handle);
+		if (target == null) {
+			throw new IOException("Node " + peer.id + " sent an event to undefined handle " + handle);
+		}
+		eventingSystem.scheduleEventAbsolute(target, e, time);
+		eventsReceived++;
+	}
+
+	private synchronized EventProcessor lookup(String name) throws IOException {
+		EventProcessor p = processors.get(name);
+		if (p == null) {
+			throw new IOException("No processor is registered as " + name + " on node " + id);
+		}
+		return p;
+	}
+
+	public void close() throws IOException {
+		if (peers != null) {
+			for (Peer peer : peers) {
+				if (peer != null) {
+					peer.channel.close();
+				}
+			}
+			selector.close();
+		}
+	}
+
+	public long getEventsSent() {
+		return eventsSent;
+	}
+
+	public long getEventsReceived() {
+		return eventsReceived;
+	}
+
+	/**
+	 * @return the number of windows run
+	 */
+	public long getWindows() {
+		return windows;
+	}
+
+	@Override
+	public String toString() {
+		return "Node " + id + " of " + addresses.length;
+	}
+
+	/**
+	 * The connection to one other node, with its outgoing and incoming buffers.
+	 */
+	private class Peer {
+
+		private final int id;
+		private final SocketChannel channel;
+		/** Frames not yet written; in write mode. */
+		private ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+		/** Bytes read but not yet parsed; in write mode. */
+		private ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+		private final DataOutputStream data = new DataOutputStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+				ensure(1);
+				out.put((byte) b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				ensure(len);
+				out.put(b, off, len);
+			}
+		});
+		/** Reads the payload of the frame being parsed. */
+		private final DataInputStream frame = new DataInputStream(new InputStream() {
+			@Override
+			public int read() {
+				return in.hasRemaining() && in.position() < frameEnd ? in.get() & 0xff : -1;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) {
+				int n = Math.min(len, frameEnd - in.position());
+				if (n <= 0) {
+					return len == 0 ? 0 : -1;
+				}
+				in.get(b, off, n);
+				return n;
+			}
+		});
+		private int frameEnd;
+
+		/** The next handle to assign to a proxy for this peer. */
+		private int handles = 0;
+		/** The peer's proxies for this node's processors, by handle. */
+		private final Map<Integer, EventProcessor> targets = new HashMap<>();
+		private boolean barrier;
+		private long peerNext;
+
+		Peer(int id, SocketChannel channel) {
+			this.id = id;
+			this.channel = channel;
+		}
+
+		private void ensure(int n) {
+			if (out.remaining() < n) {
+				ByteBuffer b = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + n));
+				out.flip();
+				b.put(out);
+				out = b;
+			}
+		}
+
+		int beginFrame(byte type) {
+			ensure(5);
+			int start = out.position();
+			out.putInt(0);
+			out.put(type);
+			return start;
+		}
+
+		void endFrame(int start) {
+			out.putInt(start, out.position() - start - 4);
+		}
+
+		/**
+		 * Write as much of the outgoing buffer as the socket will take.
+		 *
+		 * @return <code>true</code> if the buffer is now empty
+		 */
+		boolean flush() throws IOException {
+			if (out.position() == 0) {
+				return true;
+			}
+			out.flip();
+			channel.write(out);
+			out.compact();
+			updateInterest();
+			return out.position() == 0;
+		}
+
+		/**
+		 * Select for reading until the barrier arrives (later frames wait for the
+		 * next exchange), and for writing while there is output.
+		 */
+		void updateInterest() {
+			int ops = barrier ? 0 : SelectionKey.OP_READ;
+			if (out.position() > 0) {
+				ops |= SelectionKey.OP_WRITE;
+			}
+			channel.keyFor(selector).interestOps(ops);
+		}
+
+		void read() throws IOException {
+			if (!in.hasRemaining()) {
+				ByteBuffer b = ByteBuffer.allocate(in.capacity() * 2);
+				in.flip();
+				b.put(in);
+				in = b;
+			}
+			if (channel.read(in) < 0) {
+				throw new IOException("Node " + id + " closed its connection");
+			}
+		}
+
+		/**
+		 * Handle the complete frames in the incoming buffer, stopping after a
+		 * barrier.
+		 */
+		void parse() throws IOException {
+			in.flip();
+			try {
+				while (!barrier && in.remaining() >= 4) {
+					int length = in.getInt(in.position());
+					if (in.remaining() < 4 + length) {
+						if (4 + length > in.capacity()) {
+							// make room for the whole frame
+							ByteBuffer b = ByteBuffer.allocate(4 + length);
+							b.put(in);
+							b.flip();
+							in = b;
+						}
+						break;
+					}
+					in.getInt();
+					frameEnd = in.position() + length;
+					byte type = in.get();
+					switch (type) {
+					case DEFINE:
+						int handle = frame.readInt();
+						targets.put(handle, lookup(frame.readUTF()));
+						break;
+					case EVENT:
+						received(this, frame);
+						break;
+					case BARRIER:
+						peerNext = frame.readLong();
+						barrier = true;
+						break;
+					default:
+						throw new IOException("Node " + id + " sent a frame of unknown type " + type);
+					}
+					in.position(frameEnd);
+				}
+			} finally {
+				in.compact();
+			}
+		}
+
+	}
+
+}
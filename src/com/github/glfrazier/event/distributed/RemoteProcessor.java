@@ -0,0 +1,58 @@
+package com.github.glfrazier.event.distributed;
+
+import com.github.glfrazier.event.Event;
+import com.github.glfrazier.event.EventProcessor;
+import com.github.glfrazier.event.EventingSystem;
+
+/**
+ * A local stand-in for an {@link EventProcessor} that lives on another
+ * {@link Node}. Events scheduled to the proxy are delivered to it at their
+ * scheduled time, like any other event; the proxy then forwards each one to
+ * the remote processor, to be delivered there <code>latency</code> time units
+ * later. The latency is what lets the nodes run in parallel: it must be at
+ * least the lookahead with which the nodes are run.
+ * <p>
+ * Proxies are obtained from {@link Node#remote(int, String, long)}.
+ * 
+ * @author Greg Frazier
+ *
+ */
+public class RemoteProcessor implements EventProcessor {
+
+	private final Node node;
+	private final int nodeId;
+	private final String name;
+	private final long latency;
+	/** The handle under which the name has been defined to the peer; -1 if not yet. */
+	int handle = -1;
+
+	RemoteProcessor(Node node, int nodeId, String name, long latency) {
+		this.node = node;
+		this.nodeId = nodeId;
+		this.name = name;
+		this.latency = latency;
+	}
+
+	@Override
+	public void process(Event e, EventingSystem eventingSystem, long deliveryTime) {
+		node.send(this, e, deliveryTime + latency);
+	}
+
+	public int getNodeId() {
+		return nodeId;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getLatency() {
+		return latency;
+	}
+
+	@Override
+	public String toString() {
+		return "RemoteProcessor " + name + "@" + nodeId;
+	}
+
+}
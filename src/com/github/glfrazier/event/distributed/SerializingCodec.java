@@ -0,0 +1,59 @@
+package com.github.glfrazier.event.distributed;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+import com.github.glfrazier.event.Event;
+
+/**
+ * An {@link EventCodec} that uses Java serialization. The events must be
+ * {@link java.io.Serializable}.
+ * 
+ * @author Greg Frazier
+ *
+ */
+public class SerializingCodec implements EventCodec {
+
+	@Override
+	public void encode(Event e, final DataOutput out) throws IOException {
+		ObjectOutputStream oos = new ObjectOutputStream(new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				out.write(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+		});
+		oos.writeObject(e);
+		oos.flush();
+	}
+
+	@Override
+	public Event decode(final DataInput in) throws IOException {
+		ObjectInputStream ois = new ObjectInputStream(new InputStream() {
+			@Override
+			public int read() throws IOException {
+				try {
+					return in.readUnsignedByte();
+				} catch (EOFException e) {
+					return -1;
+				}
+			}
+		});
+		try {
+			return (Event) ois.readObject();
+		} catch (ClassNotFoundException | ClassCastException e) {
+			throw new IOException("Cannot decode event", e);
+		}
+	}
+
+}
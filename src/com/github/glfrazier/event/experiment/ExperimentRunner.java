@@ -0,0 +1,362 @@
+package com.github.glfrazier.event.experiment;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Runs independent replications of a model in parallel, in one JVM, and
+ * gathers their responses into running {@link Summary} statistics. The
+ * replications of a design point run on a fork-join pool, no more than a couple
+ * per worker ahead of the results, and the results are folded into the
+ * statistics in replication order. After the minimum number of replications,
+ * the runner stops as soon as every response is known to the requested
+ * precision, or at the maximum number of replications.
+ * <p>
+ * Replication <em>i</em> of a design point always gets the same seed, derived
+ * from the runner's seed, and the results are folded in order; so a run is
+ * reproducible whatever the parallelism.
+ *
+ * <pre>
+ * ExperimentRunner&lt;Double&gt; runner = new ExperimentRunner&lt;&gt;(queue);
+ * runner.setRelativePrecision(0.01);
+ * Map&lt;Double, ExperimentRunner.Result&lt;Double&gt;&gt; results = runner.sweep(Arrays.asList(0.5, 0.7, 0.9));
+ * </pre>
+ *
+ * @param <P> the type of the parameters of a design point
+ *
+ * @author Greg Frazier
+ *
+ */
+public class ExperimentRunner<P> {
+
+	public static final double DEFAULT_CONFIDENCE = 0.95;
+	public static final int DEFAULT_MIN_REPLICATIONS = 10;
+	public static final int DEFAULT_MAX_REPLICATIONS = 1000;
+
+	private final Replication<P> replication;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	private double confidence = DEFAULT_CONFIDENCE;
+	private int minReplications = DEFAULT_MIN_REPLICATIONS;
+	private int maxReplications = DEFAULT_MAX_REPLICATIONS;
+	private double relativePrecision = 0;
+	private final Map<String, Double> precision = new HashMap<>();
+	private long seed = 0;
+	private boolean verbose;
+
+	public ExperimentRunner(Replication<P> replication) {
+		if (replication == null) {
+			throw new NullPointerException("replication");
+		}
+		this.replication = replication;
+	}
+
+	/**
+	 * Set the number of replications that run at once. The default is the number
+	 * of available processors.
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism <= 0) {
+			throw new IllegalArgumentException("parallelism must be positive");
+		}
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Limit the parallelism so that the replications that run at once fit in the
+	 * maximum heap.
+	 *
+	 * @param bytes the heap used by one replication
+	 */
+	public void setMemoryPerReplication(long bytes) {
+		if (bytes <= 0) {
+			throw new IllegalArgumentException("bytes must be positive");
+		}
+		long fit = Math.max(1, Runtime.getRuntime().maxMemory() / bytes);
+		parallelism = (int) Math.min(Runtime.getRuntime().availableProcessors(), fit);
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * @param confidence the confidence level of the intervals, e.g. 0.95
+	 */
+	public void setConfidence(double confidence) {
+		if (!(confidence > 0 && confidence < 1)) {
+			throw new IllegalArgumentException("confidence must be between 0 and 1");
+		}
+		this.confidence = confidence;
+	}
+
+	public double getConfidence() {
+		return confidence;
+	}
+
+	/**
+	 * @param min the number of replications to run before stopping early; at least
+	 *            2
+	 * @param max the number of replications at which to stop regardless
+	 */
+	public void setReplications(int min, int max) {
+		if (min < 2 || max < min) {
+			throw new IllegalArgumentException("Require 2 <= min <= max");
+		}
+		this.minReplications = min;
+		this.maxReplications = max;
+	}
+
+	/**
+	 * Stop once the half-width of the confidence interval of every response is no
+	 * more than this fraction of its mean. 0, the default, turns off the relative
+	 * criterion.
+	 */
+	public void setRelativePrecision(double fraction) {
+		if (fraction < 0) {
+			throw new IllegalArgumentException("fraction must not be negative");
+		}
+		this.relativePrecision = fraction;
+	}
+
+	/**
+	 * Stop only once the half-width of the confidence interval of the named
+	 * response is no more than <code>halfWidth</code>.
+	 */
+	public void setPrecision(String response, double halfWidth) {
+		if (!(halfWidth > 0)) {
+			throw new IllegalArgumentException("halfWidth must be positive");
+		}
+		precision.put(response, halfWidth);
+	}
+
+	/**
+	 * Set the seed from which the seeds of the replications are derived.
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	public void setVerbose(boolean v) {
+		verbose = v;
+	}
+
+	/**
+	 * Replicate one design point.
+	 *
+	 * @throws ExecutionException if a replication throws; the others are abandoned
+	 */
+	public Result<P> run(P parameters) throws InterruptedException, ExecutionException {
+		return sweep(Collections.singletonList(parameters)).get(parameters);
+	}
+
+	/**
+	 * Replicate each design point in turn, on one pool.
+	 *
+	 * @return the results, in the order of the design points
+	 * @throws ExecutionException if a replication throws; the others are abandoned
+	 */
+	public Map<P, Result<P>> sweep(Collection<P> points) throws InterruptedException, ExecutionException {
+		Map<P, Result<P>> results = new LinkedHashMap<>();
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			for (P point : points) {
+				Result<P> result = replicate(pool, point);
+				if (verbose) {
+					System.err.println(this + ": " + result);
+					System.err.flush();
+				}
+				results.put(point, result);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		return results;
+	}
+
+	private Result<P> replicate(ForkJoinPool pool, final P parameters)
+			throws InterruptedException, ExecutionException {
+		long start = System.currentTimeMillis();
+		CompletionService<Outcome> completions = new ExecutorCompletionService<>(pool);
+		Map<Integer, Future<Outcome>> running = new HashMap<>();
+		Map<Integer, Map<String, Double>> finished = new HashMap<>();
+		Map<String, Summary> summaries = new TreeMap<>();
+		SplittableRandom seeds = new SplittableRandom(seed);
+		int submitted = 0;
+		int folded = 0;
+		boolean precise = false;
+		try {
+			while (folded < maxReplications && !precise) {
+				while (submitted < maxReplications && submitted - folded < 2 * parallelism) {
+					final int index = submitted++;
+					final long s = seeds.nextLong();
+					running.put(index, completions.submit(new Callable<Outcome>() {
+						@Override
+						public Outcome call() throws Exception {
+							return new Outcome(index, replication.run(parameters, s));
+						}
+					}));
+				}
+				Outcome outcome = completions.take().get();
+				running.remove(outcome.index);
+				finished.put(outcome.index, outcome.responses);
+				// fold in replication order, so that the result does not depend on
+				// which replications finish first
+				while (!precise && finished.containsKey(folded)) {
+					for (Map.Entry<String, Double> response : finished.remove(folded).entrySet()) {
+						Summary summary = summaries.get(response.getKey());
+						if (summary == null) {
+							summary = new Summary();
+							summaries.put(response.getKey(), summary);
+						}
+						summary.add(response.getValue());
+					}
+					folded++;
+					precise = folded >= minReplications && isPrecise(summaries);
+				}
+			}
+		} finally {
+			for (Future<Outcome> f : running.values()) {
+				f.cancel(true);
+			}
+		}
+		return new Result<P>(parameters, folded, precise, confidence, summaries,
+				System.currentTimeMillis() - start);
+	}
+
+	private boolean isPrecise(Map<String, Summary> summaries) {
+		if (relativePrecision == 0 && precision.isEmpty()) {
+			return false;
+		}
+		for (Map.Entry<String, Double> p : precision.entrySet()) {
+			Summary s = summaries.get(p.getKey());
+			if (s == null || !(s.getHalfWidth(confidence) <= p.getValue())) {
+				return false;
+			}
+		}
+		if (relativePrecision > 0) {
+			for (Summary s : summaries.values()) {
+				if (!(s.getHalfWidth(confidence) <= relativePrecision * Math.abs(s.getMean()))) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "ExperimentRunner for " + replication;
+	}
+
+	private static class Outcome {
+		private final int index;
+		private final Map<String, Double> responses;
+
+		Outcome(int index, Map<String, Double> responses) {
+			this.index = index;
+			this.responses = responses;
+		}
+	}
+
+	/**
+	 * The statistics of the replications of one design point.
+	 */
+	public static class Result<P> {
+
+		private final P parameters;
+		private final int replications;
+		private final boolean precise;
+		private final double confidence;
+		private final Map<String, Summary> summaries;
+		private final long elapsed;
+
+		Result(P parameters, int replications, boolean precise, double confidence, Map<String, Summary> summaries,
+				long elapsed) {
+			this.parameters = parameters;
+			this.replications = replications;
+			this.precise = precise;
+			this.confidence = confidence;
+			this.summaries = Collections.unmodifiableMap(summaries);
+			this.elapsed = elapsed;
+		}
+
+		public P getParameters() {
+			return parameters;
+		}
+
+		/**
+		 * @return the number of replications whose responses are in the statistics
+		 */
+		public int getReplications() {
+			return replications;
+		}
+
+		/**
+		 * @return true if the runner stopped because the requested precision was
+		 *         reached
+		 */
+		public boolean isPrecise() {
+			return precise;
+		}
+
+		/**
+		 * @return the statistics of each response, by name
+		 */
+		public Map<String, Summary> getSummaries() {
+			return summaries;
+		}
+
+		public double getMean(String response) {
+			return summary(response).getMean();
+		}
+
+		/**
+		 * @return the half-width of the confidence interval of the response's mean,
+		 *         at the runner's confidence level
+		 */
+		public double getHalfWidth(String response) {
+			return summary(response).getHalfWidth(confidence);
+		}
+
+		private Summary summary(String response) {
+			Summary s = summaries.get(response);
+			if (s == null) {
+				throw new IllegalArgumentException("No response named " + response);
+			}
+			return s;
+		}
+
+		/**
+		 * @return the wall-clock time taken, in milliseconds
+		 */
+		public long getElapsed() {
+			return elapsed;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(parameters).append(": ").append(replications).append(" replications in ").append(elapsed)
+					.append(" ms").append(precise ? "" : " (precision not reached)");
+			for (Map.Entry<String, Summary> entry : summaries.entrySet()) {
+				Summary s = entry.getValue();
+				sb.append(String.format("%n  %s = %.6g +/- %.3g (%d%%)", entry.getKey(), s.getMean(),
+						s.getHalfWidth(confidence), Math.round(confidence * 100)));
+			}
+			return sb.toString();
+		}
+
+	}
+
+}
@@ -0,0 +1,41 @@
+package com.github.glfrazier.event.experiment;
+
+import java.util.Map;
+
+/**
+ * One run of a model. An {@link ExperimentRunner} invokes
+ * {@link #run(Object, long)} many times, concurrently, with different seeds, so
+ * each invocation must build its own model (typically around its own
+ * {@link com.github.glfrazier.event.EventingSystem}) and must not touch state
+ * shared with the others. Seeding the eventing system, whose processors then
+ * draw from streams of their own, makes each run depend on its seed alone.
+ *
+ * <pre>
+ * Replication&lt;Double&gt; queue = new Replication&lt;Double&gt;() {
+ * 	public Map&lt;String, Double&gt; run(Double load, long seed) {
+ * 		EventingSystem es = new EventingSystem("mm1", false);
+ * 		es.setSeed(seed);
+ * 		MM1 model = new MM1(es, load); // draws from es.getRandom(this)
+ * 		es.run();
+ * 		return Collections.singletonMap("wait", model.getMeanWait());
+ * 	}
+ * };
+ * </pre>
+ *
+ * @param <P> the type of the parameters of a design point
+ *
+ * @author Greg Frazier
+ *
+ */
+public interface Replication<P> {
+
+	/**
+	 * Run the model once.
+	 *
+	 * @param parameters the design point
+	 * @param seed       the seed for the run's random numbers
+	 * @return the responses of the run, by name
+	 */
+	public Map<String, Double> run(P parameters, long seed) throws Exception;
+
+}
@@ -0,0 +1,195 @@
+package com.github.glfrazier.event.experiment;
+
+/**
+ * Running statistics of one response over a sequence of replications, updated
+ * one observation at a time with Welford's method, so that no observation is
+ * kept. Confidence intervals use Student's t distribution. A summary is not
+ * thread-safe.
+ *
+ * @author Greg Frazier
+ *
+ */
+public class Summary {
+
+	private long count = 0;
+	private double mean = 0;
+	private double m2 = 0;
+	private double min = Double.POSITIVE_INFINITY;
+	private double max = Double.NEGATIVE_INFINITY;
+
+	public void add(double x) {
+		count++;
+		double delta = x - mean;
+		mean += delta / count;
+		m2 += delta * (x - mean);
+		if (x < min) {
+			min = x;
+		}
+		if (x > max) {
+			max = x;
+		}
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public double getMean() {
+		return count == 0 ? Double.NaN : mean;
+	}
+
+	/**
+	 * @return the sample variance, or NaN if there are fewer than two observations
+	 */
+	public double getVariance() {
+		return count < 2 ? Double.NaN : m2 / (count - 1);
+	}
+
+	public double getStandardDeviation() {
+		return Math.sqrt(getVariance());
+	}
+
+	public double getMin() {
+		return min;
+	}
+
+	public double getMax() {
+		return max;
+	}
+
+	/**
+	 * @param confidence the confidence level, e.g. 0.95
+	 * @return the half-width of the confidence interval of the mean, or NaN if
+	 *         there are fewer than two observations
+	 */
+	public double getHalfWidth(double confidence) {
+		if (!(confidence > 0 && confidence < 1)) {
+			throw new IllegalArgumentException("confidence must be between 0 and 1");
+		}
+		if (count < 2) {
+			return Double.NaN;
+		}
+		return tQuantile(1 - (1 - confidence) / 2, count - 1) * Math.sqrt(getVariance() / count);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("n=%d mean=%.6g sd=%.6g min=%.6g max=%.6g", count, getMean(), getStandardDeviation(),
+				min, max);
+	}
+
+	/**
+	 * @param p  a probability, strictly between 0 and 1
+	 * @param df the degrees of freedom
+	 * @return the value below which Student's t distribution with
+	 *         <code>df</code> degrees of freedom falls with probability
+	 *         <code>p</code>
+	 */
+	public static double tQuantile(double p, double df) {
+		if (!(p > 0 && p < 1)) {
+			throw new IllegalArgumentException("p must be between 0 and 1");
+		}
+		if (p < 0.5) {
+			return -tQuantile(1 - p, df);
+		}
+		double lo = 0;
+		double hi = 1;
+		while (tCdf(hi, df) < p) {
+			lo = hi;
+			hi *= 2;
+		}
+		for (int i = 0; i < 100 && hi - lo > 1e-12 * hi; i++) {
+			double mid = (lo + hi) / 2;
+			if (tCdf(mid, df) < p) {
+				lo = mid;
+			} else {
+				hi = mid;
+			}
+		}
+		return (lo + hi) / 2;
+	}
+
+	/**
+	 * @return the probability that Student's t distribution with <code>df</code>
+	 *         degrees of freedom falls below <code>t</code>
+	 */
+	public static double tCdf(double t, double df) {
+		double tail = 0.5 * regularizedBeta(df / (df + t * t), df / 2, 0.5);
+		return t > 0 ? 1 - tail : tail;
+	}
+
+	/**
+	 * The regularized incomplete beta function, by its continued fraction.
+	 */
+	private static double regularizedBeta(double x, double a, double b) {
+		if (x <= 0) {
+			return 0;
+		}
+		if (x >= 1) {
+			return 1;
+		}
+		double front = Math.exp(logGamma(a + b) - logGamma(a) - logGamma(b) + a * Math.log(x) + b * Math.log(1 - x));
+		if (x < (a + 1) / (a + b + 2)) {
+			return front * betaFraction(x, a, b) / a;
+		}
+		return 1 - front * betaFraction(1 - x, b, a) / b;
+	}
+
+	private static double betaFraction(double x, double a, double b) {
+		final double tiny = 1e-300;
+		double c = 1;
+		double d = 1 - (a + b) * x / (a + 1);
+		if (Math.abs(d) < tiny) {
+			d = tiny;
+		}
+		d = 1 / d;
+		double h = d;
+		for (int m = 1; m <= 300; m++) {
+			int m2 = 2 * m;
+			double aa = m * (b - m) * x / ((a + m2 - 1) * (a + m2));
+			d = 1 + aa * d;
+			if (Math.abs(d) < tiny) {
+				d = tiny;
+			}
+			c = 1 + aa / c;
+			if (Math.abs(c) < tiny) {
+				c = tiny;
+			}
+			d = 1 / d;
+			h *= d * c;
+			aa = -(a + m) * (a + b + m) * x / ((a + m2) * (a + m2 + 1));
+			d = 1 + aa * d;
+			if (Math.abs(d) < tiny) {
+				d = tiny;
+			}
+			c = 1 + aa / c;
+			if (Math.abs(c) < tiny) {
+				c = tiny;
+			}
+			d = 1 / d;
+			double delta = d * c;
+			h *= delta;
+			if (Math.abs(delta - 1) < 1e-15) {
+				break;
+			}
+		}
+		return h;
+	}
+
+	/**
+	 * Lanczos' approximation of the log of the gamma function.
+	 */
+	private static double logGamma(double x) {
+		final double[] c = { 76.18009172947146, -86.50532032941677, 24.01409824083091, -1.231739572450155,
+				0.1208650973866179e-2, -0.5395239384953e-5 };
+		double y = x;
+		double tmp = x + 5.5;
+		tmp -= (x + 0.5) * Math.log(tmp);
+		double ser = 1.000000000190015;
+		for (double coefficient : c) {
+			ser += coefficient / ++y;
+		}
+		return -tmp + Math.log(2.5066282746310005 * ser / x);
+	}
+
+}
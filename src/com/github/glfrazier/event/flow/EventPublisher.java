@@ -0,0 +1,112 @@
+package com.github.glfrazier.event.flow;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import com.github.glfrazier.event.Event;
+import com.github.glfrazier.event.EventProcessor;
+import com.github.glfrazier.event.EventingSystem;
+
+/**
+ * A sink {@link EventProcessor} that is also a {@link Flow.Publisher}: each
+ * event delivered to it is converted to an item and published to its
+ * subscribers. Each subscriber has a buffer of <code>bufferSize</code> items;
+ * when a subscriber falls that far behind, delivery to the publisher waits for
+ * it, so a slow consumer slows the eventing system rather than being flooded.
+ * A realtime system that must not wait can set a block timeout, after which the
+ * item is dropped for the lagging subscribers, and counted.
+ *
+ * <pre>
+ * EventPublisher&lt;Fill&gt; out = new EventPublisher&lt;&gt;(e -&gt; ((FillEvent) e).getFill(), 1024);
+ * out.subscribe(downstream);
+ * es.scheduleEvent(out, fillEvent);
+ * </pre>
+ *
+ * @param <T> the type of the items
+ *
+ * @author Greg Frazier
+ *
+ */
+public class EventPublisher<T> extends SubmissionPublisher<T> implements EventProcessor {
+
+	private final Function<? super Event, ? extends T> converter;
+	private volatile long blockTimeout = 0;
+	private final AtomicLong published = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * Publish on the common fork-join pool.
+	 *
+	 * @param converter  converts a delivered event to the item to publish
+	 * @param bufferSize the most items to buffer for each subscriber; rounded up
+	 *                   to a power of two
+	 */
+	public EventPublisher(Function<? super Event, ? extends T> converter, int bufferSize) {
+		this(converter, ForkJoinPool.commonPool(), bufferSize);
+	}
+
+	/**
+	 * @param executor runs the subscribers
+	 */
+	public EventPublisher(Function<? super Event, ? extends T> converter, Executor executor, int bufferSize) {
+		super(executor, bufferSize);
+		if (converter == null) {
+			throw new NullPointerException("converter");
+		}
+		this.converter = converter;
+	}
+
+	/**
+	 * Set how long delivery waits for a lagging subscriber before the item is
+	 * dropped for it.
+	 *
+	 * @param timeout the time to wait, or 0 (the default) to wait indefinitely
+	 */
+	public void setBlockTimeout(long timeout, TimeUnit unit) {
+		if (timeout < 0) {
+			throw new IllegalArgumentException("timeout must not be negative");
+		}
+		blockTimeout = unit.toNanos(timeout);
+	}
+
+	@Override
+	public void process(Event e, EventingSystem eventingSystem, long deliveryTime) {
+		T item = converter.apply(e);
+		long timeout = blockTimeout;
+		if (timeout == 0) {
+			submit(item);
+		} else {
+			int lag = offer(item, timeout, TimeUnit.NANOSECONDS, null);
+			if (lag < 0) {
+				dropped.addAndGet(-lag);
+			}
+		}
+		published.incrementAndGet();
+	}
+
+	/**
+	 * @return the number of events delivered to the publisher
+	 */
+	public long getPublished() {
+		return published.get();
+	}
+
+	/**
+	 * @return the number of items dropped for lagging subscribers, counting an
+	 *         item once for each subscriber that missed it
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	@Override
+	public String toString() {
+		return "EventPublisher (" + getNumberOfSubscribers() + " subscribers)";
+	}
+
+}
@@ -0,0 +1,229 @@
+package com.github.glfrazier.event.flow;
+
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+
+import com.github.glfrazier.event.AdmissionPolicy;
+import com.github.glfrazier.event.Event;
+import com.github.glfrazier.event.EventProcessor;
+import com.github.glfrazier.event.EventingSystem;
+
+/**
+ * A {@link Flow.Subscriber} that feeds an {@link EventingSystem}: each item it
+ * receives is converted to an event and scheduled for immediate delivery to a
+ * target processor. The subscriber requests items only as there is room for
+ * them: it keeps no more than <code>window</code> items requested or queued
+ * and not yet delivered, and, if the eventing system has a capacity (see
+ * {@link EventingSystem#setCapacity(int, com.github.glfrazier.event.AdmissionPolicy)}),
+ * no more than the queue has room for. Demand is renewed as the events are
+ * delivered, so a fast publisher is held to the pace of the simulation, and
+ * nothing is buffered outside the queue.
+ * <p>
+ * The events are delivered to the target through the subscriber, which counts
+ * them; so the subscriber, not the target, is the processor named in
+ * diagnostics. When nothing of its own is queued, the subscriber requests at
+ * least one item even if the queue is full, and the admission policy decides
+ * its fate: under {@link AdmissionPolicy#BLOCK} the publisher's thread waits
+ * for room, and under {@link AdmissionPolicy#REJECT} (or a block that times
+ * out) the subscription is cancelled. The <code>DROP_</code> policies are not
+ * supported: an event they drop is never delivered, so its place in the
+ * window would never be returned, and the subscriber refuses a system that
+ * uses one.
+ *
+ * <pre>
+ * EventSubscriber&lt;Order&gt; in = new EventSubscriber&lt;&gt;(es, exchange, o -&gt; new OrderEvent(o), 256);
+ * orders.subscribe(in);
+ * </pre>
+ *
+ * @param <T> the type of the items
+ *
+ * @author Greg Frazier
+ *
+ */
+public class EventSubscriber<T> implements Flow.Subscriber<T>, EventProcessor {
+
+	private final EventingSystem eventingSystem;
+	private final EventProcessor target;
+	private final Function<? super T, ? extends Event> converter;
+	private final int window;
+
+	private Flow.Subscription subscription;
+	/** Items requested and not yet delivered (whether or not they have arrived). */
+	private long inFlight = 0;
+	/** Items requested and not yet arrived. */
+	private long unarrived = 0;
+	private long delivered = 0;
+	private boolean complete;
+	private Throwable error;
+
+	/**
+	 * @param eventingSystem the system to feed
+	 * @param target         the processor to deliver the events to
+	 * @param converter      converts an item to the event to deliver
+	 * @param window         the most items to have requested and not yet delivered
+	 * @throws IllegalArgumentException if the eventing system has a capacity and
+	 *                                  drops events when its queue is full
+	 */
+	public EventSubscriber(EventingSystem eventingSystem, EventProcessor target,
+			Function<? super T, ? extends Event> converter, int window) {
+		if (eventingSystem == null || target == null || converter == null) {
+			throw new NullPointerException();
+		}
+		if (window <= 0) {
+			throw new IllegalArgumentException("window must be positive");
+		}
+		if (drops(eventingSystem)) {
+			throw new IllegalArgumentException(
+					"Unsupported admission policy " + eventingSystem.getAdmissionPolicy() + ": use BLOCK or REJECT");
+		}
+		this.eventingSystem = eventingSystem;
+		this.target = target;
+		this.converter = converter;
+		this.window = window;
+	}
+
+	@Override
+	public void onSubscribe(Flow.Subscription s) {
+		synchronized (this) {
+			if (subscription != null) {
+				s.cancel();
+				return;
+			}
+			subscription = s;
+		}
+		requestMore();
+	}
+
+	@Override
+	public void onNext(T item) {
+		synchronized (this) {
+			unarrived--;
+		}
+		try {
+			if (drops(eventingSystem)) {
+				// the policy was changed after subscribing; a dropped event would leak demand
+				throw new RejectedExecutionException(
+						"Unsupported admission policy " + eventingSystem.getAdmissionPolicy());
+			}
+			eventingSystem.scheduleEvent(this, converter.apply(item));
+		} catch (RejectedExecutionException e) {
+			// the admission policy refused it: give up the stream
+			Flow.Subscription s;
+			synchronized (this) {
+				inFlight--;
+				error = e;
+				s = subscription;
+			}
+			s.cancel();
+		}
+	}
+
+	@Override
+	public synchronized void onError(Throwable t) {
+		error = t;
+		complete = true;
+	}
+
+	@Override
+	public synchronized void onComplete() {
+		complete = true;
+	}
+
+	/**
+	 * Deliver an item's event to the target, then renew demand.
+	 */
+	@Override
+	public void process(Event e, EventingSystem es, long deliveryTime) {
+		try {
+			target.process(e, es, deliveryTime);
+		} finally {
+			synchronized (this) {
+				inFlight--;
+				delivered++;
+			}
+			requestMore();
+		}
+	}
+
+	/**
+	 * Request as many items as the window and the queue have room for, in batches
+	 * of at least a quarter of the window, so that the publisher is not asked one
+	 * item at a time.
+	 */
+	private void requestMore() {
+		long n;
+		Flow.Subscription s;
+		synchronized (this) {
+			s = subscription;
+			if (s == null || complete || error != null) {
+				return;
+			}
+			n = window - inFlight;
+			int capacity = eventingSystem.getCapacity();
+			if (capacity > 0) {
+				n = Math.min(n, capacity - eventingSystem.getQueueLength() - unarrived);
+			}
+			if (inFlight == 0) {
+				n = Math.max(n, 1);
+			} else if (n < Math.max(1, window / 4)) {
+				return;
+			}
+			inFlight += n;
+			unarrived += n;
+		}
+		s.request(n);
+	}
+
+	/**
+	 * @return <code>true</code> if the system may drop a queued event, which the
+	 *         subscriber would not hear of
+	 */
+	private static boolean drops(EventingSystem es) {
+		AdmissionPolicy p = es.getAdmissionPolicy();
+		return es.getCapacity() > 0 && (p == AdmissionPolicy.DROP_OLDEST || p == AdmissionPolicy.DROP_LOWEST_PRIORITY);
+	}
+
+	/**
+	 * Cancel the subscription. Events already queued are still delivered.
+	 */
+	public void cancel() {
+		Flow.Subscription s;
+		synchronized (this) {
+			s = subscription;
+			complete = true;
+		}
+		if (s != null) {
+			s.cancel();
+		}
+	}
+
+	/**
+	 * @return the number of items delivered to the target
+	 */
+	public synchronized long getDelivered() {
+		return delivered;
+	}
+
+	/**
+	 * @return <code>true</code> once the publisher has completed or failed, or the
+	 *         subscription has been cancelled
+	 */
+	public synchronized boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * @return the error with which the publisher failed, or the rejection that
+	 *         ended the subscription; <code>null</code> if there is none
+	 */
+	public synchronized Throwable getError() {
+		return error;
+	}
+
+	@Override
+	public String toString() {
+		return "EventSubscriber for " + target;
+	}
+
+}
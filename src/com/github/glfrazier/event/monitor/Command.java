@@ -7,6 +7,16 @@ public enum Command {
 			"<de> (dispatched events) returns the total number of events dispatched by the eventing system"),
 	EVENTQUEUE_LENGTH("ql", "<ql> (queue length) returns the current length of the event queue"),
 	MAX_EVENTQUEUE_LENGTH("mql", "<mql> (maximum queue length) returns the maximum length of the event queue"),
+	SUBSCRIBE("sub",
+			"<sub ms> (subscribe) streams the dispatched events, queue length and maximum queue length every ms milliseconds (socket monitor only)"),
+	UNSUBSCRIBE("unsub", "<unsub> (unsubscribe) stops the stream started by <sub>"),
+	PROFILE("profile",
+			"<profile on [interval]|off> (profile) starts (sampling one event in interval) or stops the profiler"),
+	TOP("top",
+			"<top [n] [count|time]> (top) lists the n processors and event classes with the most deliveries or processing time"),
+	STATISTICS("stats", "<stats [name]> (statistics) prints the statistics collected by the model, or the one named"),
+	PENDING("pending",
+			"<pending [n]> (pending) histogram of the queued events by target, event class and time until delivery"),
 	TERMINATE("terminate",
 			"<terminate> (terminate) terminates the run() method of the eventing system, discarding all queued events"),
 	HELP("?", "<?>/<h> (help) print usage information for each command"),
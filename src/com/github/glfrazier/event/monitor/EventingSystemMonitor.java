@@ -6,10 +6,11 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.util.List;
 
 import com.github.glfrazier.event.EventingSystem;
+import com.github.glfrazier.event.stats.Statistic;
+import com.github.glfrazier.event.stats.Statistics;
 
 /**
  * A thread that reads {@link Command}s from System.in and executes those
@@ -40,6 +41,20 @@ public class EventingSystemMonitor implements Runnable {
 		this(es, in, new PrintStream(out));
 	}
 
+	/**
+	 * Construct a monitor that is not driven by its own input stream. The owner
+	 * feeds it command lines via {@link #execute(String)}; see
+	 * {@link MonitorServer}.
+	 * 
+	 * @param es  the monitored eventing system
+	 * @param out where responses are written
+	 */
+	protected EventingSystemMonitor(EventingSystem es, PrintStream out) {
+		this.es = es;
+		this.out = out;
+		this.running = true;
+	}
+
 	public static Thread getTerminalMonitor(EventingSystem es) {
 		EventingSystemMonitor monitor = new EventingSystemMonitor(es, System.in, System.out);
 		Thread t = new Thread(monitor);
@@ -47,32 +62,18 @@ public class EventingSystemMonitor implements Runnable {
 		return t;
 	}
 
+	/**
+	 * Create (but do not start) a thread that accepts monitor connections on
+	 * <code>listenPort</code>. All connections are served by a single
+	 * {@link MonitorServer} thread.
+	 * 
+	 * @param es         the monitored eventing system
+	 * @param listenPort the TCP port to listen on
+	 * @return the (unstarted, daemon) server thread
+	 * @throws IOException if the port cannot be bound
+	 */
 	public static Thread getSocketMonitor(EventingSystem es, int listenPort) throws IOException {
-		ServerSocket ssocket = new ServerSocket(listenPort);
-		Thread t = new Thread("Socket Monitor") {
-
-			public void run() {
-				while (!es.isTerminated()) {
-					try {
-						Socket socket = ssocket.accept();
-
-						EventingSystemMonitor monitor = new EventingSystemMonitor(es, socket.getInputStream(),
-								socket.getOutputStream());
-						Thread t = new Thread(monitor);
-						t.setDaemon(true);
-						t.start();
-					} catch (IOException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					}
-				}
-				try {
-					ssocket.close();
-				} catch (IOException e) {
-					// Do nothing about it
-				}
-			}
-		};
+		Thread t = new Thread(new MonitorServer(es, listenPort), "Socket Monitor");
 		t.setDaemon(true);
 		return t;
 	}
@@ -83,8 +84,7 @@ public class EventingSystemMonitor implements Runnable {
 		String input = null;
 		while (running) {
 			try {
-				out.print(es.toString() + " > ");
-				out.flush();
+				prompt();
 				input = in.readLine();
 				if (input == null)
 					break;
@@ -136,6 +136,41 @@ public class EventingSystemMonitor implements Runnable {
 		case MAX_EVENTQUEUE_LENGTH:
 			out.println(es.getMaxQueueLength());
 			break;
+		case SUBSCRIBE:
+			if (args.length != 1) {
+				throw new IllegalArgumentException();
+			}
+			long period = Long.parseLong(args[0]);
+			if (period <= 0) {
+				throw new IllegalArgumentException();
+			}
+			subscribe(period);
+			break;
+		case UNSUBSCRIBE:
+			unsubscribe();
+			break;
+		case PROFILE:
+			profile(args);
+			break;
+		case TOP:
+			if (es.getProfiler() == null) {
+				out.println("The profiler is off; see <" + Command.PROFILE.getCmd() + ">.");
+				break;
+			}
+			es.getProfiler().printTop(out, args.length > 0 ? Integer.parseInt(args[0]) : 10,
+					args.length > 1 && args[1].equalsIgnoreCase("time"));
+			break;
+		case PENDING:
+			if (es.getProfiler() == null) {
+				out.println("The profiler is off; see <" + Command.PROFILE.getCmd() + ">.");
+				break;
+			}
+			es.getProfiler().printPending(out, args.length > 0 ? Integer.parseInt(args[0]) : 10,
+					es.getCurrentTime(), es.getFinestTimeUnit());
+			break;
+		case STATISTICS:
+			statistics(args);
+			break;
 		case HELP:
 		case HELP2:
 			usage();
@@ -144,6 +179,74 @@ public class EventingSystemMonitor implements Runnable {
 		return;
 	}
 
+	private void profile(String[] args) {
+		if (args.length == 0) {
+			out.println("The profiler is " + (es.getProfiler() == null ? "off." : "on."));
+			return;
+		}
+		if (args[0].equalsIgnoreCase("on")) {
+			int interval = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+			es.setProfiler(new Profiler(interval, 10000, 10));
+			out.println("Profiling one event in " + interval + ".");
+		} else if (args[0].equalsIgnoreCase("off")) {
+			es.setProfiler(null);
+			out.println("Profiler stopped.");
+		} else {
+			throw new IllegalArgumentException();
+		}
+	}
+
+	private void statistics(String[] args) {
+		Statistics stats = es.getStatistics();
+		if (args.length > 0) {
+			String name = String.join(" ", args);
+			Statistic s = stats.get(name);
+			out.println(s == null ? "No statistic named <" + name + ">." : s.toString());
+			return;
+		}
+		List<Statistic> all = stats.getAll();
+		if (all.isEmpty()) {
+			out.println("No statistics.");
+		}
+		for (Statistic s : all) {
+			out.println(s);
+		}
+	}
+
+	protected void prompt() {
+		out.print(es.toString() + " > ");
+		out.flush();
+	}
+
+	/**
+	 * Print one line of statistics: the current time, the number of dispatched
+	 * events, the queue length and the maximum queue length.
+	 */
+	protected void printStats() {
+		out.println(es.getCurrentTime() + " " + Command.DISPATCHED_EVENTS.getCmd() + "="
+				+ es.getTotalEventsDelivered() + " " + Command.EVENTQUEUE_LENGTH.getCmd() + "=" + es.getQueueLength()
+				+ " " + Command.MAX_EVENTQUEUE_LENGTH.getCmd() + "=" + es.getMaxQueueLength());
+	}
+
+	/**
+	 * Start streaming statistics (see {@link #printStats()}) every
+	 * <code>periodMillis</code> milliseconds. A blocking monitor cannot push output
+	 * while it waits for input, so only the {@link MonitorServer} supports this.
+	 * 
+	 * @param periodMillis the time between statistics lines
+	 */
+	protected void subscribe(long periodMillis) {
+		out.println("Streaming is only supported by the socket monitor.");
+	}
+
+	protected void unsubscribe() {
+		out.println("Streaming is only supported by the socket monitor.");
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
 	private void usage() {
 		out.println("The command parser for the " + es + " eventing system. Commands:");
 		for (Command cmd : Command.values()) {
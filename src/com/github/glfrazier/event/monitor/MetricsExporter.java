@@ -0,0 +1,254 @@
+package com.github.glfrazier.event.monitor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.github.glfrazier.event.EventingSystem;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Publishes the statistics of registered {@link EventingSystem}s over HTTP, in
+ * the Prometheus text exposition format, at <code>/metrics</code>.
+ * <p>
+ * A sampler thread reads the statistics of every registered system once per
+ * sample period and renders the exposition text; scrapes are served from that
+ * cached text, so a scrape never touches an eventing system (and never takes
+ * its queue lock), no matter how often it arrives. Registering a system turns
+ * on its timing (see {@link EventingSystem#setTimingEnabled(boolean)}), which
+ * supplies the processing-time and dispatch-lag metrics.
+ *
+ * <pre>
+ * MetricsExporter exporter = new MetricsExporter(9400, 1000);
+ * exporter.register(eventingSystem);
+ * exporter.start();
+ * </pre>
+ *
+ * @author Greg Frazier
+ *
+ */
+public class MetricsExporter {
+
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private final HttpServer server;
+	private final long samplePeriodMillis;
+	private final List<EventingSystem> systems = new CopyOnWriteArrayList<>();
+	private final Map<EventingSystem, Sample> previous = new IdentityHashMap<>();
+	/**
+	 * Each registered system's label set, fixed at registration, so that a
+	 * system's series keep their identity; guarded by itself.
+	 */
+	private final Map<EventingSystem, String> labels = new IdentityHashMap<>();
+	/** The number of unnamed systems labeled so far; guarded by labels. */
+	private int unnamed = 0;
+	private ScheduledExecutorService sampler;
+	private volatile byte[] exposition = new byte[0];
+
+	/**
+	 * @param port               the HTTP port to listen on (0 for an ephemeral
+	 *                           port)
+	 * @param samplePeriodMillis how often the statistics are read
+	 * @throws IOException if the port cannot be bound
+	 */
+	public MetricsExporter(int port, long samplePeriodMillis) throws IOException {
+		if (samplePeriodMillis <= 0) {
+			throw new IllegalArgumentException("samplePeriodMillis must be positive");
+		}
+		this.samplePeriodMillis = samplePeriodMillis;
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/metrics", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = exposition;
+				exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			}
+
+		});
+	}
+
+	/**
+	 * Start publishing the statistics of a system, labeled with its name. An
+	 * unnamed system is labeled <code>es0</code>, <code>es1</code>, ..., in the
+	 * order of registration; a label is never reused.
+	 */
+	public void register(EventingSystem es) {
+		String name = es.getName();
+		synchronized (labels) {
+			if (labels.containsKey(es)) {
+				return;
+			}
+			if (name == null) {
+				name = "es" + unnamed++;
+			}
+			labels.put(es, "{system=\"" + escape(name) + "\"}");
+		}
+		es.setTimingEnabled(true);
+		systems.add(es);
+	}
+
+	public void unregister(EventingSystem es) {
+		systems.remove(es);
+		synchronized (labels) {
+			labels.remove(es);
+		}
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public synchronized void start() {
+		if (sampler != null) {
+			return;
+		}
+		sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "Metrics Sampler");
+			t.setDaemon(true);
+			return t;
+		});
+		sampler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sample();
+				} catch (RuntimeException e) {
+					// an exception would cancel the periodic task; keep the last exposition
+					System.err.println(MetricsExporter.this + ": sampling failed: " + e);
+					e.printStackTrace();
+				}
+			}
+		}, 0, samplePeriodMillis, TimeUnit.MILLISECONDS);
+		server.start();
+	}
+
+	public synchronized void stop() {
+		if (sampler == null) {
+			return;
+		}
+		sampler.shutdownNow();
+		sampler = null;
+		server.stop(0);
+	}
+
+	/**
+	 * Read the statistics of every registered system and replace the cached
+	 * exposition text. Runs on the sampler thread.
+	 */
+	private void sample() {
+		long nanos = System.nanoTime();
+		StringBuilder delivered = header("eventing_events_delivered_total", "counter",
+				"Events delivered by the eventing system.");
+		StringBuilder rate = header("eventing_delivery_rate", "gauge",
+				"Events delivered per second over the last sample period.");
+		StringBuilder queueLength = header("eventing_queue_length", "gauge", "Events waiting in the queue.");
+		StringBuilder maxQueueLength = header("eventing_queue_length_max", "gauge",
+				"The largest number of events that have been waiting in the queue.");
+		StringBuilder dropped = header("eventing_events_dropped_total", "counter",
+				"Events discarded by the admission policy of a bounded queue.");
+		StringBuilder rejected = header("eventing_events_rejected_total", "counter",
+				"Events refused by the admission policy of a bounded queue.");
+		StringBuilder migratedIn = header("eventing_processors_migrated_in_total", "counter",
+				"Processors migrated to this shard by a rebalancer (shards only).");
+		StringBuilder migratedOut = header("eventing_processors_migrated_out_total", "counter",
+				"Processors migrated away from this shard by a rebalancer (shards only).");
+		StringBuilder processing = header("eventing_processing_seconds", "summary",
+				"Time spent in EventProcessor.process().");
+		StringBuilder lag = header("eventing_dispatch_lag_seconds", "summary",
+				"How late timed events were delivered (realtime systems only).");
+		for (EventingSystem es : systems) {
+			String label;
+			synchronized (labels) {
+				label = labels.get(es);
+			}
+			if (label == null) {
+				// unregistered since the loop began
+				continue;
+			}
+			Sample s = new Sample(es, nanos);
+			Sample p = previous.put(es, s);
+			double r = 0;
+			if (p != null && s.nanos > p.nanos) {
+				r = (s.delivered - p.delivered) * 1e9 / (s.nanos - p.nanos);
+			}
+			delivered.append("eventing_events_delivered_total").append(label).append(' ').append(s.delivered)
+					.append('\n');
+			rate.append("eventing_delivery_rate").append(label).append(' ').append(r).append('\n');
+			queueLength.append("eventing_queue_length").append(label).append(' ').append(s.queueLength).append('\n');
+			maxQueueLength.append("eventing_queue_length_max").append(label).append(' ').append(s.maxQueueLength)
+					.append('\n');
+			dropped.append("eventing_events_dropped_total").append(label).append(' ').append(es.getDroppedEvents())
+					.append('\n');
+			rejected.append("eventing_events_rejected_total").append(label).append(' ')
+					.append(es.getRejectedEvents()).append('\n');
+			if (es.getShardedEventingSystem() != null) {
+				migratedIn.append("eventing_processors_migrated_in_total").append(label).append(' ')
+						.append(es.getMigratedIn()).append('\n');
+				migratedOut.append("eventing_processors_migrated_out_total").append(label).append(' ')
+						.append(es.getMigratedOut()).append('\n');
+			}
+			processing.append("eventing_processing_seconds_sum").append(label).append(' ')
+					.append(s.processingNanos / 1e9).append('\n');
+			processing.append("eventing_processing_seconds_count").append(label).append(' ')
+					.append(s.timedDeliveries).append('\n');
+			if (es.isRealtime()) {
+				double lagSeconds = es.getTotalDispatchLag() / (double) es.getFinestTimeUnit().convert(1,
+						TimeUnit.SECONDS);
+				lag.append("eventing_dispatch_lag_seconds_sum").append(label).append(' ').append(lagSeconds)
+						.append('\n');
+				lag.append("eventing_dispatch_lag_seconds_count").append(label).append(' ')
+						.append(es.getDispatchLagCount()).append('\n');
+			}
+		}
+		previous.keySet().retainAll(systems);
+		StringBuilder text = delivered.append(rate).append(queueLength).append(maxQueueLength).append(dropped)
+				.append(rejected).append(migratedIn).append(migratedOut).append(processing).append(lag);
+		exposition = text.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static StringBuilder header(String name, String type, String help) {
+		return new StringBuilder().append("# HELP ").append(name).append(' ').append(help).append("\n# TYPE ")
+				.append(name).append(' ').append(type).append('\n');
+	}
+
+	private static String escape(String labelValue) {
+		return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	/**
+	 * The statistics of one eventing system at one moment.
+	 */
+	private static class Sample {
+		final long nanos;
+		final long delivered;
+		final int queueLength;
+		final int maxQueueLength;
+		final long processingNanos;
+		final long timedDeliveries;
+
+		Sample(EventingSystem es, long nanos) {
+			this.nanos = nanos;
+			this.delivered = es.getTotalEventsDelivered();
+			this.queueLength = es.getQueueLength();
+			this.maxQueueLength = es.getMaxQueueLength();
+			this.processingNanos = es.getTotalProcessingNanos();
+			this.timedDeliveries = es.getTimedDeliveries();
+		}
+	}
+
+}
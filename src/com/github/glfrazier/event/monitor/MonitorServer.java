@@ -0,0 +1,313 @@
+package com.github.glfrazier.event.monitor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.github.glfrazier.event.EventingSystem;
+
+/**
+ * A non-blocking monitor server. A single thread multiplexes every monitor
+ * connection over one {@link Selector}: it accepts connections, reads and
+ * parses {@link Command}s, writes the responses, and pushes the statistics
+ * streams requested with {@link Command#SUBSCRIBE}. No thread is created per
+ * connection.
+ *
+ * <pre>
+ * Thread t = new Thread(new MonitorServer(eventingSystem, 4444));
+ * t.setDaemon(true);
+ * t.start();
+ * </pre>
+ *
+ * @author Greg Frazier
+ *
+ */
+public class MonitorServer implements Runnable {
+
+	/** Commands longer than this are processed in pieces. */
+	private static final int MAX_LINE = 1024;
+	/**
+	 * A stream line is skipped when a client has more than this many bytes of
+	 * output waiting, so that a slow client cannot make the server buffer without
+	 * bound.
+	 */
+	private static final int MAX_BACKLOG = 64 * 1024;
+	/** How often the server checks whether the eventing system has terminated. */
+	private static final long TERMINATION_CHECK_MILLIS = 1000;
+
+	private final EventingSystem es;
+	private final Selector selector;
+	private final ServerSocketChannel server;
+	private final List<Session> sessions = new ArrayList<>();
+	private volatile boolean running;
+
+	public MonitorServer(EventingSystem es, int listenPort) throws IOException {
+		this.es = es;
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(listenPort));
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		running = true;
+	}
+
+	/**
+	 * @return the port the server is listening on (useful if it was constructed
+	 *         with port 0)
+	 */
+	public int getPort() {
+		return server.socket().getLocalPort();
+	}
+
+	/**
+	 * Stop the server. The server thread closes every connection and exits.
+	 */
+	public void close() {
+		running = false;
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		while (running && !es.isTerminated()) {
+			try {
+				long now = System.currentTimeMillis();
+				long timeout = TERMINATION_CHECK_MILLIS;
+				for (Session session : sessions) {
+					if (session.period > 0) {
+						timeout = Math.min(timeout, Math.max(1, session.nextPush - now));
+					}
+				}
+				selector.select(timeout);
+				Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+				while (iter.hasNext()) {
+					SelectionKey key = iter.next();
+					iter.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					Session session = (Session) key.attachment();
+					try {
+						if (key.isReadable()) {
+							session.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							session.write();
+						}
+					} catch (IOException e) {
+						session.close();
+					}
+				}
+				push();
+			} catch (IOException e) {
+				e.printStackTrace();
+				break;
+			}
+		}
+		for (Session session : new ArrayList<>(sessions)) {
+			session.close();
+		}
+		try {
+			server.close();
+			selector.close();
+		} catch (IOException e) {
+			// Do nothing about it
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = server.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		Session session = new Session(channel);
+		session.key = channel.register(selector, SelectionKey.OP_READ, session);
+		sessions.add(session);
+		session.prompt();
+		session.flush();
+	}
+
+	/**
+	 * Write a statistics line to every session whose stream is due.
+	 */
+	private void push() {
+		long now = System.currentTimeMillis();
+		for (Session session : new ArrayList<>(sessions)) {
+			if (session.period <= 0 || session.nextPush > now) {
+				continue;
+			}
+			session.nextPush += session.period;
+			if (session.nextPush <= now) {
+				// fell behind; do not try to catch up
+				session.nextPush = now + session.period;
+			}
+			if (session.backlog() > MAX_BACKLOG) {
+				continue;
+			}
+			session.printStats();
+			session.flush();
+		}
+	}
+
+	/**
+	 * The state of one connection. It reuses the command parser of
+	 * {@link EventingSystemMonitor}; responses are written to a byte buffer that is
+	 * drained to the channel as the channel becomes writable.
+	 */
+	private class Session extends EventingSystemMonitor {
+
+		private final SocketChannel channel;
+		private final ByteArrayOutputStream bytes;
+		private final ByteBuffer input = ByteBuffer.allocate(MAX_LINE);
+		private ByteBuffer output;
+		private SelectionKey key;
+		private long period;
+		private long nextPush;
+		private boolean closeWhenFlushed;
+
+		Session(SocketChannel channel) {
+			this(channel, new ByteArrayOutputStream());
+		}
+
+		private Session(SocketChannel channel, ByteArrayOutputStream bytes) {
+			super(MonitorServer.this.es, new PrintStream(bytes));
+			this.channel = channel;
+			this.bytes = bytes;
+		}
+
+		void read() throws IOException {
+			int n = channel.read(input);
+			if (n < 0) {
+				close();
+				return;
+			}
+			input.flip();
+			int start = input.position();
+			for (int i = start; i < input.limit(); i++) {
+				if (input.get(i) == '\n') {
+					command(new String(input.array(), start, i - start, StandardCharsets.UTF_8));
+					start = i + 1;
+					if (closeWhenFlushed) {
+						break;
+					}
+				}
+			}
+			input.position(start);
+			input.compact();
+			if (!input.hasRemaining()) {
+				// an overlong line; process what we have
+				input.flip();
+				command(new String(input.array(), 0, input.limit(), StandardCharsets.UTF_8));
+				input.clear();
+			}
+			flush();
+		}
+
+		private void command(String line) {
+			if (closeWhenFlushed) {
+				return;
+			}
+			line = line.trim();
+			try {
+				execute(line);
+			} catch (IllegalArgumentException e) {
+				out.println("Unknown command or illegal arguments: <" + line + ">");
+			}
+			if (isRunning()) {
+				prompt();
+			} else {
+				out.println(EXITING);
+				period = 0;
+				closeWhenFlushed = true;
+			}
+		}
+
+		@Override
+		protected void subscribe(long periodMillis) {
+			period = periodMillis;
+			nextPush = System.currentTimeMillis();
+			out.println("Streaming every " + periodMillis + " ms; <" + Command.UNSUBSCRIBE.getCmd() + "> to stop.");
+		}
+
+		@Override
+		protected void unsubscribe() {
+			period = 0;
+			out.println("Stream stopped.");
+		}
+
+		int backlog() {
+			return bytes.size() + (output == null ? 0 : output.remaining());
+		}
+
+		/**
+		 * Move the buffered response text to the channel, registering for write
+		 * readiness if the channel cannot take all of it.
+		 */
+		void flush() {
+			out.flush();
+			try {
+				write();
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		void write() throws IOException {
+			if (!channel.isOpen()) {
+				return;
+			}
+			if ((output == null || !output.hasRemaining()) && bytes.size() > 0) {
+				output = ByteBuffer.wrap(bytes.toByteArray());
+				bytes.reset();
+			}
+			while (output != null && output.hasRemaining()) {
+				if (channel.write(output) == 0) {
+					break;
+				}
+				if (!output.hasRemaining() && bytes.size() > 0) {
+					output = ByteBuffer.wrap(bytes.toByteArray());
+					bytes.reset();
+				}
+			}
+			if (output != null && output.hasRemaining()) {
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			} else {
+				output = null;
+				if (closeWhenFlushed) {
+					close();
+				} else if (key.isValid()) {
+					key.interestOps(SelectionKey.OP_READ);
+				}
+			}
+		}
+
+		void close() {
+			sessions.remove(this);
+			if (key != null) {
+				key.cancel();
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Do nothing about it
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,281 @@
+package com.github.glfrazier.event.monitor;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.github.glfrazier.event.Event;
+import com.github.glfrazier.event.EventProcessor;
+import com.github.glfrazier.event.EventingSystem;
+
+/**
+ * A sampling profiler for an {@link EventingSystem}, installed with
+ * {@link EventingSystem#setProfiler(Profiler)}. It answers two questions:
+ * <ul>
+ * <li>Which {@link EventProcessor}s and which {@link Event} classes are
+ * consuming the run loop? Every <code>sampleInterval</code>-th delivery is
+ * timed and attributed to its target and event class, weighted by the sample
+ * interval. The samples are kept in a sliding window of wall-clock buckets.</li>
+ * <li>What is piling up in the queue? Every <code>sampleInterval</code>-th
+ * scheduled event is recorded in a side table until it is delivered. The
+ * pending-queue histogram is computed from that table, so producing it neither
+ * copies the queue nor takes the queue lock.</li>
+ * </ul>
+ * All counts and times reported are estimates: sample counts multiplied by the
+ * sample interval.
+ *
+ * @author Greg Frazier
+ *
+ */
+public class Profiler {
+
+	private final int sampleInterval;
+	private final long bucketMillis;
+	private final Bucket[] window;
+
+	private int pendingCountdown;
+	private final Set<PendingSample> pending = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * @param sampleInterval one delivery (and one scheduled event) in every
+	 *                       <code>sampleInterval</code> is sampled
+	 * @param windowMillis   the length of the sliding window over which deliveries
+	 *                       are reported
+	 * @param windowBuckets  the number of buckets the window is divided into; the
+	 *                       window slides one bucket at a time
+	 */
+	public Profiler(int sampleInterval, long windowMillis, int windowBuckets) {
+		if (sampleInterval <= 0 || windowMillis <= 0 || windowBuckets <= 0) {
+			throw new IllegalArgumentException("Profiler parameters must be positive");
+		}
+		this.sampleInterval = sampleInterval;
+		this.bucketMillis = Math.max(1, windowMillis / windowBuckets);
+		this.window = new Bucket[windowBuckets];
+		for (int i = 0; i < windowBuckets; i++) {
+			window[i] = new Bucket();
+		}
+		this.pendingCountdown = sampleInterval;
+	}
+
+	/**
+	 * A profiler that samples one event in 64 over a ten-second window.
+	 */
+	public Profiler() {
+		this(64, 10000, 10);
+	}
+
+	public int getSampleInterval() {
+		return sampleInterval;
+	}
+
+	/**
+	 * Record a sampled delivery. Invoked by the run loop.
+	 *
+	 * @param target the processor the event was delivered to
+	 * @param e      the event
+	 * @param nanos  how long the processor took to process the event
+	 */
+	public synchronized void sampleDelivery(EventProcessor target, Event e, long nanos) {
+		long epoch = System.currentTimeMillis() / bucketMillis;
+		Bucket b = window[(int) (epoch % window.length)];
+		if (b.epoch != epoch) {
+			b.clear(epoch);
+		}
+		Stat s = b.byTarget.get(target);
+		if (s == null) {
+			s = new Stat(target);
+			b.byTarget.put(target, s);
+		}
+		s.add(nanos);
+		s = b.byEventClass.get(e.getClass());
+		if (s == null) {
+			s = new Stat(e.getClass());
+			b.byEventClass.put(e.getClass(), s);
+		}
+		s.add(nanos);
+	}
+
+	/**
+	 * Invoked, with the queue lock held, whenever an event is added to the queue.
+	 *
+	 * @return a token to be passed to {@link #pendingRemoved(Object)} when the
+	 *         event leaves the queue, or <code>null</code> if this event is not
+	 *         sampled
+	 */
+	public Object pendingAdded(EventProcessor target, Event e, Long deliveryTime) {
+		if (--pendingCountdown > 0) {
+			return null;
+		}
+		pendingCountdown = sampleInterval;
+		PendingSample sample = new PendingSample(target, e.getClass(), deliveryTime);
+		pending.add(sample);
+		return sample;
+	}
+
+	public void pendingRemoved(Object token) {
+		pending.remove(token);
+	}
+
+	/**
+	 * Forget every pending sample, e.g., because the queue was cleared.
+	 */
+	public void clearPending() {
+		pending.clear();
+	}
+
+	/**
+	 * Print the <code>n</code> processors and the <code>n</code> event classes
+	 * with the most deliveries (or the most processing time) within the window.
+	 *
+	 * @param out    where to print the report
+	 * @param n      the number of entries in each list
+	 * @param byTime if <code>true</code>, rank by cumulative processing time;
+	 *               otherwise rank by delivery count
+	 */
+	public void printTop(PrintStream out, int n, boolean byTime) {
+		Map<Object, Stat> targets = new IdentityHashMap<>();
+		Map<Object, Stat> classes = new HashMap<>();
+		synchronized (this) {
+			long oldest = System.currentTimeMillis() / bucketMillis - window.length;
+			for (Bucket b : window) {
+				if (b.epoch > oldest) {
+					merge(b.byTarget, targets);
+					merge(b.byEventClass, classes);
+				}
+			}
+		}
+		String rank = byTime ? "processing time" : "delivery count";
+		out.println("Top " + n + " processors by " + rank + " (estimated over the last "
+				+ bucketMillis * window.length + " ms):");
+		print(out, targets, n, byTime, true);
+		out.println("Top " + n + " event classes by " + rank + ":");
+		print(out, classes, n, byTime, true);
+	}
+
+	private static void merge(Map<?, Stat> from, Map<Object, Stat> into) {
+		for (Stat s : from.values()) {
+			Stat t = into.get(s.key);
+			if (t == null) {
+				t = new Stat(s.key);
+				into.put(s.key, t);
+			}
+			t.count += s.count;
+			t.nanos += s.nanos;
+		}
+	}
+
+	private void print(PrintStream out, Map<Object, Stat> stats, int n, boolean byTime, boolean timed) {
+		List<Stat> list = new ArrayList<>(stats.values());
+		Collections.sort(list, (a, b) -> byTime ? Long.compare(b.nanos, a.nanos) : Long.compare(b.count, a.count));
+		for (int i = 0; i < n && i < list.size(); i++) {
+			Stat s = list.get(i);
+			String key = s.key instanceof Class ? ((Class<?>) s.key).getName() : String.valueOf(s.key);
+			if (timed) {
+				out.println(String.format("  %12d events %12.3f ms  %s", s.count * sampleInterval,
+						s.nanos * sampleInterval / 1e6, key));
+			} else {
+				out.println(String.format("  %12d events  %s", s.count * sampleInterval, key));
+			}
+		}
+	}
+
+	/**
+	 * Print a histogram of the (sampled) pending events, broken down by target,
+	 * by event class and by how far in the future they are to be delivered.
+	 *
+	 * @param out  where to print the report
+	 * @param n    the number of targets and of event classes to list
+	 * @param now  the eventing system's current time
+	 * @param unit the eventing system's finest time unit
+	 */
+	public void printPending(PrintStream out, int n, long now, TimeUnit unit) {
+		Map<Object, Stat> targets = new IdentityHashMap<>();
+		Map<Object, Stat> classes = new HashMap<>();
+		// horizon[0] is "due now"; horizon[i] holds events due within 10^(i-1) units
+		long[] horizon = new long[12];
+		int total = 0;
+		for (PendingSample p : pending) {
+			total++;
+			count(targets, p.target);
+			count(classes, p.eventClass);
+			long delta = p.deliveryTime == null ? 0 : p.deliveryTime - now;
+			int h = 0;
+			for (long limit = 1; delta > 0 && h < horizon.length - 1; limit *= 10) {
+				h++;
+				if (delta <= limit) {
+					break;
+				}
+			}
+			horizon[h]++;
+		}
+		out.println("Pending events (estimated from " + total + " samples): " + total * sampleInterval);
+		out.println("By target:");
+		print(out, targets, n, false, false);
+		out.println("By event class:");
+		print(out, classes, n, false, false);
+		out.println("By time until delivery (" + unit.toString().toLowerCase() + "):");
+		for (int h = 0; h < horizon.length; h++) {
+			if (horizon[h] == 0) {
+				continue;
+			}
+			String label = h == 0 ? "due" : (h == horizon.length - 1 ? "> 1e" + (h - 2) : "<= 1e" + (h - 1));
+			out.println(String.format("  %12d events  %s", horizon[h] * sampleInterval, label));
+		}
+	}
+
+	private static void count(Map<Object, Stat> stats, Object key) {
+		Stat s = stats.get(key);
+		if (s == null) {
+			s = new Stat(key);
+			stats.put(key, s);
+		}
+		s.count++;
+	}
+
+	private static class Stat {
+		final Object key;
+		long count;
+		long nanos;
+
+		Stat(Object key) {
+			this.key = key;
+		}
+
+		void add(long n) {
+			count++;
+			nanos += n;
+		}
+	}
+
+	private static class Bucket {
+		long epoch = Long.MIN_VALUE;
+		final Map<EventProcessor, Stat> byTarget = new IdentityHashMap<>();
+		final Map<Class<?>, Stat> byEventClass = new HashMap<>();
+
+		void clear(long newEpoch) {
+			epoch = newEpoch;
+			byTarget.clear();
+			byEventClass.clear();
+		}
+	}
+
+	private static class PendingSample {
+		final EventProcessor target;
+		final Class<?> eventClass;
+		final Long deliveryTime;
+
+		PendingSample(EventProcessor target, Class<?> eventClass, Long deliveryTime) {
+			this.target = target;
+			this.eventClass = eventClass;
+			this.deliveryTime = deliveryTime;
+		}
+	}
+
+}
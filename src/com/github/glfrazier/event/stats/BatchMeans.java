@@ -0,0 +1,251 @@
+package com.github.glfrazier.event.stats;
+
+import com.github.glfrazier.event.experiment.Summary;
+
+/**
+ * The mean of a sequence of (possibly weighted) observations, with a
+ * confidence interval by the method of batch means. The observations of one
+ * run are usually correlated&mdash;successive waiting times, say&mdash;so the
+ * sample variance understates the error of their mean. Instead, the
+ * observations are grouped into consecutive batches of equal weight, whose
+ * means are nearly independent if the batches are long enough, and the
+ * confidence interval is computed from the batch means.
+ * <p>
+ * A fixed number of batches is kept. When they are all complete, adjacent
+ * pairs are merged and the batch weight doubles, so the batches grow with the
+ * run, in constant memory. An observation whose weight spans the end of a
+ * batch is split between batches; so a {@link TimeWeighted} statistic, whose
+ * weights are durations, is batched by time.
+ *
+ * @author Greg Frazier
+ *
+ */
+public class BatchMeans implements Statistic {
+
+	public static final int DEFAULT_BATCHES = 32;
+
+	private final String name;
+	private final double initialBatchWeight;
+	/** The weighted sums of the complete batches. */
+	private final double[] sums;
+	private int complete;
+	private double batchWeight;
+	private double openSum;
+	private double openWeight;
+	private long count;
+	private double totalSum;
+	private double totalWeight;
+	private double min;
+	private double max;
+
+	/**
+	 * A batch-means estimator of unweighted observations, with
+	 * {@value #DEFAULT_BATCHES} batches.
+	 */
+	public BatchMeans(String name) {
+		this(name, DEFAULT_BATCHES, 1);
+	}
+
+	/**
+	 * @param batches            the number of batches kept; even, and at least 4
+	 * @param initialBatchWeight the weight of a batch until the batches are first
+	 *                           merged
+	 */
+	public BatchMeans(String name, int batches, double initialBatchWeight) {
+		if (name == null) {
+			throw new NullPointerException("name");
+		}
+		if (batches < 4 || batches % 2 != 0) {
+			throw new IllegalArgumentException("batches must be even, and at least 4");
+		}
+		if (!(initialBatchWeight > 0)) {
+			throw new IllegalArgumentException("initialBatchWeight must be positive");
+		}
+		this.name = name;
+		this.initialBatchWeight = initialBatchWeight;
+		this.sums = new double[batches];
+		reset();
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	public void add(double x) {
+		add(x, 1);
+	}
+
+	/**
+	 * @param weight the weight of the observation; an observation of weight 0 is
+	 *               ignored
+	 */
+	public void add(double x, double weight) {
+		if (!(weight >= 0)) {
+			throw new IllegalArgumentException("weight must not be negative");
+		}
+		if (weight == 0) {
+			return;
+		}
+		count++;
+		totalSum += x * weight;
+		totalWeight += weight;
+		if (x < min) {
+			min = x;
+		}
+		if (x > max) {
+			max = x;
+		}
+		while (true) {
+			double room = batchWeight - openWeight;
+			if (weight < room) {
+				openSum += x * weight;
+				openWeight += weight;
+				return;
+			}
+			sums[complete++] = openSum + x * room;
+			openSum = 0;
+			openWeight = 0;
+			weight -= room;
+			if (complete == sums.length) {
+				merge();
+			}
+			if (weight <= 0) {
+				return;
+			}
+		}
+	}
+
+	private void merge() {
+		int half = sums.length / 2;
+		for (int i = 0; i < half; i++) {
+			sums[i] = sums[2 * i] + sums[2 * i + 1];
+		}
+		complete = half;
+		batchWeight *= 2;
+	}
+
+	/**
+	 * @return the number of observations
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the total weight of the observations
+	 */
+	public double getWeight() {
+		return totalWeight;
+	}
+
+	/**
+	 * @return the weighted mean of all the observations, including those in the
+	 *         incomplete batch; NaN if there are none
+	 */
+	public double getMean() {
+		return totalWeight == 0 ? Double.NaN : totalSum / totalWeight;
+	}
+
+	public double getMin() {
+		return min;
+	}
+
+	public double getMax() {
+		return max;
+	}
+
+	/**
+	 * @return the number of complete batches
+	 */
+	public int getBatchCount() {
+		return complete;
+	}
+
+	/**
+	 * @return the current weight of a batch
+	 */
+	public double getBatchWeight() {
+		return batchWeight;
+	}
+
+	/**
+	 * @return the mean of the batch means
+	 */
+	private double batchMean() {
+		double sum = 0;
+		for (int i = 0; i < complete; i++) {
+			sum += sums[i];
+		}
+		return sum / (complete * batchWeight);
+	}
+
+	/**
+	 * @param confidence the confidence level, e.g. 0.95
+	 * @return the half-width of the confidence interval of the mean, from the
+	 *         complete batches; NaN if there are fewer than two
+	 */
+	public double getHalfWidth(double confidence) {
+		if (!(confidence > 0 && confidence < 1)) {
+			throw new IllegalArgumentException("confidence must be between 0 and 1");
+		}
+		int b = complete;
+		if (b < 2) {
+			return Double.NaN;
+		}
+		double mean = batchMean();
+		double ss = 0;
+		for (int i = 0; i < b; i++) {
+			double d = sums[i] / batchWeight - mean;
+			ss += d * d;
+		}
+		return Summary.tQuantile(1 - (1 - confidence) / 2, b - 1) * Math.sqrt(ss / (b - 1) / b);
+	}
+
+	/**
+	 * The correlation of successive batch means. If it is much above zero, the
+	 * batches are too short to be independent, and the confidence interval is too
+	 * narrow.
+	 * 
+	 * @return the lag-1 autocorrelation of the batch means; NaN if there are fewer
+	 *         than three complete batches
+	 */
+	public double getLag1Correlation() {
+		int b = complete;
+		if (b < 3) {
+			return Double.NaN;
+		}
+		double mean = batchMean();
+		double ss = 0;
+		double lagged = 0;
+		double previous = sums[0] / batchWeight - mean;
+		ss += previous * previous;
+		for (int i = 1; i < b; i++) {
+			double d = sums[i] / batchWeight - mean;
+			ss += d * d;
+			lagged += d * previous;
+			previous = d;
+		}
+		return ss == 0 ? 0 : lagged / ss;
+	}
+
+	@Override
+	public void reset() {
+		complete = 0;
+		batchWeight = initialBatchWeight;
+		openSum = 0;
+		openWeight = 0;
+		count = 0;
+		totalSum = 0;
+		totalWeight = 0;
+		min = Double.POSITIVE_INFINITY;
+		max = Double.NEGATIVE_INFINITY;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: mean=%.6g +/- %.3g (95%%, %d batches of %.6g, lag-1 r=%.3f) n=%d min=%.6g max=%.6g",
+				name, getMean(), getHalfWidth(0.95), complete, batchWeight, getLag1Correlation(), count, min, max);
+	}
+
+}
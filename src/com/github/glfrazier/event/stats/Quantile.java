@@ -0,0 +1,168 @@
+package com.github.glfrazier.event.stats;
+
+/**
+ * An estimate of one quantile of a sequence of observations, by the P&sup2;
+ * algorithm of Jain and Chlamtac, which keeps five markers rather than the
+ * observations. The markers are the minimum, the maximum, the quantile and two
+ * points either side of it; each observation moves the markers towards their
+ * desired positions by piecewise-parabolic interpolation. The estimate is exact
+ * for fewer than five observations, and converges as the count grows; for a
+ * median or a 95th percentile of a few thousand observations it is usually
+ * within a percent or two.
+ *
+ * @author Greg Frazier
+ *
+ */
+public class Quantile implements Statistic {
+
+	private final String name;
+	private final double p;
+	/** The heights of the markers. */
+	private final double[] q = new double[5];
+	/** The positions of the markers, counting from 1. */
+	private final double[] n = new double[5];
+	/** The desired positions of the markers. */
+	private final double[] desired = new double[5];
+	/** The increments of the desired positions per observation. */
+	private final double[] increment = new double[5];
+	private long count;
+
+	/**
+	 * @param p the quantile, strictly between 0 and 1; e.g. 0.5 for the median
+	 */
+	public Quantile(String name, double p) {
+		if (name == null) {
+			throw new NullPointerException("name");
+		}
+		if (!(p > 0 && p < 1)) {
+			throw new IllegalArgumentException("p must be between 0 and 1");
+		}
+		this.name = name;
+		this.p = p;
+		increment[0] = 0;
+		increment[1] = p / 2;
+		increment[2] = p;
+		increment[3] = (1 + p) / 2;
+		increment[4] = 1;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	public double getP() {
+		return p;
+	}
+
+	public void add(double x) {
+		if (count < 5) {
+			// keep the first observations sorted
+			int i = (int) count++;
+			while (i > 0 && q[i - 1] > x) {
+				q[i] = q[i - 1];
+				i--;
+			}
+			q[i] = x;
+			if (count == 5) {
+				for (int j = 0; j < 5; j++) {
+					n[j] = j + 1;
+				}
+				desired[0] = 1;
+				desired[1] = 1 + 2 * p;
+				desired[2] = 1 + 4 * p;
+				desired[3] = 3 + 2 * p;
+				desired[4] = 5;
+			}
+			return;
+		}
+		count++;
+		int k;
+		if (x < q[0]) {
+			q[0] = x;
+			k = 0;
+		} else if (x >= q[4]) {
+			q[4] = x;
+			k = 3;
+		} else {
+			k = 0;
+			while (x >= q[k + 1]) {
+				k++;
+			}
+		}
+		for (int i = k + 1; i < 5; i++) {
+			n[i]++;
+		}
+		for (int i = 0; i < 5; i++) {
+			desired[i] += increment[i];
+		}
+		for (int i = 1; i < 4; i++) {
+			double d = desired[i] - n[i];
+			if ((d >= 1 && n[i + 1] - n[i] > 1) || (d <= -1 && n[i - 1] - n[i] < -1)) {
+				int s = d > 0 ? 1 : -1;
+				double h = parabolic(i, s);
+				if (q[i - 1] < h && h < q[i + 1]) {
+					q[i] = h;
+				} else {
+					q[i] += s * (q[i + s] - q[i]) / (n[i + s] - n[i]);
+				}
+				n[i] += s;
+			}
+		}
+	}
+
+	private double parabolic(int i, int s) {
+		return q[i] + s / (n[i + 1] - n[i - 1]) * ((n[i] - n[i - 1] + s) * (q[i + 1] - q[i]) / (n[i + 1] - n[i])
+				+ (n[i + 1] - n[i] - s) * (q[i] - q[i - 1]) / (n[i] - n[i - 1]));
+	}
+
+	/**
+	 * @return the estimate of the quantile; NaN if there are no observations
+	 */
+	public double getQuantile() {
+		long c = count;
+		if (c == 0) {
+			return Double.NaN;
+		}
+		if (c < 5) {
+			return q[(int) Math.round(p * (c - 1))];
+		}
+		return q[2];
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the smallest observation; NaN if there are none
+	 */
+	public double getMin() {
+		return count == 0 ? Double.NaN : q[0];
+	}
+
+	/**
+	 * @return the largest observation; NaN if there are none
+	 */
+	public double getMax() {
+		long c = count;
+		return c == 0 ? Double.NaN : q[(int) Math.min(c, 5) - 1];
+	}
+
+	@Override
+	public void reset() {
+		count = 0;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: p%s=%.6g n=%d min=%.6g max=%.6g", name, percent(p), getQuantile(), count, getMin(),
+				getMax());
+	}
+
+	private static String percent(double p) {
+		double pct = p * 100;
+		return pct == Math.rint(pct) ? Long.toString((long) pct) : Double.toString(pct);
+	}
+
+}
@@ -0,0 +1,23 @@
+package com.github.glfrazier.event.stats;
+
+/**
+ * A statistic collected during a run, held in a {@link Statistics} registry
+ * under its name. A statistic is updated by the thread delivering events, in
+ * constant memory and without allocating. It may be read concurrently (by a
+ * monitor, say) without locking, in which case the values read may straddle an
+ * update. Its <code>toString()</code> is a one-line summary.
+ *
+ * @author Greg Frazier
+ *
+ */
+public interface Statistic {
+
+	public String getName();
+
+	/**
+	 * Discard what has been collected, for example at the end of a warm-up
+	 * period.
+	 */
+	public void reset();
+
+}
@@ -0,0 +1,166 @@
+package com.github.glfrazier.event.stats;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.glfrazier.event.Event;
+import com.github.glfrazier.event.EventProcessor;
+import com.github.glfrazier.event.EventingSystem;
+
+/**
+ * The named statistics of a run of an {@link EventingSystem}, so that models
+ * need not each keep their own, and so that the monitor can print them (the
+ * <code>stats</code> command). Obtain it with
+ * {@link EventingSystem#getStatistics()}. Look up a statistic once and keep the
+ * reference; the lookups are synchronized, the updates are not.
+ *
+ * <pre>
+ * Statistics stats = eventingSystem.getStatistics();
+ * TimeWeighted busy = stats.getTimeWeighted("busy servers", 10000);
+ * BatchMeans wait = stats.getBatchMeans("wait");
+ * Quantile wait95 = stats.getQuantile("wait p95", 0.95);
+ * stats.resetAt(warmUpEnd);
+ * </pre>
+ *
+ * @author Greg Frazier
+ *
+ */
+public class Statistics {
+
+	private final EventingSystem es;
+	private final Map<String, Statistic> statistics = new LinkedHashMap<>();
+
+	public Statistics(EventingSystem es) {
+		if (es == null) {
+			throw new NullPointerException("es");
+		}
+		this.es = es;
+	}
+
+	/**
+	 * Add a statistic.
+	 * 
+	 * @return the statistic
+	 * @throws IllegalArgumentException if there is already a statistic of that
+	 *                                  name
+	 */
+	public synchronized <S extends Statistic> S register(S statistic) {
+		if (statistics.containsKey(statistic.getName())) {
+			throw new IllegalArgumentException("There is already a statistic named " + statistic.getName());
+		}
+		statistics.put(statistic.getName(), statistic);
+		return statistic;
+	}
+
+	/**
+	 * @return the time-weighted statistic of that name, created without batch
+	 *         means if there is none
+	 */
+	public TimeWeighted getTimeWeighted(String name) {
+		return getTimeWeighted(name, 0);
+	}
+
+	/**
+	 * @param batchLength the initial batch length, if the statistic is created
+	 *                    (see {@link TimeWeighted#TimeWeighted(String, EventingSystem, long)})
+	 * @return the time-weighted statistic of that name, created if there is none
+	 */
+	public synchronized TimeWeighted getTimeWeighted(String name, long batchLength) {
+		Statistic s = statistics.get(name);
+		if (s == null) {
+			return register(new TimeWeighted(name, es, batchLength));
+		}
+		return cast(s, TimeWeighted.class);
+	}
+
+	/**
+	 * @return the batch-means statistic of that name, created if there is none
+	 */
+	public synchronized BatchMeans getBatchMeans(String name) {
+		Statistic s = statistics.get(name);
+		if (s == null) {
+			return register(new BatchMeans(name));
+		}
+		return cast(s, BatchMeans.class);
+	}
+
+	/**
+	 * @return the quantile estimate of that name, created for quantile
+	 *         <code>p</code> if there is none
+	 */
+	public synchronized Quantile getQuantile(String name, double p) {
+		Statistic s = statistics.get(name);
+		if (s == null) {
+			return register(new Quantile(name, p));
+		}
+		Quantile quantile = cast(s, Quantile.class);
+		if (quantile.getP() != p) {
+			throw new IllegalArgumentException(name + " estimates quantile " + quantile.getP() + ", not " + p);
+		}
+		return quantile;
+	}
+
+	private static <S extends Statistic> S cast(Statistic s, Class<S> type) {
+		if (!type.isInstance(s)) {
+			throw new IllegalArgumentException(
+					s.getName() + " is a " + s.getClass().getSimpleName() + ", not a " + type.getSimpleName());
+		}
+		return type.cast(s);
+	}
+
+	/**
+	 * @return the statistic of that name, or <code>null</code>
+	 */
+	public synchronized Statistic get(String name) {
+		return statistics.get(name);
+	}
+
+	/**
+	 * @return the statistics, in the order in which they were created
+	 */
+	public synchronized List<Statistic> getAll() {
+		return new ArrayList<>(statistics.values());
+	}
+
+	/**
+	 * Reset every statistic. Invoke it on the thread running the eventing system.
+	 */
+	public void reset() {
+		for (Statistic s : getAll()) {
+			s.reset();
+		}
+	}
+
+	/**
+	 * Reset every statistic at <code>time</code>, the end of the warm-up period,
+	 * by scheduling an event.
+	 */
+	public void resetAt(long time) {
+		es.scheduleEventAbsolute(new EventProcessor() {
+			@Override
+			public void process(Event e, EventingSystem eventingSystem, long currentTime) {
+				reset();
+			}
+
+			@Override
+			public String toString() {
+				return "statistics reset";
+			}
+		}, Event.EVENT, time);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Statistic s : getAll()) {
+			if (sb.length() > 0) {
+				sb.append(System.lineSeparator());
+			}
+			sb.append(s);
+		}
+		return sb.toString();
+	}
+
+}
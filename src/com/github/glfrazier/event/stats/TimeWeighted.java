@@ -0,0 +1,188 @@
+package com.github.glfrazier.event.stats;
+
+import com.github.glfrazier.event.EventingSystem;
+
+/**
+ * The time average of a quantity that changes in steps, such as the length of
+ * a queue or the number of busy servers: each value is weighted by how long,
+ * in the {@link EventingSystem}'s time, it was held. Only the running
+ * integrals are kept, so an update costs a few arithmetic operations. With a
+ * batch length, the statistic also keeps {@link BatchMeans} by time, from
+ * which a confidence interval of the time average is computed.
+ *
+ * <pre>
+ * TimeWeighted queueLength = eventingSystem.getStatistics().getTimeWeighted("queue", 1000);
+ * ...
+ * queueLength.add(1); // on an arrival
+ * queueLength.add(-1); // on a departure
+ * </pre>
+ *
+ * @author Greg Frazier
+ *
+ */
+public class TimeWeighted implements Statistic {
+
+	private final String name;
+	private final EventingSystem es;
+	private final BatchMeans batches;
+	private double value;
+	private long start;
+	private long last;
+	private double integral;
+	private double squares;
+	private double min;
+	private double max;
+
+	/**
+	 * A time-weighted statistic with initial value 0 and no batch means.
+	 */
+	public TimeWeighted(String name, EventingSystem es) {
+		this(name, es, 0);
+	}
+
+	/**
+	 * @param batchLength the length of a batch, in the eventing system's time
+	 *                    units, until the batches are first merged (see
+	 *                    {@link BatchMeans}); 0 for no batch means
+	 */
+	public TimeWeighted(String name, EventingSystem es, long batchLength) {
+		if (name == null) {
+			throw new NullPointerException("name");
+		}
+		if (es == null) {
+			throw new NullPointerException("es");
+		}
+		if (batchLength < 0) {
+			throw new IllegalArgumentException("batchLength must not be negative");
+		}
+		this.name = name;
+		this.es = es;
+		this.batches = batchLength == 0 ? null : new BatchMeans(name, BatchMeans.DEFAULT_BATCHES, batchLength);
+		reset();
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Change the value, as of the eventing system's current time.
+	 */
+	public void set(double v) {
+		long now = es.getCurrentTime();
+		long dt = now - last;
+		if (dt > 0) {
+			integral += value * dt;
+			squares += value * value * dt;
+			if (batches != null) {
+				batches.add(value, dt);
+			}
+			last = now;
+		}
+		value = v;
+		if (v < min) {
+			min = v;
+		}
+		if (v > max) {
+			max = v;
+		}
+	}
+
+	/**
+	 * Change the value by <code>delta</code>.
+	 */
+	public void add(double delta) {
+		set(value + delta);
+	}
+
+	public double getValue() {
+		return value;
+	}
+
+	/**
+	 * @return the time average up to the current time; the current value, if no
+	 *         time has passed
+	 */
+	public double getMean() {
+		long now = es.getCurrentTime();
+		long elapsed = now - start;
+		if (elapsed <= 0) {
+			return value;
+		}
+		return (integral + value * (now - last)) / elapsed;
+	}
+
+	/**
+	 * @return the time-weighted variance of the value up to the current time
+	 */
+	public double getVariance() {
+		long now = es.getCurrentTime();
+		long elapsed = now - start;
+		if (elapsed <= 0) {
+			return 0;
+		}
+		double mean = getMean();
+		return Math.max(0, (squares + value * value * (now - last)) / elapsed - mean * mean);
+	}
+
+	public double getMin() {
+		return min;
+	}
+
+	public double getMax() {
+		return max;
+	}
+
+	/**
+	 * @return the time over which the statistic has been collected
+	 */
+	public long getElapsed() {
+		return es.getCurrentTime() - start;
+	}
+
+	/**
+	 * @return the batch means, or <code>null</code> if the statistic was created
+	 *         without a batch length. They exclude the time since the last change.
+	 */
+	public BatchMeans getBatchMeans() {
+		return batches;
+	}
+
+	/**
+	 * @param confidence the confidence level, e.g. 0.95
+	 * @return the half-width of the confidence interval of the time average, by
+	 *         batch means; NaN if there are fewer than two complete batches or
+	 *         there are no batch means
+	 */
+	public double getHalfWidth(double confidence) {
+		return batches == null ? Double.NaN : batches.getHalfWidth(confidence);
+	}
+
+	/**
+	 * Restart the statistic at the current time, keeping the current value.
+	 */
+	@Override
+	public void reset() {
+		start = es.getCurrentTime();
+		last = start;
+		integral = 0;
+		squares = 0;
+		min = value;
+		max = value;
+		if (batches != null) {
+			batches.reset();
+		}
+	}
+
+	@Override
+	public String toString() {
+		String s = String.format("%s: time-average=%.6g", name, getMean());
+		if (batches != null) {
+			s += String.format(" +/- %.3g (95%%)", getHalfWidth(0.95));
+		}
+		return s + String.format(" sd=%.6g min=%.6g max=%.6g current=%.6g over %d", Math.sqrt(getVariance()), min,
+				max, value, getElapsed());
+	}
+
+}
@@ -2,6 +2,7 @@ package com.github.glfrazier.event.util;
 
 import java.awt.Toolkit;
 import java.awt.event.KeyEvent;
+import java.util.concurrent.TimeUnit;
 
 import com.github.glfrazier.event.Event;
 import com.github.glfrazier.event.EventProcessor;
@@ -31,7 +32,7 @@ public class KeepComputerAwake implements EventProcessor {
 	 * @param es
 	 */
 	public static void keepComputerAwake(EventingSystem es) {
-		es.scheduleEvent(SINGLETON, Event.EVENT);
+		es.scheduleWithFixedDelay(SINGLETON, Event.EVENT, 0, 5, TimeUnit.MINUTES);
 	}
 
 	@Override
@@ -40,7 +41,6 @@ public class KeepComputerAwake implements EventProcessor {
 		Toolkit.getDefaultToolkit().setLockingKeyState(KeyEvent.VK_NUM_LOCK, !flag);
 		Thread.yield();
 		Toolkit.getDefaultToolkit().setLockingKeyState(KeyEvent.VK_NUM_LOCK, !flag);
-		eventingSystem.scheduleEventRelative(this, e, 5 * 60 * 1000l);
 	}
 
 	public String toString() {
@@ -0,0 +1,175 @@
+package com.github.glfrazier.event.util;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+import com.github.glfrazier.event.EventProcessor;
+import com.github.glfrazier.event.EventingSystem;
+
+/**
+ * Independent streams of random numbers, all derived from one master seed, so
+ * that a run is reproduced exactly by its seed. Each stream is a
+ * {@link SplittableRandom} of its own, so drawing from it takes no lock and
+ * does not depend on what other processors, or other runs in the same JVM,
+ * draw. A stream is not thread-safe: it belongs to the thread that delivers
+ * its processor's events. Obtain the streams of an {@link EventingSystem} with
+ * {@link EventingSystem#getRandom(EventProcessor)} and
+ * {@link EventingSystem#getRandom(String)}.
+ * <p>
+ * A processor's stream is derived in one of two ways. Requested with a key
+ * ({@link #getRandom(EventProcessor, String)}), it is derived from the seed and
+ * the key alone, like a named stream, whatever the order of the requests or
+ * the thread that makes them. Requested without one, it is split from the
+ * master stream, so it is reproducible only if the processors make their first
+ * requests in the same order in each run, as they do when one thread builds the
+ * model and then runs it. Streams shared by several run threads, such as those
+ * of a {@link com.github.glfrazier.event.ShardedEventingSystem}, are
+ * <em>keyed</em>: a processor's first request must give its key.
+ *
+ * @author Greg Frazier
+ *
+ */
+public class RandomStreams {
+
+	/** Added to a processor's key, so that its stream differs from the stream named by the key. */
+	private static final long PROCESSOR_DOMAIN = 0x9e3779b97f4a7c15L;
+
+	private final long seed;
+	private final boolean keyed;
+	private final SplittableRandom master;
+	private final Map<EventProcessor, SplittableRandom> byProcessor = new IdentityHashMap<>();
+	private final Map<EventProcessor, String> keys = new IdentityHashMap<>();
+	private final Set<String> usedKeys = new HashSet<>();
+	private final Map<String, SplittableRandom> byName = new HashMap<>();
+
+	public RandomStreams(long seed) {
+		this(seed, false);
+	}
+
+	/**
+	 * @param seed  the master seed
+	 * @param keyed if <code>true</code>, a processor's stream can be requested
+	 *              without a key only after it has been requested with one
+	 */
+	public RandomStreams(long seed, boolean keyed) {
+		this.seed = seed;
+		this.keyed = keyed;
+		this.master = new SplittableRandom(seed);
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * @return the processor's stream, split from the master stream if this is the
+	 *         first request for it
+	 * @throws IllegalStateException if these streams are keyed and the
+	 *                               processor's stream has not yet been requested
+	 *                               with a key
+	 */
+	public synchronized SplittableRandom getRandom(EventProcessor processor) {
+		if (processor == null) {
+			throw new NullPointerException("processor");
+		}
+		SplittableRandom r = byProcessor.get(processor);
+		if (r == null) {
+			if (keyed) {
+				throw new IllegalStateException(
+						"The stream of " + processor + " must first be requested with a key, since the order of "
+								+ "first requests from several threads is not reproducible");
+			}
+			r = master.split();
+			byProcessor.put(processor, r);
+		}
+		return r;
+	}
+
+	/**
+	 * @param key the processor's key, unique among the processors, and the same
+	 *            in every run (a name or an id given when the model is built)
+	 * @return the processor's stream, derived from the seed and the key if this is
+	 *         the first request for it
+	 * @throws IllegalArgumentException if the processor's stream was created
+	 *                                  under another key (or none), or the key
+	 *                                  belongs to another processor
+	 */
+	public synchronized SplittableRandom getRandom(EventProcessor processor, String key) {
+		if (processor == null) {
+			throw new NullPointerException("processor");
+		}
+		if (key == null) {
+			throw new NullPointerException("key");
+		}
+		SplittableRandom r = byProcessor.get(processor);
+		if (r != null) {
+			if (!key.equals(keys.get(processor))) {
+				throw new IllegalArgumentException(
+						"The stream of " + processor + " was created under the key " + keys.get(processor));
+			}
+			return r;
+		}
+		if (!usedKeys.add(key)) {
+			throw new IllegalArgumentException("The key " + key + " belongs to another processor");
+		}
+		r = new SplittableRandom(mix(seed + mix(hash(key) + PROCESSOR_DOMAIN))).split();
+		byProcessor.put(processor, r);
+		keys.put(processor, key);
+		return r;
+	}
+
+	/**
+	 * @return the named stream, which depends only on the seed and the name
+	 */
+	public synchronized SplittableRandom getRandom(String name) {
+		if (name == null) {
+			throw new NullPointerException("name");
+		}
+		SplittableRandom r = byName.get(name);
+		if (r == null) {
+			// split, so that the stream has a gamma of its own rather than being a
+			// shifted copy of the master stream
+			r = new SplittableRandom(mix(seed + mix(hash(name)))).split();
+			byName.put(name, r);
+		}
+		return r;
+	}
+
+	/**
+	 * @return the number of streams handed out
+	 */
+	public synchronized int size() {
+		return byProcessor.size() + byName.size();
+	}
+
+	/**
+	 * The 64-bit FNV-1a hash of the name's characters.
+	 */
+	private static long hash(String name) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < name.length(); i++) {
+			h ^= name.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	/**
+	 * The finalizer of SplitMix64.
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	@Override
+	public String toString() {
+		return "random streams from seed " + seed;
+	}
+
+}
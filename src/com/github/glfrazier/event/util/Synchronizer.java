@@ -3,6 +3,7 @@ package com.github.glfrazier.event.util;
 import com.github.glfrazier.event.Event;
 import com.github.glfrazier.event.EventProcessor;
 import com.github.glfrazier.event.EventingSystem;
+import com.github.glfrazier.event.PrioritizedEvent;
 
 /**
  * Synchronizes two EventingSystems. The Synchronizer implements a barrier such
@@ -13,7 +14,11 @@ import com.github.glfrazier.event.EventingSystem;
  * that thread will be double-counted, and some other thread(s) will not be
  * waited for. Note also that the EventingSystems will always have an event in
  * them, and so you cannot terminate an execution simply by ceasing to supply
- * events.
+ * events. {@link #SYNC_EVENT} is a control-plane event, and so it is not held up
+ * behind bulk events that are scheduled for the same time.
+ * <p>
+ * To synchronize EventingSystems in separate JVMs, see
+ * {@link com.github.glfrazier.event.distributed.Node}.
  * 
  * <pre>
  * EventingSystem es1 = new EventingSystem("ES1", NOT_REALTIME);
@@ -32,6 +37,18 @@ import com.github.glfrazier.event.EventingSystem;
  */
 public class Synchronizer implements EventProcessor {
 
+	/** The event to schedule to the synchronizer. */
+	public static final Event SYNC_EVENT = new PrioritizedEvent() {
+		@Override
+		public int getPriority() {
+			return CONTROL;
+		}
+
+		public String toString() {
+			return "sync";
+		}
+	};
+
 	private int numberOfEventingSystems;
 	private long interval;
 	private int threadCount;
@@ -63,7 +80,7 @@ public class Synchronizer implements EventProcessor {
 		this.threadSeenAlive = new boolean[threads.length];
 		for (int i = 0; i < threads.length; i++) {
 			threadSeenAlive[i] = false;
-			eventingSystem.scheduleEvent(this, Event.EVENT);
+			eventingSystem.scheduleEvent(this, SYNC_EVENT);
 		}
 	}
 
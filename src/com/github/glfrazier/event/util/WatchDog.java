@@ -1,5 +1,12 @@
 package com.github.glfrazier.event.util;
 
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.glfrazier.event.DeliveryRecord;
 import com.github.glfrazier.event.Event;
 import com.github.glfrazier.event.EventProcessor;
 import com.github.glfrazier.event.EventingSystem;
@@ -9,6 +16,15 @@ import com.github.glfrazier.event.EventingSystem;
  * Thereafter, if more than the interval seconds pass between invocations of
  * process(), the watchdog prints out the stack trace for the thread that first
  * invoked process().
+ * <p>
+ * Alternatively, a watchdog constructed with
+ * {@link #WatchDog(EventingSystem, long, long)} (or obtained from
+ * {@link #watch(EventingSystem, long)}) works out of band: it turns on delivery
+ * tracking in the eventing system and, every sample interval, inspects the
+ * {@link DeliveryRecord} of every thread running the system. Any single
+ * process() call that has been running for longer than the threshold is
+ * reported, once, with the target, the event and the stack of the thread. It
+ * schedules nothing into the queue, so it is not delayed by a deep queue.
  *
  */
 public class WatchDog extends Thread implements EventProcessor {
@@ -20,6 +36,9 @@ public class WatchDog extends Thread implements EventProcessor {
 	private Thread threadToMonitor;
 	private EventingSystem eventingSystem;
 
+	private long thresholdNanos;
+	private PrintStream out = System.err;
+
 	public WatchDog(long sleepInterval, long alertInterval) {
 		super("watchdog");
 		setDaemon(true);
@@ -27,6 +46,49 @@ public class WatchDog extends Thread implements EventProcessor {
 		this.alertInterval = alertInterval;
 	}
 
+	/**
+	 * Create an out-of-band watchdog. Start it with {@link #start()}.
+	 *
+	 * @param eventingSystem  the system to watch
+	 * @param sampleInterval  how often, in milliseconds, the deliveries in progress
+	 *                        are inspected
+	 * @param thresholdMillis a process() call that runs longer than this is
+	 *                        reported
+	 */
+	public WatchDog(EventingSystem eventingSystem, long sampleInterval, long thresholdMillis) {
+		super("watchdog");
+		if (sampleInterval <= 0 || thresholdMillis <= 0) {
+			throw new IllegalArgumentException("sampleInterval and thresholdMillis must be positive");
+		}
+		setDaemon(true);
+		this.eventingSystem = eventingSystem;
+		this.sleepInterval = sampleInterval;
+		this.thresholdNanos = thresholdMillis * 1000000L;
+		eventingSystem.setDeliveryTracking(true);
+	}
+
+	/**
+	 * Start an out-of-band watchdog that reports process() calls that run longer
+	 * than <code>thresholdMillis</code>, sampling four times per threshold.
+	 *
+	 * @param eventingSystem  the system to watch
+	 * @param thresholdMillis a process() call that runs longer than this is
+	 *                        reported
+	 * @return the running watchdog
+	 */
+	public static WatchDog watch(EventingSystem eventingSystem, long thresholdMillis) {
+		WatchDog dog = new WatchDog(eventingSystem, Math.max(1, thresholdMillis / 4), thresholdMillis);
+		dog.start();
+		return dog;
+	}
+
+	/**
+	 * @param out where alerts are printed (System.err by default)
+	 */
+	public void setOutput(PrintStream out) {
+		this.out = out;
+	}
+
 	private synchronized void touched() {
 		toggle = true;
 	}
@@ -50,6 +112,10 @@ public class WatchDog extends Thread implements EventProcessor {
 
 	public void run() {
 		running = true;
+		if (thresholdNanos > 0) {
+			sample();
+			return;
+		}
 		while (true) {
 			try {
 				Thread.sleep(alertInterval);
@@ -72,4 +138,73 @@ public class WatchDog extends Thread implements EventProcessor {
 		}
 	}
 
+	/**
+	 * The out-of-band loop: inspect the delivery records until interrupted or
+	 * until the eventing system terminates.
+	 */
+	private void sample() {
+		// the start time of the last delivery reported, per thread, so that each slow
+		// call is reported once
+		Map<Thread, Long> reported = new HashMap<>();
+		while (!eventingSystem.isTerminated()) {
+			try {
+				Thread.sleep(sleepInterval);
+			} catch (InterruptedException e) {
+				break;
+			}
+			long now = System.nanoTime();
+			for (DeliveryRecord record : eventingSystem.getDeliveryRecords()) {
+				DeliveryRecord.InProgress d = record.getInProgress();
+				if (d == null || now - d.getStartNanos() < thresholdNanos) {
+					continue;
+				}
+				Long last = reported.put(record.getThread(), d.getStartNanos());
+				if (last != null && last == d.getStartNanos()) {
+					continue;
+				}
+				alert(record.getThread(), d, now);
+			}
+			reported.keySet().retainAll(threads());
+		}
+		running = false;
+	}
+
+	private List<Thread> threads() {
+		List<Thread> threads = new ArrayList<>();
+		for (DeliveryRecord record : eventingSystem.getDeliveryRecords()) {
+			threads.add(record.getThread());
+		}
+		return threads;
+	}
+
+	private void alert(Thread thread, DeliveryRecord.InProgress d, long now) {
+		StackTraceElement[] trace = thread.getStackTrace();
+		synchronized (out) {
+			out.println("Watchdog alerting on thread " + thread + " at time " + eventingSystem.getCurrentTime()
+					+ ": delivery of <" + d.getEvent() + "> to " + d.getTarget() + " has been running for "
+					+ (now - d.getStartNanos()) / 1000000 + " ms");
+			for (StackTraceElement t : trace) {
+				out.println("  >>  " + t);
+			}
+		}
+	}
+
+	/**
+	 * Print the histogram of process() durations collected by the eventing system
+	 * while it has been watched out of band.
+	 *
+	 * @param out where to print the histogram
+	 */
+	public void printHistogram(PrintStream out) {
+		long[] histogram = eventingSystem.getProcessingTimeHistogram();
+		out.println("process() durations for " + eventingSystem + ":");
+		for (int i = 0; i < histogram.length; i++) {
+			if (histogram[i] == 0) {
+				continue;
+			}
+			long upper = i == 63 ? Long.MAX_VALUE : 1L << i;
+			out.println(String.format("  < %,16d ns: %d", upper, histogram[i]));
+		}
+	}
+
 }
@@ -0,0 +1,30 @@
+package com.github.glfrazier.event.visualize2D;
+
+import java.awt.Graphics2D;
+import java.awt.geom.Rectangle2D;
+
+/**
+ * The picture of one element of an {@link ElementModel}. A drawable is
+ * immutable: to change an element, give it a new drawable with
+ * {@link ElementModel#update(ElementModel.Element, Drawable)}. The display
+ * thread may be painting the old one at the time.
+ *
+ * @author Greg Frazier
+ *
+ */
+public interface Drawable {
+
+	/**
+	 * @return the bounds of everything that {@link #draw(Graphics2D)} paints, in
+	 *         world coordinates
+	 */
+	public Rectangle2D getBounds();
+
+	/**
+	 * Paint the element.
+	 *
+	 * @param g a graphics context that maps world coordinates to the display
+	 */
+	public void draw(Graphics2D g);
+
+}
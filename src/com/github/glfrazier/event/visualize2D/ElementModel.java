@@ -0,0 +1,386 @@
+package com.github.glfrazier.event.visualize2D;
+
+import java.awt.Graphics2D;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The drawable elements of a {@link Simulation}, indexed by location. The world
+ * is divided into a grid of square cells, and each element is listed in every
+ * cell that its bounds overlap, so that the elements within a region are found
+ * without looking at the others. Every change to an element marks its old and
+ * new bounds as dirty; a {@link SimulationGUI} given the model (see
+ * {@link SimulationGUI#setElementModel(ElementModel)}) repaints, each frame,
+ * only the union of the dirty regions that lies within its viewport, and draws
+ * only the elements that overlap it.
+ * <p>
+ * The model is changed by the simulation thread alone, and read concurrently by
+ * the display. Since {@link Drawable}s are immutable, the display always draws
+ * each element whole; it may draw a region while the simulation is changing
+ * it, but any element changed meanwhile is dirty, and so redrawn at the next
+ * frame.
+ *
+ * <pre>
+ * ElementModel model = new ElementModel(50);
+ * gui.setElementModel(model);
+ * Element agent = model.add(new Dot(x, y));
+ * ...
+ * model.update(agent, new Dot(x + dx, y + dy));
+ * </pre>
+ *
+ * @author Greg Frazier
+ *
+ */
+public class ElementModel {
+
+	/**
+	 * An element that overlaps more cells than this is not indexed, but is
+	 * considered in every query.
+	 */
+	public static final int MAX_CELLS_PER_ELEMENT = 1024;
+
+	/**
+	 * A region that covers the whole world. Do not modify it.
+	 */
+	public static final Rectangle2D EVERYWHERE = new Rectangle2D.Double(-Double.MAX_VALUE / 2, -Double.MAX_VALUE / 2,
+			Double.MAX_VALUE, Double.MAX_VALUE);
+
+	private static final Comparator<Element> PAINT_ORDER = new Comparator<Element>() {
+		@Override
+		public int compare(Element a, Element b) {
+			if (a.layer != b.layer) {
+				return a.layer < b.layer ? -1 : 1;
+			}
+			return Long.compare(a.id, b.id);
+		}
+	};
+
+	private final double cellSize;
+	private final Map<Long, Set<Element>> cells = new ConcurrentHashMap<>();
+	private final Set<Element> large = ConcurrentHashMap.newKeySet();
+	private long nextId = 0;
+	private int size = 0;
+
+	private final Object dirtyLock = new Object();
+	private boolean dirty = false;
+	private boolean allDirty = true;
+	private double dirtyMinX;
+	private double dirtyMinY;
+	private double dirtyMaxX;
+	private double dirtyMaxY;
+
+	/**
+	 * @param cellSize the side of a grid cell, in world coordinates; a few times
+	 *                 the size of a typical element works well
+	 */
+	public ElementModel(double cellSize) {
+		if (!(cellSize > 0)) {
+			throw new IllegalArgumentException("cellSize must be positive");
+		}
+		this.cellSize = cellSize;
+	}
+
+	/**
+	 * Add an element in layer 0.
+	 */
+	public Element add(Drawable drawable) {
+		return add(drawable, 0);
+	}
+
+	/**
+	 * Add an element. Elements in higher layers are drawn over those in lower
+	 * layers; within a layer, later elements are drawn over earlier ones.
+	 *
+	 * @return the element, with which to update or remove it
+	 */
+	public Element add(Drawable drawable, int layer) {
+		if (drawable == null) {
+			throw new NullPointerException("drawable");
+		}
+		Element e = new Element(this, nextId++, layer);
+		Rectangle2D bounds = drawable.getBounds();
+		e.drawable = drawable;
+		index(e, bounds);
+		size++;
+		markDirty(bounds);
+		return e;
+	}
+
+	/**
+	 * Give an element a new picture, which may be somewhere else.
+	 */
+	public void update(Element e, Drawable drawable) {
+		if (drawable == null) {
+			throw new NullPointerException("drawable");
+		}
+		check(e);
+		Rectangle2D oldBounds = e.drawable.getBounds();
+		Rectangle2D bounds = drawable.getBounds();
+		if (!bounds.equals(oldBounds)) {
+			// index the new cells before leaving the old ones, so that a dirty
+			// region is never painted without the elements in it
+			boolean wasLarge = e.large;
+			int minCx = e.minCx;
+			int minCy = e.minCy;
+			int maxCx = e.maxCx;
+			int maxCy = e.maxCy;
+			index(e, bounds);
+			e.drawable = drawable;
+			if (wasLarge) {
+				if (!e.large) {
+					large.remove(e);
+				}
+			} else {
+				unindex(e, minCx, minCy, maxCx, maxCy, !e.large);
+			}
+			markDirty(oldBounds);
+		} else {
+			e.drawable = drawable;
+		}
+		markDirty(bounds);
+	}
+
+	public void remove(Element e) {
+		check(e);
+		unindex(e);
+		e.model = null;
+		size--;
+		markDirty(e.drawable.getBounds());
+	}
+
+	private void check(Element e) {
+		if (e.model != this) {
+			throw new IllegalArgumentException(e + " is not in this model");
+		}
+	}
+
+	/**
+	 * Mark everything dirty: for example, after a change to the background.
+	 */
+	public void invalidate() {
+		synchronized (dirtyLock) {
+			allDirty = true;
+		}
+	}
+
+	/**
+	 * Mark a region dirty, so that it is redrawn at the next frame.
+	 */
+	public void markDirty(Rectangle2D r) {
+		synchronized (dirtyLock) {
+			if (!dirty) {
+				dirty = true;
+				dirtyMinX = r.getMinX();
+				dirtyMinY = r.getMinY();
+				dirtyMaxX = r.getMaxX();
+				dirtyMaxY = r.getMaxY();
+				return;
+			}
+			dirtyMinX = Math.min(dirtyMinX, r.getMinX());
+			dirtyMinY = Math.min(dirtyMinY, r.getMinY());
+			dirtyMaxX = Math.max(dirtyMaxX, r.getMaxX());
+			dirtyMaxY = Math.max(dirtyMaxY, r.getMaxY());
+		}
+	}
+
+	/**
+	 * Take the union of the regions marked dirty since the previous call, and mark
+	 * everything clean.
+	 *
+	 * @return the dirty region, in world coordinates; <code>null</code> if nothing
+	 *         is dirty; or {@link #EVERYWHERE} if everything is
+	 */
+	public Rectangle2D takeDirty() {
+		synchronized (dirtyLock) {
+			Rectangle2D r = null;
+			if (allDirty) {
+				r = EVERYWHERE;
+			} else if (dirty) {
+				r = new Rectangle2D.Double(dirtyMinX, dirtyMinY, dirtyMaxX - dirtyMinX, dirtyMaxY - dirtyMinY);
+			}
+			allDirty = false;
+			dirty = false;
+			return r;
+		}
+	}
+
+	/**
+	 * @return the elements whose bounds intersect the area, in the order in which
+	 *         they are drawn
+	 */
+	public List<Element> query(Rectangle2D area) {
+		Set<Element> found = new HashSet<>();
+		for (Element e : large) {
+			found.add(e);
+		}
+		int minCx = cell(area.getMinX());
+		int minCy = cell(area.getMinY());
+		int maxCx = cell(area.getMaxX());
+		int maxCy = cell(area.getMaxY());
+		if (((double) maxCx - minCx + 1) * ((double) maxCy - minCy + 1) > cells.size()) {
+			// the area covers more cells than are occupied: visit the occupied ones
+			for (Map.Entry<Long, Set<Element>> entry : cells.entrySet()) {
+				long key = entry.getKey();
+				int cx = (int) (key >> 32);
+				int cy = (int) key;
+				if (cx >= minCx && cx <= maxCx && cy >= minCy && cy <= maxCy) {
+					found.addAll(entry.getValue());
+				}
+			}
+		} else {
+			for (int cx = minCx; cx <= maxCx; cx++) {
+				for (int cy = minCy; cy <= maxCy; cy++) {
+					Set<Element> cell = cells.get(key(cx, cy));
+					if (cell != null) {
+						found.addAll(cell);
+					}
+				}
+			}
+		}
+		List<Element> result = new ArrayList<>(found.size());
+		for (Element e : found) {
+			if (e.drawable.getBounds().intersects(area)) {
+				result.add(e);
+			}
+		}
+		Collections.sort(result, PAINT_ORDER);
+		return result;
+	}
+
+	/**
+	 * Draw the elements that intersect the area.
+	 *
+	 * @param g    a graphics context that maps world coordinates to the display
+	 * @param area the region to draw, in world coordinates
+	 */
+	public void paint(Graphics2D g, Rectangle2D area) {
+		for (Element e : query(area)) {
+			e.drawable.draw(g);
+		}
+	}
+
+	/**
+	 * @return the number of elements in the model
+	 */
+	public int size() {
+		return size;
+	}
+
+	public double getCellSize() {
+		return cellSize;
+	}
+
+	private void index(Element e, Rectangle2D bounds) {
+		e.minCx = cell(bounds.getMinX());
+		e.minCy = cell(bounds.getMinY());
+		e.maxCx = cell(bounds.getMaxX());
+		e.maxCy = cell(bounds.getMaxY());
+		if (((double) e.maxCx - e.minCx + 1) * ((double) e.maxCy - e.minCy + 1) > MAX_CELLS_PER_ELEMENT) {
+			e.large = true;
+			large.add(e);
+			return;
+		}
+		e.large = false;
+		for (int cx = e.minCx; cx <= e.maxCx; cx++) {
+			for (int cy = e.minCy; cy <= e.maxCy; cy++) {
+				Long key = key(cx, cy);
+				Set<Element> cell = cells.get(key);
+				if (cell == null) {
+					cell = ConcurrentHashMap.newKeySet();
+					cells.put(key, cell);
+				}
+				cell.add(e);
+			}
+		}
+	}
+
+	private void unindex(Element e) {
+		if (e.large) {
+			large.remove(e);
+			return;
+		}
+		unindex(e, e.minCx, e.minCy, e.maxCx, e.maxCy, false);
+	}
+
+	/**
+	 * Remove an element from the given cells, except, if <code>keepCurrent</code>,
+	 * from those in which it is now indexed.
+	 */
+	private void unindex(Element e, int minCx, int minCy, int maxCx, int maxCy, boolean keepCurrent) {
+		for (int cx = minCx; cx <= maxCx; cx++) {
+			for (int cy = minCy; cy <= maxCy; cy++) {
+				if (keepCurrent && cx >= e.minCx && cx <= e.maxCx && cy >= e.minCy && cy <= e.maxCy) {
+					continue;
+				}
+				Long key = key(cx, cy);
+				Set<Element> cell = cells.get(key);
+				if (cell != null) {
+					cell.remove(e);
+					if (cell.isEmpty()) {
+						cells.remove(key);
+					}
+				}
+			}
+		}
+	}
+
+	private int cell(double coordinate) {
+		double c = Math.floor(coordinate / cellSize);
+		if (c < Integer.MIN_VALUE) {
+			return Integer.MIN_VALUE;
+		}
+		if (c > Integer.MAX_VALUE) {
+			return Integer.MAX_VALUE;
+		}
+		return (int) c;
+	}
+
+	private static long key(int cx, int cy) {
+		return ((long) cx << 32) | (cy & 0xffffffffL);
+	}
+
+	/**
+	 * An element of the model: a handle on its current {@link Drawable}.
+	 */
+	public static class Element {
+
+		private final long id;
+		private final int layer;
+		private ElementModel model;
+		private volatile Drawable drawable;
+		// the cells in which the element is indexed; touched only by the simulation
+		private int minCx;
+		private int minCy;
+		private int maxCx;
+		private int maxCy;
+		private boolean large;
+
+		private Element(ElementModel model, long id, int layer) {
+			this.model = model;
+			this.id = id;
+			this.layer = layer;
+		}
+
+		public Drawable getDrawable() {
+			return drawable;
+		}
+
+		public int getLayer() {
+			return layer;
+		}
+
+		@Override
+		public String toString() {
+			return "element " + id;
+		}
+
+	}
+
+}
@@ -0,0 +1,248 @@
+package com.github.glfrazier.event.visualize2D;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+import javax.swing.JPanel;
+
+import com.github.glfrazier.event.Event;
+import com.github.glfrazier.event.EventProcessor;
+import com.github.glfrazier.event.EventingSystem;
+import com.github.glfrazier.event.PeriodicSchedule;
+
+/**
+ * Renders a {@link Simulation} to a sequence of image files, without a display.
+ * Every <code>interval</code> units of simulated time, the renderer takes a
+ * {@link Snapshot} on the simulation thread and hands it to a pool of worker
+ * threads, which paint it into an offscreen image and encode it (as
+ * <code>frame-000000.png</code>, <code>frame-000001.png</code>, ...). The
+ * simulation never waits for a worker: if the workers fall more than
+ * <code>maxPending</code> frames behind, frames are dropped, and counted.
+ * <p>
+ * A simulation whose {@link Simulation#snapshot()} returns <code>null</code> is
+ * painted, with {@link Simulation#paint(java.awt.Graphics, JPanel)}, on the
+ * simulation thread; only the encoding is then done by the workers.
+ * <p>
+ * The frames are themselves events, so they would keep a simulation from
+ * running out of events. When a frame finds no other event pending, it is the
+ * last one if the simulation could not otherwise go on: if the eventing system
+ * is not realtime, or exits when its queue is empty. A simulation that never
+ * runs out of events must be ended some other way, e.g. by an end time or
+ * {@link com.github.glfrazier.event.EndConditions}.
+ *
+ * <pre>
+ * HeadlessRenderer renderer = new HeadlessRenderer(sim, new File("frames"), 1280, 720, 1000);
+ * renderer.start();
+ * sim.run();
+ * renderer.close();
+ * </pre>
+ *
+ * @author Greg Frazier
+ *
+ */
+public class HeadlessRenderer implements EventProcessor {
+
+	private static final Event FRAME_EVENT = new Event() {
+		public String toString() {
+			return "FRAME";
+		}
+	};
+
+	private final Simulation sim;
+	private final File directory;
+	private final String format;
+	private final int width;
+	private final int height;
+	private final long interval;
+	private final int maxPending;
+	private final ExecutorService encoders;
+
+	private final AtomicInteger pending = new AtomicInteger();
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private long dropped = 0;
+	private int frameNumber = 0;
+	private PeriodicSchedule schedule;
+	private JPanel panel;
+
+	/**
+	 * Render PNG frames with one encoder per available processor.
+	 *
+	 * @param sim       the simulation to render
+	 * @param directory where the frames are written; created if necessary
+	 * @param width     the width of each frame, in pixels
+	 * @param height    the height of each frame, in pixels
+	 * @param interval  the simulated time between frames, in the eventing
+	 *                  system's finest time unit
+	 */
+	public HeadlessRenderer(Simulation sim, File directory, int width, int height, long interval) {
+		this(sim, directory, "png", width, height, interval, Runtime.getRuntime().availableProcessors(), 64);
+	}
+
+	/**
+	 * @param format     an image format known to {@link ImageIO}, e.g.
+	 *                   <code>"png"</code> or <code>"jpg"</code>
+	 * @param encoders   the number of worker threads
+	 * @param maxPending the number of frames that may wait for a worker before
+	 *                   frames are dropped
+	 */
+	public HeadlessRenderer(Simulation sim, File directory, String format, int width, int height, long interval,
+			int encoders, int maxPending) {
+		if (width <= 0 || height <= 0) {
+			throw new IllegalArgumentException("width and height must be positive");
+		}
+		if (interval <= 0) {
+			throw new IllegalArgumentException("interval must be positive");
+		}
+		if (encoders <= 0 || maxPending <= 0) {
+			throw new IllegalArgumentException("encoders and maxPending must be positive");
+		}
+		if (!ImageIO.getImageWritersByFormatName(format).hasNext()) {
+			throw new IllegalArgumentException("There is no image writer for " + format);
+		}
+		this.sim = sim;
+		this.directory = directory;
+		this.format = format;
+		this.width = width;
+		this.height = height;
+		this.interval = interval;
+		this.maxPending = maxPending;
+		this.encoders = Executors.newFixedThreadPool(encoders, new ThreadFactory() {
+			private int n = 0;
+
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "frame encoder " + n++);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Schedule the first frame now, and one every interval thereafter.
+	 */
+	public void start() throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create " + directory);
+		}
+		schedule = sim.getEventingSystem().scheduleAtFixedRate(this, FRAME_EVENT, 0, interval);
+	}
+
+	/**
+	 * Take a frame. Runs on the simulation thread.
+	 */
+	@Override
+	public void process(Event e, EventingSystem eventingSystem, long t) {
+		if (eventingSystem.getQueueLength() == 0
+				&& (!eventingSystem.isRealtime() || eventingSystem.isExitOnEmptyQueue())) {
+			// only this frame was left: the simulation is over, or would only wait
+			schedule.cancel();
+		}
+		int number = frameNumber++;
+		if (pending.get() >= maxPending) {
+			dropped++;
+			return;
+		}
+		final Snapshot snapshot = sim.snapshot();
+		final BufferedImage image;
+		if (snapshot == null) {
+			image = newImage();
+			if (panel == null) {
+				panel = new JPanel();
+				panel.setSize(width, height);
+			}
+			Graphics2D g = image.createGraphics();
+			try {
+				sim.paint(g, panel);
+			} finally {
+				g.dispose();
+			}
+		} else {
+			image = null;
+		}
+		final File file = new File(directory, String.format("frame-%06d.%s", number, format));
+		pending.incrementAndGet();
+		encoders.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					BufferedImage img = image;
+					if (img == null) {
+						img = newImage();
+						Graphics2D g = img.createGraphics();
+						try {
+							snapshot.paint(g, width, height);
+						} finally {
+							g.dispose();
+						}
+					}
+					ImageIO.write(img, format, file);
+					written.incrementAndGet();
+				} catch (IOException | RuntimeException x) {
+					failed.incrementAndGet();
+					System.err.println(HeadlessRenderer.this + " could not write " + file + ": " + x);
+				} finally {
+					pending.decrementAndGet();
+				}
+			}
+		});
+	}
+
+	private BufferedImage newImage() {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+		g.setColor(Color.WHITE);
+		g.fillRect(0, 0, width, height);
+		g.dispose();
+		return image;
+	}
+
+	/**
+	 * Stop taking frames, and wait for the frames already taken to be written.
+	 */
+	public void close() throws InterruptedException {
+		if (schedule != null) {
+			schedule.cancel();
+		}
+		encoders.shutdown();
+		encoders.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return the number of frames written
+	 */
+	public long getFramesWritten() {
+		return written.get();
+	}
+
+	/**
+	 * @return the number of frames skipped because the encoders were behind
+	 */
+	public long getFramesDropped() {
+		return dropped;
+	}
+
+	/**
+	 * @return the number of frames that could not be written
+	 */
+	public long getFramesFailed() {
+		return failed.get();
+	}
+
+	@Override
+	public String toString() {
+		return "HeadlessRenderer to " + directory;
+	}
+
+}
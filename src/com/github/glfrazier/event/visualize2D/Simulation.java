@@ -28,7 +28,25 @@ public interface Simulation {
 	 */
 	public void stop();
 	
+	/**
+	 * Paint the simulation directly. This is invoked on the event dispatch thread
+	 * while the simulation may be running, and so is only used if
+	 * {@link #snapshot()} returns <code>null</code>.
+	 */
 	public void paint(Graphics g, JPanel panel);
 
+	/**
+	 * Capture the current state of the simulation for display. Invoked on the
+	 * simulation thread, between events, at most at the display's frame rate and
+	 * only after {@link SimulationGUI#elementChanged()} has been called; or by a
+	 * {@link HeadlessRenderer}, once per frame.
+	 * 
+	 * @return an immutable snapshot, or <code>null</code> (the default) if the
+	 *         simulation paints itself with {@link #paint(Graphics, JPanel)}
+	 */
+	public default Snapshot snapshot() {
+		return null;
+	}
+
 	public void setGUI(SimulationGUI simulationGUI); 
 }
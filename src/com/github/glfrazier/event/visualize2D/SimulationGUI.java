@@ -5,9 +5,16 @@ import java.awt.Color;
 import java.awt.Container;
 import java.awt.Dimension;
 import java.awt.Graphics;
+import java.awt.Graphics2D;
 import java.awt.GridLayout;
+import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.geom.Rectangle2D;
 import java.text.NumberFormat;
 import java.util.HashMap;
 import java.util.Map;
@@ -23,15 +30,42 @@ import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.border.BevelBorder;
 
 import com.github.glfrazier.event.Event;
 import com.github.glfrazier.event.EventProcessor;
 import com.github.glfrazier.event.EventingSystem;
 
+/**
+ * A window that displays a {@link Simulation} and controls its pace. Rendering
+ * is decoupled from the simulation: every timestep, the simulation thread
+ * publishes the latest {@link Snapshot} (at most at the frame rate, and only if
+ * an element has changed), and a Swing timer on the event dispatch thread paints
+ * whichever snapshot is latest at the frame rate. Neither thread waits for the
+ * other, and the display never sees the simulation mid-update.
+ * <p>
+ * For a simulation that is not realtime, the <em>scale</em> is the number of
+ * simulated seconds that pass per wall-clock second: each timestep, the
+ * simulation thread sleeps as long as it is ahead of that pace. A scale of 0
+ * runs the simulation as fast as it can.
+ * <p>
+ * A simulation with many elements should instead put them in an
+ * {@link ElementModel} and give it to {@link #setElementModel(ElementModel)}.
+ * Then each frame repaints only the dirty part of the viewport, drawing only
+ * the elements there; the mouse wheel zooms and dragging pans the viewport.
+ * 
+ * @author Greg Frazier
+ *
+ */
 @SuppressWarnings("serial")
 public class SimulationGUI extends JFrame implements EventProcessor {
 
+	public static final int DEFAULT_FPS = 30;
+	/** The interval between timesteps, in the simulation's time unit. */
+	public static final long TIMESTEP = 100;
+
 	private static Event TIMESTEP_EVENT = new Event() {
 		public String toString() {
 			return "TIMESTEP";
@@ -48,11 +82,46 @@ public class SimulationGUI extends JFrame implements EventProcessor {
 	private Simulation sim;
 	private JTextField scaler;
 
-	private double scale = 1.0;
+	private volatile double scale = 1.0;
+
+	private final int fps;
+	private final long frameNanos;
+	/** The latest frame published by the simulation thread. */
+	private volatile Frame latest;
+	/** The frame being displayed; touched only on the event dispatch thread. */
+	private Frame painted;
+	private volatile boolean changed = true;
+	private long lastPublished;
+
+	/** Set when the pace must be re-anchored to the current time. */
+	private volatile boolean rebase = true;
+	private long paceSimStart;
+	private long paceWallStart;
+
+	/** Set when the simulation draws through an element model. */
+	private volatile ElementModel model;
+	/** The viewport: pixels per world unit, and the world point at the top left. */
+	private double zoom = 1.0;
+	private double originX = 0;
+	private double originY = 0;
+	private Point dragFrom;
 
 	private Map<String, JComponent> components;
 
 	public SimulationGUI(Simulation sim) {
+		this(sim, DEFAULT_FPS);
+	}
+
+	/**
+	 * @param sim the simulation to display
+	 * @param fps the target frame rate
+	 */
+	public SimulationGUI(Simulation sim, int fps) {
+		if (fps <= 0) {
+			throw new IllegalArgumentException("fps must be positive");
+		}
+		this.fps = fps;
+		this.frameNanos = 1000000000L / fps;
 		setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 		this.sim = sim;
 		sim.setGUI(this);
@@ -73,6 +142,7 @@ public class SimulationGUI extends JFrame implements EventProcessor {
 		scaler.setColumns(6);
 		scaler.setText("1.00");
 		scaler.setHorizontalAlignment(JTextField.RIGHT);
+		scaler.setToolTipText("Simulated seconds per second; 0 runs as fast as possible");
 		scaler.setAction(new AbstractAction() {
 
 			@Override
@@ -93,7 +163,12 @@ public class SimulationGUI extends JFrame implements EventProcessor {
 						d = scale;
 					}
 				} while (false);
+				if (d < 0) {
+					errorNotice("The scale must not be negative.");
+					d = scale;
+				}
 				scale = d;
+				rebase = true;
 				scaler.setText(String.format("%.2f", scale));
 			}
 
@@ -111,12 +186,58 @@ public class SimulationGUI extends JFrame implements EventProcessor {
 		display = new JPanel() {
 
 			@Override
-			public void paint(Graphics g) {
-				sim.paint(g, display);
+			protected void paintComponent(Graphics g) {
+				ElementModel m = model;
+				if (m != null) {
+					super.paintComponent(g);
+					paintModel((Graphics2D) g, m);
+					return;
+				}
+				Frame f = painted;
+				if (f == null || f.snapshot == null) {
+					sim.paint(g, display);
+					return;
+				}
+				super.paintComponent(g);
+				f.snapshot.paint((Graphics2D) g, getWidth(), getHeight());
 			}
 		};
 		display.setDoubleBuffered(true);
 		display.setBackground(Color.WHITE);
+		MouseAdapter viewportControl = new MouseAdapter() {
+
+			@Override
+			public void mousePressed(MouseEvent e) {
+				dragFrom = e.getPoint();
+			}
+
+			@Override
+			public void mouseDragged(MouseEvent e) {
+				if (dragFrom != null) {
+					setViewport(originX - (e.getX() - dragFrom.x) / zoom, originY - (e.getY() - dragFrom.y) / zoom,
+							zoom);
+					dragFrom = e.getPoint();
+				}
+			}
+
+			@Override
+			public void mouseReleased(MouseEvent e) {
+				dragFrom = null;
+			}
+
+			@Override
+			public void mouseWheelMoved(MouseWheelEvent e) {
+				// keep the world point under the pointer where it is
+				double z = zoom * Math.pow(1.1, -e.getPreciseWheelRotation());
+				double wx = originX + e.getX() / zoom;
+				double wy = originY + e.getY() / zoom;
+				setViewport(wx - e.getX() / z, wy - e.getY() / z, z);
+			}
+
+		};
+		display.addMouseListener(viewportControl);
+		display.addMouseMotionListener(viewportControl);
+		display.addMouseWheelListener(viewportControl);
 		messagePane = new JTextField(40);
 		messagePane.setEditable(false);
 		clearMsgButton = new JButton("Clear");
@@ -170,18 +291,133 @@ public class SimulationGUI extends JFrame implements EventProcessor {
 		Dimension d = getPreferredSize();
 		setSize((int) (1.5 * d.width), 2 * d.height);
 		this.setVisible(true);
-		// update the time every 10th of a second
-		sim.getEventingSystem().scheduleEventRelative(this, TIMESTEP_EVENT, 100);
+		new Timer(1000 / fps, new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				showLatest();
+			}
+
+		}).start();
+		sim.getEventingSystem().scheduleAtFixedRate(this, TIMESTEP_EVENT, TIMESTEP, TIMESTEP);
+	}
+
+	/**
+	 * Display the latest frame, if it is not already displayed. Runs on the event
+	 * dispatch thread.
+	 */
+	private void showLatest() {
+		ElementModel m = model;
+		if (m != null) {
+			repaintDirty(m);
+		}
+		Frame f = latest;
+		if (f == null || f == painted) {
+			return;
+		}
+		painted = f;
+		timeLabel.setText(String.format("%3.1f", f.elapsed / 1000.0));
+		if (m == null) {
+			display.repaint();
+		}
+	}
+
+	/**
+	 * Repaint the part of the viewport that the element model has marked dirty.
+	 * Runs on the event dispatch thread.
+	 */
+	private void repaintDirty(ElementModel m) {
+		Rectangle2D dirty = m.takeDirty();
+		if (dirty == null) {
+			return;
+		}
+		Rectangle2D visible = toWorld(new Rectangle(0, 0, display.getWidth(), display.getHeight()));
+		if (!dirty.intersects(visible)) {
+			return;
+		}
+		Rectangle2D r = visible.createIntersection(dirty);
+		// a pixel of margin for antialiased edges
+		int x0 = (int) Math.floor((r.getMinX() - originX) * zoom) - 1;
+		int y0 = (int) Math.floor((r.getMinY() - originY) * zoom) - 1;
+		int x1 = (int) Math.ceil((r.getMaxX() - originX) * zoom) + 1;
+		int y1 = (int) Math.ceil((r.getMaxY() - originY) * zoom) + 1;
+		display.repaint(x0, y0, x1 - x0, y1 - y0);
+	}
+
+	/**
+	 * Draw the elements that intersect the clip. Runs on the event dispatch thread.
+	 */
+	private void paintModel(Graphics2D g, ElementModel m) {
+		Rectangle clip = g.getClipBounds();
+		if (clip == null) {
+			clip = new Rectangle(0, 0, display.getWidth(), display.getHeight());
+		}
+		Graphics2D g2 = (Graphics2D) g.create();
+		try {
+			g2.scale(zoom, zoom);
+			g2.translate(-originX, -originY);
+			m.paint(g2, toWorld(clip));
+		} finally {
+			g2.dispose();
+		}
+	}
+
+	private Rectangle2D toWorld(Rectangle r) {
+		return new Rectangle2D.Double(originX + r.x / zoom, originY + r.y / zoom, r.width / zoom, r.height / zoom);
+	}
+
+	/**
+	 * Draw the simulation from an element model, rather than with
+	 * {@link Simulation#snapshot()} or {@link Simulation#paint(Graphics, JPanel)}.
+	 * Typically invoked from {@link Simulation#setGUI(SimulationGUI)}.
+	 *
+	 * @param model the model, or <code>null</code> to stop using one
+	 */
+	public void setElementModel(ElementModel model) {
+		this.model = model;
+		if (model != null) {
+			model.invalidate();
+		}
+		display.repaint();
+	}
+
+	public ElementModel getElementModel() {
+		return model;
+	}
+
+	/**
+	 * Move and zoom the view of the element model. Invoke on the event dispatch
+	 * thread.
+	 *
+	 * @param originX the world x coordinate at the left edge of the display
+	 * @param originY the world y coordinate at the top edge of the display
+	 * @param zoom    pixels per world unit
+	 */
+	public void setViewport(double originX, double originY, double zoom) {
+		if (!(zoom > 0)) {
+			throw new IllegalArgumentException("zoom must be positive");
+		}
+		this.originX = originX;
+		this.originY = originY;
+		this.zoom = zoom;
+		display.repaint();
+	}
+
+	public double getZoom() {
+		return zoom;
 	}
 
 	public void errorNotice(String msg) {
 		messagePane.setText(msg);
 	}
 
+	/**
+	 * Tell the display that the simulation has changed, so that a new snapshot is
+	 * taken at the next frame. May be invoked on the simulation thread. Not needed
+	 * with an {@link ElementModel}, which tracks its own changes.
+	 */
 	public void elementChanged() {
-		if (display != null) {
-			display.repaint();
-		}
+		changed = true;
 	}
 
 	private ActionListener onReset() {
@@ -217,15 +453,93 @@ public class SimulationGUI extends JFrame implements EventProcessor {
 		};
 	}
 
+	/**
+	 * The timestep: runs on the simulation thread. Publishes a frame if one is due,
+	 * then paces the simulation.
+	 */
 	@Override
 	public void process(Event e, EventingSystem eventingSystem, long t) {
-		timeLabel.setText(String.format("%3.1f", eventingSystem.getElapsedTime() / 1000.0));
-		display.repaint();
-		eventingSystem.scheduleEventRelative(this, e, 100);
+		long now = System.nanoTime();
+		if (now - lastPublished >= frameNanos) {
+			lastPublished = now;
+			Frame previous = latest;
+			Snapshot snapshot = previous == null ? null : previous.snapshot;
+			if (changed || previous == null) {
+				changed = false;
+				snapshot = sim.snapshot();
+			}
+			latest = new Frame(snapshot, eventingSystem.getElapsedTime());
+		}
+		if (!eventingSystem.isRealtime()) {
+			pace(eventingSystem, t);
+		}
+	}
+
+	/**
+	 * Sleep until wall-clock time catches up with simulated time, at the current
+	 * scale.
+	 */
+	private void pace(EventingSystem eventingSystem, long t) {
+		double s = scale;
+		long wall = System.nanoTime();
+		if (rebase || s <= 0) {
+			rebase = false;
+			paceSimStart = t;
+			paceWallStart = wall;
+			return;
+		}
+		long simNanos = eventingSystem.getFinestTimeUnit().toNanos(t - paceSimStart);
+		long ahead = paceWallStart + (long) (simNanos / s) - wall;
+		if (ahead > 1000000) {
+			try {
+				Thread.sleep(ahead / 1000000, (int) (ahead % 1000000));
+			} catch (InterruptedException x) {
+				Thread.currentThread().interrupt();
+			}
+		} else if (ahead < -1000000000L) {
+			// more than a second behind: do not try to catch up
+			paceSimStart = t;
+			paceWallStart = wall;
+		}
 	}
 
 	public double getScale() {
 		return scale;
 	}
 
+	/**
+	 * Set the number of simulated seconds per wall-clock second; 0 to run as fast
+	 * as possible.
+	 */
+	public void setScale(double scale) {
+		if (scale < 0) {
+			throw new IllegalArgumentException("scale must not be negative");
+		}
+		this.scale = scale;
+		rebase = true;
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				scaler.setText(String.format("%.2f", scale));
+			}
+		});
+	}
+
+	public int getFps() {
+		return fps;
+	}
+
+	/**
+	 * A published snapshot and the simulated time at which it was published.
+	 */
+	private static class Frame {
+		private final Snapshot snapshot;
+		private final long elapsed;
+
+		Frame(Snapshot snapshot, long elapsed) {
+			this.snapshot = snapshot;
+			this.elapsed = elapsed;
+		}
+	}
+
 }
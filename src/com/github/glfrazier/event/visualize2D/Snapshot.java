@@ -0,0 +1,25 @@
+package com.github.glfrazier.event.visualize2D;
+
+import java.awt.Graphics2D;
+
+/**
+ * An immutable picture of a {@link Simulation} at one moment. Snapshots are
+ * taken on the simulation thread (see {@link Simulation#snapshot()}) and
+ * painted later, on another thread, while the simulation carries on; so a
+ * snapshot must not refer to any state that the simulation goes on to modify.
+ *
+ * @author Greg Frazier
+ *
+ */
+public interface Snapshot {
+
+	/**
+	 * Paint the snapshot.
+	 *
+	 * @param g      the graphics context, already cleared to the background
+	 * @param width  the width of the area to paint
+	 * @param height the height of the area to paint
+	 */
+	public void paint(Graphics2D g, int width, int height);
+
+}